@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive;
+
+import android.media.browse.MediaBrowser.MediaItem;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.service.media.MediaBrowserService.Result;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * Builds onLoadChildren results on a few worker threads, so a long list of tracks never holds
+ * up the main thread, where playback and the notification are handled.
+ *
+ * A request for a media id that is already being built for the same catalog and favorites
+ * versions waits for that build instead of starting another one. A build for older versions
+ * is superseded by the request: it is cancelled, or its result dropped if it already runs,
+ * and everyone waiting for it gets the new result instead.
+ *
+ * Must be used on the main thread. Results are sent on the main thread as well.
+ */
+final class BrowseLoader {
+
+    private static final String TAG = LogHelper.makeLogTag(BrowseLoader.class);
+
+    // Browsing clients rarely ask for more than a couple of lists at a time
+    private static final int THREADS = 2;
+
+    interface ChildrenSource {
+        /**
+         * Build the children of a media id. Called on a worker thread.
+         *
+         * @param catalogVersion the catalog version the request was made for.
+         * @param favoritesVersion the favorites version the request was made for.
+         * @return the children, or null if there is no answer to send.
+         */
+        List<MediaItem> buildChildren(String pagedMediaId, long catalogVersion,
+                                      int favoritesVersion);
+    }
+
+    private final ChildrenSource mSource;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Builds in progress, by the paged media id they are for
+    private final Map<String, Request> mRequests = new HashMap<>();
+
+    private static final class Request {
+        final String pagedMediaId;
+        final long catalogVersion;
+        final int favoritesVersion;
+        // Detached results waiting for the build
+        final List<Result<List<MediaItem>>> results = new ArrayList<>();
+        Future<?> future;
+
+        Request(String pagedMediaId, long catalogVersion, int favoritesVersion) {
+            this.pagedMediaId = pagedMediaId;
+            this.catalogVersion = catalogVersion;
+            this.favoritesVersion = favoritesVersion;
+        }
+    }
+
+    BrowseLoader(ChildrenSource source) {
+        mSource = source;
+        mExecutor = newBrowseExecutor();
+    }
+
+    /**
+     * Build the children of a media id and send them to the result.
+     *
+     * @param result a result that was detached already.
+     */
+    void load(String pagedMediaId, long catalogVersion, int favoritesVersion,
+              Result<List<MediaItem>> result) {
+        Request request = mRequests.get(pagedMediaId);
+        if (request != null && request.catalogVersion == catalogVersion
+                && request.favoritesVersion == favoritesVersion) {
+            LogHelper.d(TAG, "Joining the build of ", pagedMediaId);
+            request.results.add(result);
+            return;
+        }
+
+        final Request next = new Request(pagedMediaId, catalogVersion, favoritesVersion);
+        if (request != null) {
+            LogHelper.d(TAG, "Superseding the build of ", pagedMediaId);
+            request.future.cancel(false);
+            next.results.addAll(request.results);
+        }
+        next.results.add(result);
+        mRequests.put(pagedMediaId, next);
+        next.future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                List<MediaItem> items;
+                try {
+                    items = mSource.buildChildren(next.pagedMediaId, next.catalogVersion,
+                            next.favoritesVersion);
+                } catch (RuntimeException e) {
+                    LogHelper.e(TAG, e, "Could not build the children of ", next.pagedMediaId);
+                    items = Collections.emptyList();
+                }
+                final List<MediaItem> children = items;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(next, children);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drop every build in progress and stop the worker threads. Waiting results are not
+     * answered anymore.
+     */
+    void release() {
+        for (Request request : mRequests.values()) {
+            request.future.cancel(false);
+        }
+        mRequests.clear();
+        mHandler.removeCallbacksAndMessages(null);
+        mExecutor.shutdown();
+    }
+
+    private void deliver(Request request, List<MediaItem> children) {
+        if (mRequests.get(request.pagedMediaId) != request) {
+            // Superseded or released meanwhile
+            return;
+        }
+        mRequests.remove(request.pagedMediaId);
+        if (children == null) {
+            return;
+        }
+        for (Result<List<MediaItem>> result : request.results) {
+            result.sendResult(children);
+        }
+    }
+
+    private static ExecutorService newBrowseExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "BrowseLoader #" + mCount.incrementAndGet());
+                    }
+                });
+        // Let the threads go while nobody browses
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
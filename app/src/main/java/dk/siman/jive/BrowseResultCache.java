@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive;
+
+import android.content.ComponentCallbacks2;
+import android.media.browse.MediaBrowser.MediaItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.siman.jive.utils.LogHelper;
+import dk.siman.jive.utils.MediaIDHelper;
+import dk.siman.jive.utils.MemoryGovernor;
+
+/**
+ * Results of onLoadChildren, by the media id they were loaded for.
+ *
+ * A result is only returned for the catalog and favorites versions it was built from, so a
+ * change of either is enough to stop serving it. Results are evicted least recently used
+ * first, once the items of all results exceed {@link #MAX_ITEMS}. Everything is dropped when
+ * memory runs low, as results are built again from the catalog.
+ */
+final class BrowseResultCache implements MemoryGovernor.Trimmable {
+
+    private static final String TAG = LogHelper.makeLogTag(BrowseResultCache.class);
+
+    // Total MediaItems held; larger results are not cached at all
+    static final int MAX_ITEMS = 5000;
+    // Rough size of a MediaItem with its description and extras
+    private static final int ITEM_BYTES = 512;
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mItemCount;
+    private long mHitCount;
+    private long mMissCount;
+
+    private static final class Entry {
+        final long catalogVersion;
+        final int favoritesVersion;
+        final List<MediaItem> items;
+
+        Entry(long catalogVersion, int favoritesVersion, List<MediaItem> items) {
+            this.catalogVersion = catalogVersion;
+            this.favoritesVersion = favoritesVersion;
+            this.items = items;
+        }
+    }
+
+    /**
+     * @return the items cached for the media id and versions, or null.
+     */
+    synchronized List<MediaItem> get(String mediaId, long catalogVersion, int favoritesVersion) {
+        Entry entry = mEntries.get(mediaId);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        if (entry.catalogVersion != catalogVersion || entry.favoritesVersion != favoritesVersion) {
+            remove(mediaId);
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.items;
+    }
+
+    synchronized void put(String mediaId, long catalogVersion, int favoritesVersion,
+                          List<MediaItem> items) {
+        remove(mediaId);
+        if (items.size() > MAX_ITEMS) {
+            return;
+        }
+        mEntries.put(mediaId, new Entry(catalogVersion, favoritesVersion,
+                Collections.unmodifiableList(new ArrayList<>(items))));
+        mItemCount += items.size();
+
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mItemCount > MAX_ITEMS && eldest.hasNext()) {
+            mItemCount -= eldest.next().items.size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Drop the results of a media id, including every page of it.
+     */
+    synchronized void invalidate(String parentMediaId) {
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (parentMediaId.equals(MediaIDHelper.getUnpagedMediaID(entry.getKey()))) {
+                mItemCount -= entry.getValue().items.size();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mItemCount = 0;
+    }
+
+    @Override
+    public synchronized long getRetainedBytes() {
+        return (long) mItemCount * ITEM_BYTES;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            clear();
+        }
+    }
+
+    synchronized void logStats() {
+        LogHelper.d(TAG, "Browse results cached=", mEntries.size(), " items=", mItemCount,
+                " hits=", mHitCount, " misses=", mMissCount);
+    }
+
+    private void remove(String mediaId) {
+        Entry entry = mEntries.remove(mediaId);
+        if (entry != null) {
+            mItemCount -= entry.items.size();
+        }
+    }
+}
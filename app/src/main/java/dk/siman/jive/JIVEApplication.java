@@ -21,6 +21,7 @@ import com.google.android.libraries.cast.companionlibrary.cast.VideoCastManager;
 import com.google.android.libraries.cast.companionlibrary.cast.player.VideoCastController;
 
 import dk.siman.jive.ui.FullScreenPlayerActivity;
+import dk.siman.jive.utils.MemoryGovernor;
 
 /**
  * The {@link Application} for the uAmp application.
@@ -30,6 +31,8 @@ public class JIVEApplication extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        registerComponentCallbacks(MemoryGovernor.getInstance());
+
         String applicationId = getResources().getString(R.string.cast_application_id);
         VideoCastManager castManager = VideoCastManager.initialize(
                 getApplicationContext(),
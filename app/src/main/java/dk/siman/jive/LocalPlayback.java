@@ -248,6 +248,8 @@ public class LocalPlayback implements Playback, AudioManager.OnAudioFocusChangeL
     @Override
     public void setCurrentStreamPosition(int pos) {
         this.mCurrentPosition = pos;
+        // Resume there once the music is prepared
+        mSeekTo = pos > 0;
     }
 
     @Override
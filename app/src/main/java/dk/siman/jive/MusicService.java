@@ -19,6 +19,7 @@ package dk.siman.jive;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -34,8 +35,10 @@ import android.media.session.PlaybackState;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.text.TextUtils;
 import android.service.media.MediaBrowserService;
 import android.support.v7.media.MediaRouter;
 import android.widget.Toast;
@@ -45,17 +48,25 @@ import com.google.android.libraries.cast.companionlibrary.cast.VideoCastManager;
 import com.google.android.libraries.cast.companionlibrary.cast.callbacks.VideoCastConsumerImpl;
 
 import java.lang.ref.WeakReference;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import dk.siman.jive.model.MusicProvider;
 import dk.siman.jive.ui.NowPlayingActivity;
 import dk.siman.jive.utils.ArtHelper;
 import dk.siman.jive.utils.CarHelper;
 import dk.siman.jive.utils.LogHelper;
+import dk.siman.jive.utils.MediaID;
 import dk.siman.jive.utils.MediaIDHelper;
+import dk.siman.jive.utils.MemoryGovernor;
 import dk.siman.jive.utils.QueueHelper;
 import dk.siman.jive.utils.WearHelper;
 
@@ -64,6 +75,8 @@ import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALPHABET;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_MOST_PLAYED;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_RECENT;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_ROOT;
 import static dk.siman.jive.utils.MediaIDHelper.createBrowseCategoryMediaID;
 
@@ -155,15 +168,39 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private static final String CUSTOM_ACTION_THUMBS_UP = "dk.siman.jive.THUMBS_UP";
     // Delay stopSelf by using a handler.
     private static final int STOP_DELAY = 30000;
+    // Queue items kept around the current one when the queue is trimmed
+    private static final int QUEUE_TRIM_BEHIND = 50;
+    private static final int QUEUE_TRIM_AHEAD = 500;
+    // Rough size of a QueueItem with its description
+    private static final int QUEUE_ITEM_BYTES = 512;
 
     private static String cachedAlbum = null;
 
     // Music catalog manager
     private MusicProvider mMusicProvider;
+    // onLoadChildren requests waiting for the first part of the catalog
+    private final List<PendingChildren> mPendingChildren = new ArrayList<>();
+    // Parents answered while the catalog was partly loaded, refreshed as it grows
+    private final Set<String> mPartialParents = new HashSet<>();
+    // Paged media ids requested so far, by the media id they are a page of
+    private final Map<String, Set<String>> mPagedParents = new HashMap<>();
+    // onLoadChildren results, for as long as the catalog they came from is current
+    private final BrowseResultCache mBrowseCache = new BrowseResultCache();
+    // Builds onLoadChildren results off the main thread
+    private BrowseLoader mBrowseLoader;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
     private MediaSession mSession;
     // "Now playing" queue:
     private List<MediaSession.QueueItem> mPlayingQueue;
     private int mCurrentIndexOnQueue;
+    private String mQueueTitle;
+    private PlayingQueueStore mQueueStore;
+    // Id of the saved playing queue, or 0 if it was not saved
+    private long mSavedQueueId;
+    // Playback state resumed from, until the catalog is loaded
+    private PlayingQueueStore.State mRestoredState;
+    // The next play of the resumed queue's music continues it from the saved position
+    private boolean mResumeSavedPosition;
     private MediaNotificationManager mMediaNotificationManager;
 
     // Indicates whether the service was started.
@@ -180,6 +217,13 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     private boolean mIsConnectedToCar;
     private BroadcastReceiver mCarConnectionReceiver;
 
+    /**
+     * @return the catalog the service browses and plays from.
+     */
+    MusicProvider getMusicProvider() {
+        return mMusicProvider;
+    }
+
     /**
      * Consumer responsible for switching the Playback instances depending on whether
      * it is connected to a remote player.
@@ -212,6 +256,42 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
 
     private VideoCastManager mCastManager;
 
+    /**
+     * Gives back the art bitmaps of the session once in the background, unless they are on
+     * show, and trims a long playing queue to the part around the current music when the
+     * process is next in line to be killed.
+     */
+    private final MemoryGovernor.Trimmable mMemoryTrimmer = new MemoryGovernor.Trimmable() {
+        @Override
+        public long getRetainedBytes() {
+            long bytes = mPlayingQueue == null ? 0 : (long) mPlayingQueue.size() * QUEUE_ITEM_BYTES;
+            MediaMetadata metadata = mSession.getController().getMetadata();
+            if (metadata != null) {
+                bytes += bitmapBytes(metadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART))
+                        + bitmapBytes(metadata.getBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON));
+            }
+            return bytes;
+        }
+
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                // MusicProvider drops the art of updateMetadata(), so load it again next time
+                cachedAlbum = null;
+                if (!mPlayback.isPlaying()) {
+                    trimSessionArt();
+                }
+            }
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                trimPlayingQueue();
+            }
+        }
+
+        private long bitmapBytes(Bitmap bitmap) {
+            return bitmap != null ? bitmap.getAllocationByteCount() : 0;
+        }
+    };
+
     /*
      * (non-Javadoc)
      * @see android.app.Service#onCreate()
@@ -224,7 +304,35 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         mContext = getApplicationContext();
 
         mPlayingQueue = new ArrayList<>();
+        mQueueStore = new PlayingQueueStore(mContext);
         mMusicProvider = new MusicProvider(getContentResolver(), mContext);
+        mMusicProvider.setCatalogListener(new MusicProvider.CatalogListener() {
+            @Override
+            public void onMusicCatalogChanged(Collection<String> parentMediaIds) {
+                // MediaStore changed since the catalog we served from; let subscribers reload.
+                for (String parentMediaId : parentMediaIds) {
+                    mBrowseCache.invalidate(parentMediaId);
+                    notifyParentChanged(parentMediaId);
+                }
+            }
+
+            @Override
+            public void onMusicCatalogProgress() {
+                for (String parentMediaId : mPartialParents) {
+                    notifyChildrenChanged(parentMediaId);
+                }
+                loadPendingChildren(true);
+            }
+        });
+        mMusicProvider.startSync();
+        mBrowseLoader = new BrowseLoader(new BrowseLoader.ChildrenSource() {
+            @Override
+            public List<MediaItem> buildChildren(String pagedMediaId, long catalogVersion,
+                                                 int favoritesVersion) {
+                return MusicService.this.buildChildren(pagedMediaId, catalogVersion,
+                        favoritesVersion);
+            }
+        });
         mPackageValidator = new PackageValidator(this);
 
         // Start a new MediaSession
@@ -268,6 +376,9 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             }
         };
         registerReceiver(mCarConnectionReceiver, filter);
+
+        MemoryGovernor.getInstance().register(mMemoryTrimmer);
+        MemoryGovernor.getInstance().register(mBrowseCache);
     }
 
 
@@ -308,8 +419,17 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     public void onDestroy() {
         LogHelper.d(TAG, "onDestroy");
         unregisterReceiver(mCarConnectionReceiver);
-        // Service is being killed, so make sure we release our resources
+        MemoryGovernor.getInstance().unregister(mMemoryTrimmer);
+        MemoryGovernor.getInstance().unregister(mBrowseCache);
+        mMusicProvider.stopSync();
+        mMusicProvider.flushFavorites();
+        mMusicProvider.flushPlayHistory();
+        mBrowseLoader.release();
+        mBrowseCache.logStats();
+        // Service is being killed, so make sure we release our resources. Stopping saves the
+        // playback state.
         handleStopRequest(null);
+        mQueueStore.release();
 
         try {
             NotificationManager mNotificationManager = (NotificationManager) this
@@ -393,39 +513,188 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         return new BrowserRoot(MEDIA_ID_ROOT, null);
     }
 
+    /**
+     * Paged variant of onLoadChildren, called by MediaBrowserService from API 24 on when a
+     * client subscribes with {@link MediaIDHelper#EXTRA_PAGE} and
+     * {@link MediaIDHelper#EXTRA_PAGE_SIZE} options. Older clients page by subscribing to
+     * paged media ids instead, see {@link MediaIDHelper#createPagedMediaID}.
+     */
+    public void onLoadChildren(final String parentMediaId, final Result<List<MediaItem>> result,
+                               Bundle options) {
+        int page = options == null ? -1 : options.getInt(MediaIDHelper.EXTRA_PAGE, -1);
+        int pageSize = options == null ? -1 : options.getInt(MediaIDHelper.EXTRA_PAGE_SIZE, -1);
+        if (page < 0 || pageSize < 1) {
+            onLoadChildren(parentMediaId, result);
+        } else {
+            onLoadChildren(MediaIDHelper.createPagedMediaID(parentMediaId, page, pageSize),
+                    result);
+        }
+    }
+
     @Override
     public void onLoadChildren(final String parentMediaId, final Result<List<MediaItem>> result) {
-        if (!mMusicProvider.isInitialized()) {
-            // Use result.detach to allow calling result.sendResult from another thread:
-            result.detach();
+        // Results are built on a worker thread, or wait for the catalog, and are sent later
+        result.detach();
+        if (mMusicProvider.isInitialized()) {
+            // If our music catalog is already loaded/cached, load them into result immediately
+            loadChildrenImpl(parentMediaId, result);
 
-            mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
-                @Override
-                public void onMusicCatalogReady(boolean success) {
-                    if (success) {
-                        loadChildrenImpl(parentMediaId, result);
-                    } else {
-                        updatePlaybackState(getString(R.string.error_no_metadata));
-                        result.sendResult(Collections.<MediaItem>emptyList());
-                    }
-                }
-            });
+        } else if (mMusicProvider.isBrowsable() || MEDIA_ID_ROOT.equals(parentMediaId)) {
+            // The first scan of the catalog is still running. Send what is loaded so far, and
+            // notify the parent as the rest of the catalog comes in.
+            mPartialParents.add(parentMediaId);
+            loadChildrenImpl(parentMediaId, result);
+            mMusicProvider.retrieveMediaAsync(mCatalogReadyCallback);
 
         } else {
-            // If our music catalog is already loaded/cached, load them into result immediately
-            loadChildrenImpl(parentMediaId, result);
+            mPendingChildren.add(new PendingChildren(parentMediaId, result));
+            mMusicProvider.retrieveMediaAsync(mCatalogReadyCallback);
+        }
+    }
+
+    /**
+     * Notify the subscribers of a media id, and of every page of it that was requested.
+     */
+    private void notifyParentChanged(String parentMediaId) {
+        notifyChildrenChanged(parentMediaId);
+        Set<String> pages = mPagedParents.get(parentMediaId);
+        if (pages != null) {
+            for (String pagedMediaId : pages) {
+                notifyChildrenChanged(pagedMediaId);
+            }
+        }
+    }
+
+    private final MusicProvider.Callback mCatalogReadyCallback = new MusicProvider.Callback() {
+        @Override
+        public void onMusicCatalogReady(boolean success) {
+            if (success) {
+                for (String parentMediaId : mPartialParents) {
+                    notifyChildrenChanged(parentMediaId);
+                }
+                mPartialParents.clear();
+                loadPendingChildren(false);
+            } else {
+                updatePlaybackState(getString(R.string.error_no_metadata));
+                for (PendingChildren pending : mPendingChildren) {
+                    pending.result.sendResult(Collections.<MediaItem>emptyList());
+                }
+                mPendingChildren.clear();
+            }
+        }
+    };
+
+    /**
+     * Answer the onLoadChildren requests that waited for the catalog.
+     *
+     * @param partial true if the catalog is not completely loaded yet.
+     */
+    private void loadPendingChildren(boolean partial) {
+        List<PendingChildren> pendingChildren = new ArrayList<>(mPendingChildren);
+        mPendingChildren.clear();
+        for (PendingChildren pending : pendingChildren) {
+            if (partial) {
+                mPartialParents.add(pending.parentMediaId);
+            }
+            loadChildrenImpl(pending.parentMediaId, pending.result);
+        }
+    }
+
+    private static final class PendingChildren {
+        final String parentMediaId;
+        final Result<List<MediaItem>> result;
+
+        PendingChildren(String parentMediaId, Result<List<MediaItem>> result) {
+            this.parentMediaId = parentMediaId;
+            this.result = result;
         }
     }
 
     /**
      * Actual implementation of onLoadChildren that assumes that MusicProvider is already
-     * initialized.
+     * initialized. Answers from the browse cache right away, and has the children built on
+     * a worker thread otherwise.
+     *
+     * @param result a result that was detached already.
      */
-    private void loadChildrenImpl(final String parentMediaId,
+    private void loadChildrenImpl(final String pagedMediaId,
                                   final Result<List<MediaBrowser.MediaItem>> result) {
-        LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", parentMediaId);
+        LogHelper.d(TAG, "OnLoadChildren: parentMediaId=", pagedMediaId);
+
+        final String parentMediaId = MediaIDHelper.getUnpagedMediaID(pagedMediaId);
+        if (MediaIDHelper.getPage(pagedMediaId) != null) {
+            Set<String> pages = mPagedParents.get(parentMediaId);
+            if (pages == null) {
+                pages = new HashSet<>();
+                mPagedParents.put(parentMediaId, pages);
+            }
+            pages.add(pagedMediaId);
+        }
 
-        final List<MediaBrowser.MediaItem> mediaItems = new ArrayList<>();
+        // Read the versions before building the result, so a change made meanwhile makes
+        // the cached result stale instead of being missed.
+        long catalogVersion = mMusicProvider.getCatalogVersion();
+        int favoritesVersion = getChildrenVersion(parentMediaId);
+        List<MediaBrowser.MediaItem> cached =
+                mBrowseCache.get(pagedMediaId, catalogVersion, favoritesVersion);
+        if (cached != null) {
+            LogHelper.d(TAG, "OnLoadChildren sending ", cached.size(),
+                    " cached results for ", pagedMediaId);
+            result.sendResult(cached);
+            return;
+        }
+        mBrowseLoader.load(pagedMediaId, catalogVersion, favoritesVersion, result);
+    }
+
+    /**
+     * Build the children of a media id, or take them from the browse cache, on the calling
+     * thread.
+     *
+     * @return the children, or null if there is no answer to send.
+     */
+    List<MediaBrowser.MediaItem> loadChildren(String pagedMediaId) {
+        String parentMediaId = MediaIDHelper.getUnpagedMediaID(pagedMediaId);
+        long catalogVersion = mMusicProvider.getCatalogVersion();
+        int favoritesVersion = getChildrenVersion(parentMediaId);
+        List<MediaBrowser.MediaItem> cached =
+                mBrowseCache.get(pagedMediaId, catalogVersion, favoritesVersion);
+        if (cached != null) {
+            return cached;
+        }
+        return buildChildren(pagedMediaId, catalogVersion, favoritesVersion);
+    }
+
+    /**
+     * @return the favorites or play history version the children of the media id depend on,
+     *         0 if none. It is cached as the favorites version.
+     */
+    private int getChildrenVersion(String parentMediaId) {
+        if (MEDIA_ID_MUSICS_BY_FAVORITE.equals(parentMediaId)) {
+            return mMusicProvider.getFavoritesVersion();
+        } else if (MEDIA_ID_MUSICS_MOST_PLAYED.equals(parentMediaId)
+                || MEDIA_ID_MUSICS_RECENT.equals(parentMediaId)) {
+            return mMusicProvider.getPlayHistoryVersion();
+        }
+        return 0;
+    }
+
+    /**
+     * Build the children of a media id and put them in the browse cache. Safe to call on
+     * any thread.
+     *
+     * The media id may ask for a single page of the children, see
+     * {@link MediaIDHelper#createPagedMediaID}. Lists of tracks and categories come presorted
+     * from MusicProvider, so only the items of the requested page are built.
+     *
+     * @param catalogVersion the catalog version read before building.
+     * @param favoritesVersion the version of getChildrenVersion() read before building.
+     * @return the children, or null if there is no answer to send.
+     */
+    List<MediaBrowser.MediaItem> buildChildren(String pagedMediaId, long catalogVersion,
+                                               int favoritesVersion) {
+        final String parentMediaId = MediaIDHelper.getUnpagedMediaID(pagedMediaId);
+        int[] page = MediaIDHelper.getPage(pagedMediaId);
+        List<MediaBrowser.MediaItem> mediaItems = new ArrayList<>();
 
         if (MEDIA_ID_ROOT.equals(parentMediaId)) {
             LogHelper.d(TAG, "OnLoadChildren.ROOT");
@@ -459,6 +728,26 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                             .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE
             ));
 
+            mediaItems.add(new MediaBrowser.MediaItem(
+                    new MediaDescription.Builder()
+                            .setMediaId(MEDIA_ID_MUSICS_MOST_PLAYED)
+                            .setTitle(getString(R.string.browse_most_played))
+                            .setIconUri(Uri.parse("android.resource://" +
+                                    "dk.siman/drawable/ic_by_genre"))
+                            .setSubtitle(getString(R.string.browse_most_played_subtitle))
+                            .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE
+            ));
+
+            mediaItems.add(new MediaBrowser.MediaItem(
+                    new MediaDescription.Builder()
+                            .setMediaId(MEDIA_ID_MUSICS_RECENT)
+                            .setTitle(getString(R.string.browse_recent))
+                            .setIconUri(Uri.parse("android.resource://" +
+                                    "dk.siman/drawable/ic_by_genre"))
+                            .setSubtitle(getString(R.string.browse_recent_subtitle))
+                            .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE
+            ));
+
             mediaItems.add(new MediaBrowser.MediaItem(
                     new MediaDescription.Builder()
                             .setMediaId(MEDIA_ID_MUSICS_BY_ALBUM)
@@ -469,46 +758,51 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                             .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE
             ));
 
+            final Collator collator = Collator.getInstance();
             Collections.sort(mediaItems, new Comparator<MediaItem>() {
                 @Override
                 public int compare(MediaItem lhs, MediaItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
+                    return collator.compare(lhs.getDescription().getTitle().toString(),
+                            rhs.getDescription().getTitle().toString());
                 }
             });
+            mediaItems = page(mediaItems, page);
 
         } else if (MEDIA_ID_MUSICS_BY_FAVORITE.equals(parentMediaId)) {
             LogHelper.d(TAG, "OnLoadChildren.FAVORITE");
 
-            for (String mediaId : mMusicProvider.getFavorites()) {
-                for (MediaMetadata track : mMusicProvider.getMusicsByFavorite(mediaId)) {
-                    String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                            track.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_FAVORITE, track.toString());
-                    MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                            .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                            .build();
-                    MediaBrowser.MediaItem bItem = new MediaBrowser.MediaItem(
-                            trackCopy.getDescription(), MediaItem.FLAG_PLAYABLE);
-
-                    mediaItems.add(bItem);
-                }
-            }
-
-            if (mediaItems.size() == 0) {
-                Toast.makeText(mContext, "No favorites songs", Toast.LENGTH_LONG).show();
-                result.detach();
-                return;
-            } else {
-                Collections.sort(mediaItems, new Comparator<MediaItem>() {
+            List<MediaMetadata> favorites = mMusicProvider.getFavoriteMusics();
+            if (favorites.isEmpty()) {
+                mHandler.post(new Runnable() {
                     @Override
-                    public int compare(MediaItem lhs, MediaItem rhs) {
-                        return lhs.toString().compareToIgnoreCase(rhs.toString());
+                    public void run() {
+                        Toast.makeText(mContext, "No favorites songs", Toast.LENGTH_LONG).show();
                     }
                 });
+                return null;
+            }
+            for (MediaMetadata track : page(favorites, page)) {
+                mediaItems.add(createTrackItem(track,
+                        MediaID.of(null, MEDIA_ID_MUSICS_BY_FAVORITE, track.toString())));
+            }
+
+        } else if (MEDIA_ID_MUSICS_MOST_PLAYED.equals(parentMediaId)) {
+            LogHelper.d(TAG, "OnLoadChildren.MOST_PLAYED");
+            MediaID category = MediaID.of(null, MEDIA_ID_MUSICS_MOST_PLAYED);
+            for (MediaMetadata track : page(mMusicProvider.getMostPlayedMusics(), page)) {
+                mediaItems.add(createTrackItem(track, category));
+            }
+
+        } else if (MEDIA_ID_MUSICS_RECENT.equals(parentMediaId)) {
+            LogHelper.d(TAG, "OnLoadChildren.RECENT");
+            MediaID category = MediaID.of(null, MEDIA_ID_MUSICS_RECENT);
+            for (MediaMetadata track : page(mMusicProvider.getRecentMusics(), page)) {
+                mediaItems.add(createTrackItem(track, category));
             }
 
         } else if (MEDIA_ID_MUSICS_BY_GENRE.equals(parentMediaId)) {
             LogHelper.d(TAG, "OnLoadChildren.GENRES");
-            for (String genre : mMusicProvider.getGenres()) {
+            for (String genre : page(mMusicProvider.getGenres(), page)) {
                 MediaBrowser.MediaItem item = new MediaBrowser.MediaItem(
                         new MediaDescription.Builder()
                                 .setMediaId(createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_GENRE, genre))
@@ -519,16 +813,9 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                 mediaItems.add(item);
             }
 
-            Collections.sort(mediaItems, new Comparator<MediaItem>() {
-                @Override
-                public int compare(MediaItem lhs, MediaItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
-                }
-            });
-
         } else if (MEDIA_ID_MUSICS_BY_ARTIST.equals(parentMediaId)) {
             LogHelper.d(TAG, "OnLoadChildren.ARTISTS");
-            for (String artist : mMusicProvider.getArtists()) {
+            for (String artist : page(mMusicProvider.getArtists(), page)) {
                 MediaBrowser.MediaItem item = new MediaBrowser.MediaItem(
                         new MediaDescription.Builder()
                                 .setMediaId(createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_ARTIST, artist))
@@ -539,124 +826,97 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                 mediaItems.add(item);
             }
 
-            Collections.sort(mediaItems, new Comparator<MediaItem>() {
-                @Override
-                public int compare(MediaItem lhs, MediaItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
-                }
-            });
-
         } else if (MEDIA_ID_MUSICS_BY_ALPHABET.equals(parentMediaId)) {
             LogHelper.d(TAG, "OnLoadChildren.ALPHABET");
-            for (String mediaId : mMusicProvider.getAllMusic()) {
-                for (MediaMetadata track : mMusicProvider.getMusicsByAlphabet(mediaId)) {
-                    String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                            track.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_ALPHABET, track.toString());
-                    MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                            .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                            .build();
-                    MediaBrowser.MediaItem bItem = new MediaBrowser.MediaItem(
-                            trackCopy.getDescription(), MediaItem.FLAG_PLAYABLE);
-
-                    mediaItems.add(bItem);
-                }
+            for (MediaMetadata track : page(mMusicProvider.getMusicsAlphabetically(), page)) {
+                mediaItems.add(createTrackItem(track,
+                        MediaID.of(null, MEDIA_ID_MUSICS_BY_ALPHABET, track.toString())));
             }
 
-            Collections.sort(mediaItems, new Comparator<MediaItem>() {
-                @Override
-                public int compare(MediaItem lhs, MediaItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
-                }
-            });
-
         } else if (MEDIA_ID_MUSICS_BY_ALBUM.equals(parentMediaId)) {
             LogHelper.d(TAG, "OnLoadChildren.ALBUMS");
-            for (String albums : mMusicProvider.getAlbums()) {
-                MediaBrowser.MediaItem item = null;
-                for (MediaMetadata track : mMusicProvider.getMusicsByAlbum(albums)) {
-                    Uri iconUri = track.getDescription().getIconUri();
-                    item = new MediaBrowser.MediaItem(
-                            new MediaDescription.Builder()
-                                    .setMediaId(createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_ALBUM, albums))
-                                    .setTitle(albums)
-                                    .setIconUri(iconUri)
-                                    .setSubtitle(getString(R.string.browse_musics_by_album_subtitle, track.getString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST)))
-                                    .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE
-                    );
+            for (String albums : page(mMusicProvider.getAlbums(), page)) {
+                List<MediaMetadata> tracks = mMusicProvider.getMusicsByAlbum(albums);
+                if (tracks.isEmpty()) {
+                    continue;
                 }
+                MediaMetadata track = tracks.get(tracks.size() - 1);
+                Uri iconUri = track.getDescription().getIconUri();
+                MediaBrowser.MediaItem item = new MediaBrowser.MediaItem(
+                        new MediaDescription.Builder()
+                                .setMediaId(createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_ALBUM, albums))
+                                .setTitle(albums)
+                                .setIconUri(iconUri)
+                                .setSubtitle(getString(R.string.browse_musics_by_album_subtitle, track.getString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST)))
+                                .build(), MediaBrowser.MediaItem.FLAG_BROWSABLE
+                );
                 mediaItems.add(item);
             }
 
-            Collections.sort(mediaItems, new Comparator<MediaItem>() {
-                @Override
-                public int compare(MediaItem lhs, MediaItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
-                }
-            });
-
         } else if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_GENRE)) {
-            String genre = MediaIDHelper.getHierarchy(parentMediaId)[1];
+            String genre = MediaID.parse(parentMediaId).getCategory(1);
+            MediaID category = MediaID.of(null, MEDIA_ID_MUSICS_BY_GENRE, genre);
             LogHelper.d(TAG, "OnLoadChildren.SONGS_BY_GENRE  genre=", genre);
-            for (MediaMetadata track : mMusicProvider.getMusicsByGenre(genre)) {
-                // Since mediaMetadata fields are immutable, we need to create a copy, so we
-                // can set a hierarchy-aware mediaID. We will need to know the media hierarchy
-                // when we get a onPlayFromMusicID call, so we can create the proper queue based
-                // on where the music was selected from (by artist, by genre, random, etc)
-                String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                        track.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_GENRE, genre);
-                MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                        .build();
-                MediaBrowser.MediaItem bItem = new MediaBrowser.MediaItem(
-                        trackCopy.getDescription(), MediaItem.FLAG_PLAYABLE);
-                mediaItems.add(bItem);
+            for (MediaMetadata track : page(mMusicProvider.getMusicsByGenre(genre), page)) {
+                mediaItems.add(createTrackItem(track, category));
             }
 
         } else if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_ARTIST)) {
-            String artist = MediaIDHelper.getHierarchy(parentMediaId)[1];
+            String artist = MediaID.parse(parentMediaId).getCategory(1);
+            MediaID category = MediaID.of(null, MEDIA_ID_MUSICS_BY_ARTIST, artist);
             LogHelper.d(TAG, "OnLoadChildren.SONGS_BY_ARTISTS  artist=", artist);
-            for (MediaMetadata track : mMusicProvider.getMusicsByArtist(artist)) {
-                // Since mediaMetadata fields are immutable, we need to create a copy, so we
-                // can set a hierarchy-aware mediaID. We will need to know the media hierarchy
-                // when we get a onPlayFromMusicID call, so we can create the proper queue based
-                // on where the music was selected from (by artist, by genre, random, etc)
-                String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                        track.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_ARTIST, artist);
-                MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                        .build();
-                MediaBrowser.MediaItem bItem = new MediaBrowser.MediaItem(
-                        trackCopy.getDescription(), MediaItem.FLAG_PLAYABLE);
-                mediaItems.add(bItem);
+            for (MediaMetadata track : page(mMusicProvider.getMusicsByArtist(artist), page)) {
+                mediaItems.add(createTrackItem(track, category));
             }
 
         } else if (parentMediaId.startsWith(MEDIA_ID_MUSICS_BY_ALBUM)) {
-            String album = MediaIDHelper.getHierarchy(parentMediaId)[1];
+            String album = MediaID.parse(parentMediaId).getCategory(1);
+            MediaID category = MediaID.of(null, MEDIA_ID_MUSICS_BY_ALBUM, album);
             LogHelper.d(TAG, "OnLoadChildren.SONGS_BY_ALBUM  album=", album);
-
-            for (MediaMetadata track : mMusicProvider.getMusicsByAlbum(album)) {
-                // Since mediaMetadata fields are immutable, we need to create a copy, so we
-                // can set a hierarchy-aware mediaID. We will need to know the media hierarchy
-                // when we get a onPlayFromMusicID call, so we can create the proper queue based
-                // on where the music was selected from (by artist, by genre, random, etc)
-                String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                        track.getDescription().getMediaId(), MEDIA_ID_MUSICS_BY_ALBUM, album);
-                MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                        .build();
-
-                MediaBrowser.MediaItem bItem = new MediaBrowser.MediaItem(
-                        trackCopy.getDescription(), MediaItem.FLAG_PLAYABLE);
-                mediaItems.add(bItem);
+            for (MediaMetadata track : page(mMusicProvider.getMusicsByAlbum(album), page)) {
+                mediaItems.add(createTrackItem(track, category));
             }
 
         } else {
             LogHelper.w(TAG, "Skipping unmatched parentMediaId: ", parentMediaId);
         }
         LogHelper.d(TAG, "OnLoadChildren sending ", mediaItems.size(),
-                " results for ", parentMediaId);
+                " results for ", pagedMediaId);
+
+        mBrowseCache.put(pagedMediaId, catalogVersion, favoritesVersion, mediaItems);
+        return mediaItems;
+    }
+
+    /**
+     * Playable item of a track listed under a browse category.
+     */
+    private static MediaBrowser.MediaItem createTrackItem(MediaMetadata track,
+                                                          MediaID category) {
+        // Since mediaMetadata fields are immutable, we need to create a copy, so we
+        // can set a hierarchy-aware mediaID. We will need to know the media hierarchy
+        // when we get a onPlayFromMusicID call, so we can create the proper queue based
+        // on where the music was selected from (by artist, by genre, random, etc)
+        String hierarchyAwareMediaID =
+                category.child(track.getDescription().getMediaId()).toString();
+        MediaMetadata trackCopy = new MediaMetadata.Builder(track)
+                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                .build();
+        return new MediaBrowser.MediaItem(trackCopy.getDescription(), MediaItem.FLAG_PLAYABLE);
+    }
 
-        result.sendResult(mediaItems);
+    /**
+     * @param page page index and page size, or null for all of the list.
+     * @return the requested page of the list.
+     */
+    private static <T> List<T> page(List<T> list, int[] page) {
+        if (page == null) {
+            return list;
+        }
+        long from = (long) page[0] * page[1];
+        if (from >= list.size()) {
+            return Collections.emptyList();
+        }
+        return list.subList((int) from, (int) Math.min(from + page[1], list.size()));
     }
 
     private final class MediaSessionCallback extends MediaSession.Callback {
@@ -664,10 +924,16 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         public void onPlay() {
             LogHelper.d(TAG, "play");
 
+            if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
+                restorePlayingQueue();
+            }
+
             if (mPlayingQueue == null || mPlayingQueue.isEmpty()) {
                 mPlayingQueue = QueueHelper.getRandomQueue(mMusicProvider);
                 mSession.setQueue(mPlayingQueue);
-                mSession.setQueueTitle(getString(R.string.random_queue_title));
+                mQueueTitle = getString(R.string.random_queue_title);
+                mSession.setQueueTitle(mQueueTitle);
+                savePlayingQueue();
                 // start playing from the beginning of the queue
                 mCurrentIndexOnQueue = 0;
             }
@@ -708,9 +974,10 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
             // selected from.
             mPlayingQueue = QueueHelper.getPlayingQueue(mediaId, mMusicProvider);
             mSession.setQueue(mPlayingQueue);
-            String queueTitle = getString(R.string.browse_musics_by_genre_subtitle,
+            mQueueTitle = getString(R.string.browse_musics_by_genre_subtitle,
                     MediaIDHelper.extractBrowseCategoryValueFromMediaID(mediaId));
-            mSession.setQueueTitle(queueTitle);
+            mSession.setQueueTitle(mQueueTitle);
+            savePlayingQueue();
 
             if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
                 // set the current index on queue from the media Id:
@@ -741,6 +1008,13 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         @Override
         public void onSkipToNext() {
             LogHelper.d(TAG, "skipToNext");
+            // Skipping while repeating the current music restarts it, which is recorded as a
+            // start and not as a skip
+            if (mRepeatMode != REPEAT_CURRENT && mPlayback.isPlaying()
+                    && QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+                mMusicProvider.recordPlaySkipped(MediaIDHelper.extractMusicIDFromMediaID(
+                        mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId()));
+            }
             if (mRepeatMode == REPEAT_CURRENT) {
                 // Don't do anything
             } else if (mRepeatMode != REPEAT_CURRENT) {
@@ -817,6 +1091,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
 
                     LogHelper.d(TAG, "playFromSearch  playqueue.length=" + mPlayingQueue.size());
                     mSession.setQueue(mPlayingQueue);
+                    mQueueTitle = null;
+                    savePlayingQueue();
 
                     if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
                         // immediately start playing from the beginning of the search results
@@ -853,8 +1129,20 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         }
 
         if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)) {
+            MediaSession.QueueItem item = mPlayingQueue.get(mCurrentIndexOnQueue);
+            // Resuming a paused music, or the saved position of a resumed queue, doesn't
+            // start it again
+            boolean sameMusic = TextUtils.equals(item.getDescription().getMediaId(),
+                    mPlayback.getCurrentMediaId());
+            boolean resuming = sameMusic && (mResumeSavedPosition
+                    || mPlayback.getState() == PlaybackState.STATE_PAUSED);
+            mResumeSavedPosition = false;
+            if (!resuming && mMusicProvider.recordPlayStarted(
+                    MediaIDHelper.extractMusicIDFromMediaID(item.getDescription().getMediaId()))) {
+                notifyParentChanged(MEDIA_ID_MUSICS_RECENT);
+            }
             updateMetadata();
-            mPlayback.play(mPlayingQueue.get(mCurrentIndexOnQueue));
+            mPlayback.play(item);
         }
 
         startEffect();
@@ -903,6 +1191,20 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         String musicId = MediaIDHelper.extractMusicIDFromMediaID(
                 queueItem.getDescription().getMediaId());
         MediaMetadata track = mMusicProvider.getMusic(musicId);
+        if (track == null) {
+            // A resumed queue before the catalog is loaded; show the music as it was saved
+            PlayingQueueStore.State restored = mRestoredState;
+            if (restored != null && musicId.equals(restored.musicId)) {
+                track = restored.toMetadata();
+            } else {
+                track = new MediaMetadata.Builder()
+                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, musicId)
+                        .build();
+            }
+            LogHelper.d(TAG, "Updating saved metadata for MusicID= " + musicId);
+            mSession.setMetadata(track);
+            return;
+        }
         final String trackId = track.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
         if (!musicId.equals(trackId)) {
             IllegalStateException e = new IllegalStateException("track ID should match musicId.");
@@ -951,20 +1253,141 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
                                     // necessary..
                             .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, icon)
                             .build();
+
+                    // Only the art is new, so the metadata is updated only when it was built
+                    mMusicProvider.updateMusic(trackId, track);
+
+                    // If we are still playing the same music
+                    String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
+                            queueItem.getDescription().getMediaId());
+                    if (trackId.equals(currentPlayingId)) {
+                        mSession.setMetadata(track);
+                    }
                 }
 
                 cachedAlbum = track.getString(MediaMetadata.METADATA_KEY_ALBUM);
             }
+        }
+    }
 
-            mMusicProvider.updateMusic(trackId, track);
+    /**
+     * Drop the album art bitmaps from the session metadata. The art is set again by
+     * updateMetadata() for the next music played.
+     */
+    private void trimSessionArt() {
+        MediaMetadata metadata = mSession.getController().getMetadata();
+        if (metadata == null || (metadata.getBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART) == null
+                && metadata.getBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON) == null)) {
+            return;
+        }
+        mSession.setMetadata(new MediaMetadata.Builder(metadata)
+                .putBitmap(MediaMetadata.METADATA_KEY_ALBUM_ART, null)
+                .putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, null)
+                .build());
+    }
 
-            // If we are still playing the same music
-            String currentPlayingId = MediaIDHelper.extractMusicIDFromMediaID(
-                    queueItem.getDescription().getMediaId());
-            if (trackId.equals(currentPlayingId)) {
-                mSession.setMetadata(track);
-            }
+    /**
+     * Keep only the part of the playing queue around the current music. Queue items keep
+     * their ids, so skipping to a queue item still finds it.
+     */
+    private void trimPlayingQueue() {
+        List<MediaSession.QueueItem> queue = mPlayingQueue;
+        if (queue == null || queue.size() <= QUEUE_TRIM_BEHIND + QUEUE_TRIM_AHEAD + 1) {
+            return;
         }
+        int current = Math.max(0, Math.min(mCurrentIndexOnQueue, queue.size() - 1));
+        int from = Math.max(0, current - QUEUE_TRIM_BEHIND);
+        int to = Math.min(queue.size(), current + QUEUE_TRIM_AHEAD + 1);
+        LogHelper.i(TAG, "Trimming playing queue of ", queue.size(), " to ", to - from);
+        mPlayingQueue = new ArrayList<>(queue.subList(from, to));
+        mCurrentIndexOnQueue -= from;
+        mSession.setQueue(mPlayingQueue);
+        savePlayingQueue();
+    }
+
+    /**
+     * Save the playing queue, so it can be resumed after the service was stopped. Its
+     * playback state is saved by updatePlaybackState().
+     */
+    private void savePlayingQueue() {
+        PlayingQueueStore.Queue queue = PlayingQueueStore.Queue.of(mPlayingQueue, mQueueTitle);
+        mSavedQueueId = queue != null ? queue.id : 0;
+        if (queue != null) {
+            mQueueStore.saveQueue(queue);
+        }
+    }
+
+    /**
+     * Save the index in the saved playing queue, the position in the music and the repeat
+     * mode, with the metadata shown for the music until the catalog is loaded on resume.
+     */
+    private void savePlaybackState() {
+        if (mSavedQueueId == 0 || !QueueHelper.isIndexPlayable(mCurrentIndexOnQueue,
+                mPlayingQueue)) {
+            return;
+        }
+        String musicId = MediaIDHelper.extractMusicIDFromMediaID(
+                mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId());
+        MediaMetadata metadata = mSession.getController().getMetadata();
+        if (metadata != null && !musicId.equals(
+                metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID))) {
+            metadata = null;
+        }
+        long position = mPlayback.getCurrentStreamPosition();
+        mQueueStore.saveState(PlayingQueueStore.State.of(mSavedQueueId, mCurrentIndexOnQueue,
+                Math.max(0, position), mRepeatMode, musicId, metadata));
+    }
+
+    /**
+     * Resume the saved playing queue at the saved music and position, without waiting for
+     * the catalog. Until it is loaded, queue items only have media IDs and the music is shown
+     * as it was saved.
+     *
+     * @return true if the saved playing queue was resumed.
+     */
+    private boolean restorePlayingQueue() {
+        final PlayingQueueStore.State state = mQueueStore.readState();
+        final PlayingQueueStore.Queue queue = state != null ? mQueueStore.readQueue() : null;
+        if (queue == null || queue.id != state.queueId || state.index < 0
+                || state.index >= queue.musicIds.length) {
+            return false;
+        }
+        LogHelper.i(TAG, "Resuming saved queue of ", queue.musicIds.length, " musics at ",
+                state.index, " position=", state.position);
+
+        mPlayingQueue = QueueHelper.getPlayingQueue(queue.categories, queue.musicIds,
+                mMusicProvider);
+        mSession.setQueue(mPlayingQueue);
+        mQueueTitle = queue.title;
+        mSession.setQueueTitle(mQueueTitle);
+        mSavedQueueId = queue.id;
+        mCurrentIndexOnQueue = state.index;
+        mRepeatMode = state.repeatMode;
+
+        if (!mMusicProvider.isInitialized()) {
+            mRestoredState = state;
+            final List<MediaSession.QueueItem> restored = mPlayingQueue;
+            mMusicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+                @Override
+                public void onMusicCatalogReady(boolean success) {
+                    mRestoredState = null;
+                    // Fill in the queue items, unless another queue is playing meanwhile
+                    if (success && mPlayingQueue == restored) {
+                        mPlayingQueue = QueueHelper.getPlayingQueue(queue.categories,
+                                queue.musicIds, mMusicProvider);
+                        mSession.setQueue(mPlayingQueue);
+                        updateMetadata();
+                    }
+                }
+            });
+        }
+
+        // Playback continues from the saved position when the music is played
+        mPlayback.setCurrentMediaId(
+                mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId());
+        mPlayback.setCurrentStreamPosition((int) state.position);
+        mResumeSavedPosition = state.position > 0;
+        return true;
     }
 
     /**
@@ -1005,6 +1428,8 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         if (state == PlaybackState.STATE_PLAYING || state == PlaybackState.STATE_PAUSED) {
             mMediaNotificationManager.startNotification();
         }
+
+        savePlaybackState();
     }
 
     private void setCustomAction(PlaybackState.Builder stateBuilder) {
@@ -1070,6 +1495,11 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
     @Override
     public void onCompletion() {
         LogHelper.d(TAG, "onCompletion");
+        if (QueueHelper.isIndexPlayable(mCurrentIndexOnQueue, mPlayingQueue)
+                && mMusicProvider.recordPlayCompleted(MediaIDHelper.extractMusicIDFromMediaID(
+                        mPlayingQueue.get(mCurrentIndexOnQueue).getDescription().getMediaId()))) {
+            notifyParentChanged(MEDIA_ID_MUSICS_MOST_PLAYED);
+        }
         // The media player finished playing the current song, so we go ahead
         // and start the next.
         if (mPlayingQueue != null && !mPlayingQueue.isEmpty()) {
@@ -1112,6 +1542,7 @@ public class MusicService extends MediaBrowserService implements Playback.Callba
         if (index > -1) {
             mCurrentIndexOnQueue = index;
             mPlayingQueue = queue;
+            savePlayingQueue();
             updateMetadata();
         }
     }
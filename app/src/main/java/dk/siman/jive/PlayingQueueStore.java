@@ -0,0 +1,408 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive;
+
+import android.content.Context;
+import android.media.MediaMetadata;
+import android.media.session.MediaSession;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import dk.siman.jive.utils.LogHelper;
+import dk.siman.jive.utils.MediaID;
+import dk.siman.jive.utils.MediaIDHelper;
+
+/**
+ * The playing queue and the playback state, saved in the app's files dir so playback can
+ * resume after the service or the process was stopped, without loading the catalog first.
+ *
+ * The queue is saved as the music ids of its tracks and the category they were queued from,
+ * only when it changes. The playback state is small and saved on every state change; it names
+ * the queue it belongs to, so it is never resumed on another queue. Files are written in the
+ * background, each to a temporary file that is renamed, and a save replaces an earlier one
+ * that was not written yet. Writes run on a thread of their own, so they never wait behind
+ * a catalog scan.
+ */
+final class PlayingQueueStore {
+
+    private static final String TAG = LogHelper.makeLogTag(PlayingQueueStore.class);
+
+    private static final String QUEUE_FILE_NAME = "playing_queue.bin";
+    private static final String STATE_FILE_NAME = "playing_state.bin";
+    private static final int MAGIC = 0x4a495651; // "JIVQ"
+    private static final int VERSION = 1;
+
+    private static final Random RANDOM = new Random();
+
+    static final class Queue {
+        // Identifies the queue, see State.queueId; never 0
+        final long id;
+        final String title;
+        // Category hierarchy the tracks were queued from
+        final String[] categories;
+        final long[] musicIds;
+
+        Queue(long id, String title, String[] categories, long[] musicIds) {
+            this.id = id;
+            this.title = title;
+            this.categories = categories;
+            this.musicIds = musicIds;
+        }
+
+        /**
+         * @return the queue to save for the queue items, or null if it cannot be saved.
+         */
+        static Queue of(List<MediaSession.QueueItem> items, String title) {
+            if (items == null || items.isEmpty()) {
+                return null;
+            }
+            String[] categories = MediaID.parse(
+                    items.get(0).getDescription().getMediaId()).getHierarchy();
+            long[] musicIds = new long[items.size()];
+            try {
+                for (int i = 0; i < musicIds.length; i++) {
+                    musicIds[i] = Long.parseLong(MediaIDHelper.extractMusicIDFromMediaID(
+                            items.get(i).getDescription().getMediaId()));
+                }
+            } catch (NumberFormatException e) {
+                LogHelper.w(TAG, "Not saving a queue of other than MediaStore tracks");
+                return null;
+            }
+            long id;
+            do {
+                id = RANDOM.nextLong();
+            } while (id == 0); // 0 is no saved queue
+            return new Queue(id, title, categories, musicIds);
+        }
+    }
+
+    static final class State {
+        final long queueId;
+        final int index;
+        final long position;
+        final int repeatMode;
+        // The music at the index, as it was shown
+        final String musicId;
+        final String title;
+        final String artist;
+        final String album;
+        final String albumArtUri;
+        final long duration;
+
+        State(long queueId, int index, long position, int repeatMode, String musicId,
+              String title, String artist, String album, String albumArtUri, long duration) {
+            this.queueId = queueId;
+            this.index = index;
+            this.position = position;
+            this.repeatMode = repeatMode;
+            this.musicId = musicId;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.albumArtUri = albumArtUri;
+            this.duration = duration;
+        }
+
+        /**
+         * @param metadata the metadata shown for the music at the index, or null.
+         */
+        static State of(long queueId, int index, long position, int repeatMode,
+                        String musicId, MediaMetadata metadata) {
+            if (metadata == null) {
+                return new State(queueId, index, position, repeatMode, musicId,
+                        null, null, null, null, 0);
+            }
+            return new State(queueId, index, position, repeatMode, musicId,
+                    metadata.getString(MediaMetadata.METADATA_KEY_TITLE),
+                    metadata.getString(MediaMetadata.METADATA_KEY_ARTIST),
+                    metadata.getString(MediaMetadata.METADATA_KEY_ALBUM),
+                    metadata.getString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI),
+                    metadata.getLong(MediaMetadata.METADATA_KEY_DURATION));
+        }
+
+        /**
+         * @return metadata of the music at the index, as it was shown.
+         */
+        MediaMetadata toMetadata() {
+            return new MediaMetadata.Builder()
+                    .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, musicId)
+                    .putString(MediaMetadata.METADATA_KEY_TITLE, title)
+                    .putString(MediaMetadata.METADATA_KEY_ARTIST, artist)
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM, album)
+                    .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, albumArtUri)
+                    .putLong(MediaMetadata.METADATA_KEY_DURATION, duration)
+                    .build();
+        }
+    }
+
+    private final File mQueueFile;
+    private final File mStateFile;
+    private final HandlerThread mWriterThread;
+    private final Handler mWriter;
+    // Saves not written yet, guarded by this
+    private Queue mPendingQueue;
+    private State mPendingState;
+    private boolean mWriteScheduled;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    PlayingQueueStore(Context context) {
+        mQueueFile = new File(context.getFilesDir(), QUEUE_FILE_NAME);
+        mStateFile = new File(context.getFilesDir(), STATE_FILE_NAME);
+        mWriterThread = new HandlerThread("PlayingQueueStore",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+    }
+
+    /**
+     * Stop the writer thread once the saves made so far are written. Nothing can be saved
+     * afterwards.
+     */
+    void release() {
+        mWriterThread.quitSafely();
+    }
+
+    synchronized void saveQueue(Queue queue) {
+        mPendingQueue = queue;
+        scheduleWrite();
+    }
+
+    synchronized void saveState(State state) {
+        mPendingState = state;
+        scheduleWrite();
+    }
+
+    /**
+     * @return the saved queue, or null if there is none or it cannot be used.
+     */
+    Queue readQueue() {
+        synchronized (this) {
+            if (mPendingQueue != null) {
+                return mPendingQueue;
+            }
+        }
+        DataInputStream in = open(mQueueFile);
+        if (in == null) {
+            return null;
+        }
+        try {
+            long id = in.readLong();
+            String title = readString(in);
+            String[] categories = new String[in.readInt()];
+            for (int i = 0; i < categories.length; i++) {
+                categories[i] = in.readUTF();
+            }
+            long[] musicIds = new long[in.readInt()];
+            for (int i = 0; i < musicIds.length; i++) {
+                musicIds[i] = in.readLong();
+            }
+            return new Queue(id, title, categories, musicIds);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read the playing queue");
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * @return the saved playback state, or null if there is none or it cannot be used.
+     */
+    State readState() {
+        synchronized (this) {
+            if (mPendingState != null) {
+                return mPendingState;
+            }
+        }
+        DataInputStream in = open(mStateFile);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return new State(in.readLong(), in.readInt(), in.readLong(), in.readInt(),
+                    readString(in), readString(in), readString(in), readString(in),
+                    readString(in), in.readLong());
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read the playback state");
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!mWriteScheduled) {
+            mWriteScheduled = true;
+            mWriter.post(mWriteRunnable);
+        }
+    }
+
+    private void writePending() {
+        Queue queue;
+        State state;
+        synchronized (this) {
+            queue = mPendingQueue;
+            state = mPendingState;
+            mWriteScheduled = false;
+        }
+        if (queue != null) {
+            writeQueue(queue);
+        }
+        if (state != null) {
+            writeState(state);
+        }
+        synchronized (this) {
+            // Keep what was saved meanwhile for the next write
+            if (mPendingQueue == queue) {
+                mPendingQueue = null;
+            }
+            if (mPendingState == state) {
+                mPendingState = null;
+            }
+        }
+    }
+
+    private void writeQueue(Queue queue) {
+        File tmp = new File(mQueueFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = create(tmp);
+            out.writeLong(queue.id);
+            writeString(out, queue.title);
+            out.writeInt(queue.categories.length);
+            for (String category : queue.categories) {
+                out.writeUTF(category);
+            }
+            out.writeInt(queue.musicIds.length);
+            for (long musicId : queue.musicIds) {
+                out.writeLong(musicId);
+            }
+            out.close();
+            out = null;
+            rename(tmp, mQueueFile);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write the playing queue");
+            close(out);
+            tmp.delete();
+        }
+    }
+
+    private void writeState(State state) {
+        File tmp = new File(mStateFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = create(tmp);
+            out.writeLong(state.queueId);
+            out.writeInt(state.index);
+            out.writeLong(state.position);
+            out.writeInt(state.repeatMode);
+            writeString(out, state.musicId);
+            writeString(out, state.title);
+            writeString(out, state.artist);
+            writeString(out, state.album);
+            writeString(out, state.albumArtUri);
+            out.writeLong(state.duration);
+            out.close();
+            out = null;
+            rename(tmp, mStateFile);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write the playback state");
+            close(out);
+            tmp.delete();
+        }
+    }
+
+    private static DataOutputStream create(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        return out;
+    }
+
+    /**
+     * @return the file positioned after its header, or null if it is missing or of another
+     *         format.
+     */
+    private static DataInputStream open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LogHelper.i(TAG, "Ignoring ", file.getName(), " with unknown format");
+                close(in);
+                return null;
+            }
+            return in;
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read ", file.getName());
+            close(in);
+            return null;
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Could not close");
+            }
+        }
+    }
+}
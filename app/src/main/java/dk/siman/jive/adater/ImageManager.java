@@ -16,6 +16,7 @@
 package dk.siman.jive.adater;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -25,18 +26,23 @@ import android.widget.ImageView;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Stack;
 
 import dk.siman.jive.R;
 import dk.siman.jive.utils.ArtHelper;
 import dk.siman.jive.utils.LogHelper;
+import dk.siman.jive.utils.MemoryGovernor;
 
-public class ImageManager {
+public class ImageManager implements MemoryGovernor.Trimmable {
 
     private static final String TAG = LogHelper.makeLogTag(ImageManager.class);
 
-    private HashMap<String, Bitmap> imageMap = new HashMap<String, Bitmap>();
+    // Written by the loader thread, read and trimmed on the UI thread
+    private final Map<String, Bitmap> imageMap =
+            Collections.synchronizedMap(new HashMap<String, Bitmap>());
 
     private File cacheDir;
     private Context mContext;
@@ -52,6 +58,27 @@ public class ImageManager {
         cacheDir = context.getCacheDir();
         if(!cacheDir.exists())
             cacheDir.mkdirs();
+
+        MemoryGovernor.getInstance().register(this);
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        long bytes = 0;
+        synchronized (imageMap) {
+            for (Bitmap bitmap : imageMap.values()) {
+                bytes += bitmap.getAllocationByteCount();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        // The bitmaps are decoded again from the cache dir when shown
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            imageMap.clear();
+        }
     }
 
     public void displayImage(String url, String parentId, Activity activity, ImageView imageView) {
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import android.content.Context;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * Versioned binary snapshot of the music catalog, its category indexes and album art,
+ * stored in the app's files dir so the catalog can be restored on the next start without
+ * querying MediaStore.
+ *
+ * The file is written to a temporary file and renamed, and read back through a read-only
+ * memory mapping. Any mismatch in magic or version makes {@link #read()} return null.
+ */
+class CatalogCache {
+
+    private static final String TAG = LogHelper.makeLogTag(CatalogCache.class);
+
+    private static final String FILE_NAME = "catalog.bin";
+    private static final int MAGIC = 0x4a495645; // "JIVE"
+    private static final int VERSION = 5;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+
+    /**
+     * Content of a catalog file.
+     */
+    static class Snapshot {
+        final long fingerprint;
+        final TrackTable table;
+        // Bucket keys to rows of the table, one map per index passed to write()
+        final List<Map<String, int[]>> indexes;
+        final AlbumArtIndex albumArt;
+
+        private Snapshot(long fingerprint, TrackTable table,
+                         List<Map<String, int[]>> indexes, AlbumArtIndex albumArt) {
+            this.fingerprint = fingerprint;
+            this.table = table;
+            this.indexes = indexes;
+            this.albumArt = albumArt;
+        }
+    }
+
+    CatalogCache(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Read the snapshot, or return null if there is none or it cannot be used.
+     */
+    Snapshot read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                LogHelper.i(TAG, "Ignoring catalog cache with unknown format");
+                return null;
+            }
+            long fingerprint = buffer.getLong();
+
+            int trackCount = buffer.getInt();
+            TrackTable.Builder tracks = new TrackTable.Builder(trackCount);
+            for (int i = 0; i < trackCount; i++) {
+                long id = buffer.getLong();
+                Music music = new Music(id, getString(buffer));
+                music.setSongId(Long.toString(id));
+                music.setTitle(getString(buffer));
+                music.setArtist(getString(buffer));
+                music.setAlbum(getString(buffer));
+                music.setAlbumArtist(getString(buffer));
+                String[] genres = new String[buffer.getInt()];
+                for (int j = 0; j < genres.length; j++) {
+                    genres[j] = getString(buffer);
+                }
+                music.setGenres(genres);
+                music.setAlbumId(buffer.getLong());
+                music.setYear(buffer.getInt());
+                music.setTrackNumber(buffer.getInt());
+                music.setDuration(buffer.getLong());
+                music.setDateAdded(buffer.getLong());
+                music.setDateModified(buffer.getLong());
+                int row = tracks.add(music);
+                if (buffer.get() != 0) {
+                    tracks.delete(row);
+                }
+            }
+
+            int indexCount = buffer.getInt();
+            List<Map<String, int[]>> indexes = new ArrayList<>(indexCount);
+            for (int i = 0; i < indexCount; i++) {
+                int bucketCount = buffer.getInt();
+                Map<String, int[]> index = new HashMap<>(bucketCount * 2);
+                for (int j = 0; j < bucketCount; j++) {
+                    String key = getString(buffer);
+                    int[] rows = new int[buffer.getInt()];
+                    for (int k = 0; k < rows.length; k++) {
+                        rows[k] = buffer.getInt();
+                        if (rows[k] < 0 || rows[k] >= trackCount) {
+                            throw new IOException("Track row out of range: " + rows[k]);
+                        }
+                    }
+                    index.put(key, rows);
+                }
+                indexes.add(index);
+            }
+
+            int albumCount = buffer.getInt();
+            AlbumArtIndex.Builder albumArt = new AlbumArtIndex.Builder(albumCount);
+            for (int i = 0; i < albumCount; i++) {
+                albumArt.add(buffer.getLong(), getString(buffer), buffer.getInt(),
+                        buffer.getInt());
+            }
+            return new Snapshot(fingerprint, tracks.build(), indexes, albumArt.build());
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not read catalog cache");
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Replace the snapshot with the given table, the indexes built over it and album art.
+     */
+    synchronized void write(long fingerprint, TrackTable table, AlbumArtIndex albumArt,
+                            CategoryIndex... indexes) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fingerprint);
+
+            out.writeInt(table.size());
+            for (int row = 0; row < table.size(); row++) {
+                out.writeLong(table.getId(row));
+                putString(out, table.getFilePath(row));
+                putString(out, table.getTitle(row));
+                putString(out, table.getArtist(row));
+                putString(out, table.getAlbum(row));
+                putString(out, table.getAlbumArtist(row));
+                String[] genres = table.getGenres(row);
+                out.writeInt(genres.length);
+                for (String genre : genres) {
+                    putString(out, genre);
+                }
+                out.writeLong(table.getAlbumId(row));
+                out.writeInt(table.getYear(row));
+                out.writeInt(table.getTrackNumber(row));
+                out.writeLong(table.getDuration(row));
+                out.writeLong(table.getDateAdded(row));
+                out.writeLong(table.getDateModified(row));
+                out.writeBoolean(table.isDeleted(row));
+            }
+
+            out.writeInt(indexes.length);
+            for (CategoryIndex index : indexes) {
+                Map<String, int[]> buckets = new HashMap<>();
+                for (String key : index.keySet()) {
+                    int[] bucket = index.get(key);
+                    if (bucket != null) {
+                        buckets.put(key, bucket);
+                    }
+                }
+                out.writeInt(buckets.size());
+                for (Map.Entry<String, int[]> entry : buckets.entrySet()) {
+                    putString(out, entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    for (int row : entry.getValue()) {
+                        out.writeInt(row);
+                    }
+                }
+            }
+
+            out.writeInt(albumArt.size());
+            for (int i = 0; i < albumArt.size(); i++) {
+                out.writeLong(albumArt.getAlbumId(i));
+                putString(out, albumArt.getPath(i));
+                out.writeInt(albumArt.getWidth(i));
+                out.writeInt(albumArt.getHeight(i));
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Could not rename " + tmp + " to " + mFile);
+            }
+            LogHelper.d(TAG, "Wrote catalog cache, size=", mFile.length());
+        } catch (IOException | RuntimeException e) {
+            LogHelper.w(TAG, e, "Could not write catalog cache");
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
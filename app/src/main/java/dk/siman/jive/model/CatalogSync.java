@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.MediaStore;
+
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * Keeps the catalog of a {@link MusicProvider} in sync with MediaStore while it is running.
+ *
+ * Changes to the audio media table are observed, and a burst of changes (like the media scanner
+ * going through a new folder) is collapsed into a single {@link MusicProvider#syncWithMediaStore()}
+ * run, once MediaStore has been quiet for {@link #SYNC_DELAY_MS}. Syncs run one at a time
+ * on a background thread.
+ */
+class CatalogSync {
+
+    private static final String TAG = LogHelper.makeLogTag(CatalogSync.class);
+
+    private static final long SYNC_DELAY_MS = 2000;
+
+    private final MusicProvider mProvider;
+    private final ContentResolver mContentResolver;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ContentObserver mObserver;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                mProvider.syncWithMediaStore();
+            } catch (RuntimeException e) {
+                LogHelper.e(TAG, e, "Could not sync catalog");
+            }
+        }
+    };
+
+    CatalogSync(MusicProvider provider, ContentResolver resolver) {
+        mProvider = provider;
+        mContentResolver = resolver;
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread("CatalogSync", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                LogHelper.d(TAG, "MediaStore changed, syncing in ", SYNC_DELAY_MS, "ms");
+                mHandler.removeCallbacks(mSyncRunnable);
+                mHandler.postDelayed(mSyncRunnable, SYNC_DELAY_MS);
+            }
+        };
+        // Genre edits don't show in the tracks the sync compares, so they are not observed;
+        // the next full scan picks them up
+        mContentResolver.registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+    }
+
+    synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mContentResolver.unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mSyncRunnable);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        mObserver = null;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.siman.jive.provider.MusicDB;
+import dk.siman.jive.provider.MusicDBDataSource;
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * Media ids of the favorite tracks, shared by every {@link MusicProvider} of the process.
+ *
+ * The favorites table is read once, in the background as soon as the store is created, and
+ * lookups are answered from memory afterwards. Changes are applied in memory immediately and
+ * written behind by a single writer thread: changes made within {@link #WRITE_DELAY_MS} of
+ * each other are written in one transaction, and only the last change of a media id is
+ * written.
+ */
+class FavoriteStore {
+
+    private static final String TAG = LogHelper.makeLogTag(FavoriteStore.class);
+
+    // Changes made within this time are written together
+    private static final long WRITE_DELAY_MS = 100;
+
+    private static FavoriteStore mInstance = null;
+
+    private final MusicDBDataSource mDataSource;
+    private final Set<String> mFavorites =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Counts the changes made to the favorites
+    private final AtomicInteger mVersion = new AtomicInteger();
+    private volatile boolean mLoaded;
+
+    private final HandlerThread mWriterThread;
+    private final Handler mWriter;
+    // Changes not written yet, by media id: true to add the favorite, false to remove it.
+    // Guards the in memory changes as well, so they are queued in the order they are made.
+    private final Map<String, Boolean> mPendingWrites = new LinkedHashMap<>();
+    // Changes queued for writing so far, and how many of them were written
+    private long mQueuedCount;
+    private long mWrittenCount;
+    // Writes that failed so far; their changes are pending again
+    private long mFailedWrites;
+    private boolean mWriteScheduled;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    private FavoriteStore(Context context) {
+        mDataSource = new MusicDBDataSource(context.getApplicationContext());
+        mWriterThread = new HandlerThread("FavoriteStore", Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    static synchronized FavoriteStore getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new FavoriteStore(context);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Write the pending changes, stop the writer thread and forget the store, so the next
+     * getInstance() reads the favorites of the context given then.
+     */
+    static synchronized void releaseInstance() {
+        if (mInstance != null) {
+            mInstance.release();
+            mInstance = null;
+        }
+    }
+
+    private void release() {
+        // Let the writer thread finish the writes that are due, so none overlaps the last one
+        mWriterThread.quitSafely();
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Whatever the writer thread did not write yet is written here
+        writePending();
+        mDataSource.close();
+    }
+
+    /**
+     * Read the favorites table, if it was not read yet. Only waits for the disk if the
+     * favorites are needed before the read started on creation is done.
+     */
+    void load() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            for (MusicDB musicDB : mDataSource.getAllFavorites()) {
+                if (musicDB.getMediaId() != null) {
+                    mFavorites.add(musicDB.getMediaId());
+                }
+            }
+            mLoaded = true;
+            LogHelper.d(TAG, "Loaded ", mFavorites.size(), " favorites");
+        }
+    }
+
+    boolean contains(String mediaId) {
+        load();
+        return mediaId != null && mFavorites.contains(mediaId);
+    }
+
+    /**
+     * @return a live, read only view of the favorite media ids.
+     */
+    Set<String> getAll() {
+        load();
+        return Collections.unmodifiableSet(mFavorites);
+    }
+
+    /**
+     * @return a number that changes whenever a favorite is added or removed.
+     */
+    int getVersion() {
+        return mVersion.get();
+    }
+
+    void set(String mediaId, boolean favorite) {
+        load();
+        synchronized (mPendingWrites) {
+            boolean changed = favorite ? mFavorites.add(mediaId) : mFavorites.remove(mediaId);
+            if (!changed) {
+                return;
+            }
+            mVersion.incrementAndGet();
+            // Replaces a change of the media id that is not written yet
+            mPendingWrites.put(mediaId, favorite);
+            mQueuedCount++;
+            if (!mWriteScheduled) {
+                mWriteScheduled = true;
+                mWriter.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Start writing the pending changes now, instead of after {@link #WRITE_DELAY_MS}.
+     */
+    void flush() {
+        synchronized (mPendingWrites) {
+            if (mWrittenCount == mQueuedCount) {
+                return;
+            }
+            mWriteScheduled = true;
+            mWriter.removeCallbacks(mWriteRunnable);
+            mWriter.post(mWriteRunnable);
+        }
+    }
+
+    /**
+     * Write the pending changes now, and wait until every change made before the call was
+     * written. Must not be called on the writer thread.
+     *
+     * @return false if the changes were not written within the timeout, or writing them
+     *         failed. Changes that failed to be written stay pending, and are written again
+     *         with the next change or flush.
+     */
+    boolean awaitWritten(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long target;
+        long failedWrites;
+        synchronized (mPendingWrites) {
+            target = mQueuedCount;
+            failedWrites = mFailedWrites;
+        }
+        flush();
+        synchronized (mPendingWrites) {
+            while (mWrittenCount < target) {
+                if (mFailedWrites != failedWrites) {
+                    return false;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mPendingWrites, remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Write the pending changes in one transaction. Runs on the writer thread, or once it
+     * has stopped.
+     */
+    private void writePending() {
+        Map<String, Boolean> writes;
+        long queuedCount;
+        synchronized (mPendingWrites) {
+            writes = new LinkedHashMap<>(mPendingWrites);
+            mPendingWrites.clear();
+            queuedCount = mQueuedCount;
+            mWriteScheduled = false;
+        }
+        if (!writes.isEmpty()) {
+            try {
+                mDataSource.writeFavorites(writes);
+                LogHelper.d(TAG, "Wrote ", writes.size(), " favorite changes");
+            } catch (RuntimeException e) {
+                LogHelper.e(TAG, e, "Could not write ", writes.size(), " favorite changes");
+                synchronized (mPendingWrites) {
+                    // Pending again, ahead of the changes made meanwhile, which replace them
+                    writes.putAll(mPendingWrites);
+                    mPendingWrites.clear();
+                    mPendingWrites.putAll(writes);
+                    mFailedWrites++;
+                    mPendingWrites.notifyAll();
+                }
+                return;
+            }
+        }
+        synchronized (mPendingWrites) {
+            mWrittenCount = queuedCount;
+            mPendingWrites.notifyAll();
+        }
+    }
+}
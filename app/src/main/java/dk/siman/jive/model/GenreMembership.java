@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.LongSparseArray;
+
+import java.util.Arrays;
+
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * Song to genre membership of the whole library, keyed by MediaStore ids.
+ *
+ * All song/genre pairs are read with a single query on the genre map of MediaStore. Only if
+ * that URI is not supported by the device, it falls back to one query per genre.
+ */
+class GenreMembership {
+
+    private static final String TAG = LogHelper.makeLogTag(GenreMembership.class);
+
+    // Every row of the audio_genres_map table, served by MediaProvider but not exposed
+    // as a constant in MediaStore.
+    private static final Uri ALL_MEMBERS_URI =
+            Uri.parse("content://media/external/audio/genres/all/members");
+
+    private static final String[] NO_GENRES = new String[0];
+
+    private final LongSparseArray<String> mGenreNames;
+    private final LongSparseArray<long[]> mGenresBySong;
+
+    private GenreMembership(LongSparseArray<String> genreNames,
+                            LongSparseArray<long[]> genresBySong) {
+        mGenreNames = genreNames;
+        mGenresBySong = genresBySong;
+    }
+
+    /**
+     * Read genre names and memberships from MediaStore.
+     */
+    static GenreMembership query(ContentResolver resolver) {
+        long start = SystemClock.elapsedRealtime();
+
+        LongSparseArray<String> genreNames = new LongSparseArray<>();
+        Cursor cursor = resolver.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                new String[] { MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME },
+                null, null, MediaStore.Audio.Genres._ID);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                genreNames.append(cursor.getLong(0), cursor.getString(1));
+            }
+            cursor.close();
+        }
+
+        LongSparseArray<long[]> genresBySong = queryAllMembers(resolver);
+        int queries = 2;
+        if (genresBySong == null) {
+            genresBySong = queryMembersByGenre(resolver, genreNames);
+            queries = 1 + genreNames.size();
+        }
+
+        LogHelper.i(TAG, "Resolved genres of ", genresBySong.size(), " songs in ",
+                genreNames.size(), " genres with ", queries, " queries in ",
+                SystemClock.elapsedRealtime() - start, "ms");
+        return new GenreMembership(genreNames, genresBySong);
+    }
+
+    /**
+     * @return names of all genres the song belongs to, in genre id order. A name shared by
+     * several genres of the song is only returned once.
+     */
+    String[] getGenres(long songId) {
+        long[] genreIds = mGenresBySong.get(songId);
+        if (genreIds == null) {
+            return NO_GENRES;
+        }
+        String[] genres = new String[genreIds.length];
+        int count = 0;
+        for (long genreId : genreIds) {
+            String name = mGenreNames.get(genreId);
+            if (name != null && !contains(genres, count, name)) {
+                genres[count++] = name;
+            }
+        }
+        return count == genres.length ? genres : Arrays.copyOf(genres, count);
+    }
+
+    private static boolean contains(String[] names, int count, String name) {
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static LongSparseArray<long[]> queryAllMembers(ContentResolver resolver) {
+        Cursor cursor;
+        try {
+            cursor = resolver.query(ALL_MEMBERS_URI,
+                    new String[] {
+                            MediaStore.Audio.Genres.Members.AUDIO_ID,
+                            MediaStore.Audio.Genres.Members.GENRE_ID },
+                    null, null,
+                    MediaStore.Audio.Genres.Members.AUDIO_ID + ","
+                            + MediaStore.Audio.Genres.Members.GENRE_ID);
+        } catch (RuntimeException e) {
+            LogHelper.w(TAG, "Genre map query is not supported: ", e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        LongSparseArray<long[]> genresBySong = new LongSparseArray<>();
+        try {
+            // Rows are sorted by song, so new songs are appended at the end of the array
+            while (cursor.moveToNext()) {
+                addMember(genresBySong, cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return genresBySong;
+    }
+
+    private static LongSparseArray<long[]> queryMembersByGenre(ContentResolver resolver,
+            LongSparseArray<String> genreNames) {
+        LongSparseArray<long[]> genresBySong = new LongSparseArray<>();
+        for (int i = 0; i < genreNames.size(); i++) {
+            long genreId = genreNames.keyAt(i);
+            Uri uri = MediaStore.Audio.Genres.Members.getContentUri("external", genreId);
+            Cursor cursor = resolver.query(uri,
+                    new String[] { MediaStore.Audio.Genres.Members.AUDIO_ID }, null, null, null);
+            if (cursor == null) {
+                continue;
+            }
+            while (cursor.moveToNext()) {
+                addMember(genresBySong, cursor.getLong(0), genreId);
+            }
+            cursor.close();
+        }
+        return genresBySong;
+    }
+
+    private static void addMember(LongSparseArray<long[]> genresBySong, long songId,
+                                  long genreId) {
+        long[] genreIds = genresBySong.get(songId);
+        if (genreIds == null) {
+            genresBySong.put(songId, new long[] { genreId });
+            return;
+        }
+        for (long id : genreIds) {
+            if (id == genreId) {
+                return;
+            }
+        }
+        genreIds = Arrays.copyOf(genreIds, genreIds.length + 1);
+        genreIds[genreIds.length - 1] = genreId;
+        genresBySong.put(songId, genreIds);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+/**
+ * The music rows of a MediaStore query, as a {@link TrackSource}.
+ */
+class MediaStoreTrackSource implements TrackSource {
+
+    private static final String[] MUSIC_COLUMNS = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.YEAR,
+            MediaStore.Audio.Media.TRACK,
+            MediaStore.Audio.Media.DATA,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
+    private final Cursor mCursor;
+    private final GenreMembership mGenres;
+
+    /**
+     * Query the music tracks matching the selection.
+     *
+     * @param selection additional selection, or null for all music.
+     */
+    MediaStoreTrackSource(ContentResolver resolver, String selection, String sortOrder,
+                          GenreMembership genres) {
+        String musicsOnly = MediaStore.Audio.Media.IS_MUSIC + "=1";
+        mCursor = resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, MUSIC_COLUMNS,
+                selection == null ? musicsOnly : musicsOnly + " AND " + selection, null,
+                sortOrder);
+        mGenres = genres;
+    }
+
+    /**
+     * @return false if MediaStore could not be queried.
+     */
+    boolean isValid() {
+        return mCursor != null;
+    }
+
+    @Override
+    public int getCount() {
+        return mCursor == null ? 0 : mCursor.getCount();
+    }
+
+    @Override
+    public Music next() {
+        if (mCursor == null || !mCursor.moveToNext()) {
+            return null;
+        }
+        return readMusic(mCursor, mGenres);
+    }
+
+    @Override
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+    }
+
+    /**
+     * Create a song from the values on the current row of a cursor over MUSIC_COLUMNS.
+     */
+    private static Music readMusic(Cursor cursor, GenreMembership genres) {
+        String SONG_ID       = android.provider.MediaStore.Audio.Media._ID;
+        String SONG_TITLE    = android.provider.MediaStore.Audio.Media.TITLE;
+        String SONG_ARTIST   = android.provider.MediaStore.Audio.Media.ARTIST;
+        String SONG_ALBUM    = android.provider.MediaStore.Audio.Media.ALBUM;
+        String SONG_ALBUM_ID = android.provider.MediaStore.Audio.Media.ALBUM_ID;
+        String SONG_YEAR     = android.provider.MediaStore.Audio.Media.YEAR;
+        String SONG_TRACK_NO = android.provider.MediaStore.Audio.Media.TRACK;
+        String SONG_FILEPATH = android.provider.MediaStore.Audio.Media.DATA;
+        String SONG_DURATION = android.provider.MediaStore.Audio.Media.DURATION;
+        String SONG_ADDED    = android.provider.MediaStore.Audio.Media.DATE_ADDED;
+        String SONG_MODIFIED = android.provider.MediaStore.Audio.Media.DATE_MODIFIED;
+
+        Music music = new Music(cursor.getInt(cursor.getColumnIndex(SONG_ID)),
+                cursor.getString(cursor.getColumnIndex(SONG_FILEPATH)));
+
+        music.setSongId     (cursor.getString(cursor.getColumnIndex(SONG_ID)));
+        music.setTitle(cursor.getString(cursor.getColumnIndex(SONG_TITLE)));
+        music.setArtist(cursor.getString(cursor.getColumnIndex(SONG_ARTIST)));
+        music.setAlbum(cursor.getString(cursor.getColumnIndex(SONG_ALBUM)));
+        music.setAlbumId(cursor.getLong(cursor.getColumnIndex(SONG_ALBUM_ID)));
+        music.setAlbumArtist(cursor.getString(cursor.getColumnIndex(SONG_ARTIST)));
+        music.setYear       (cursor.getInt   (cursor.getColumnIndex(SONG_YEAR)));
+        music.setTrackNumber(cursor.getInt   (cursor.getColumnIndex(SONG_TRACK_NO)));
+        music.setDuration   (cursor.getInt   (cursor.getColumnIndex(SONG_DURATION)));
+        music.setDateAdded   (cursor.getLong (cursor.getColumnIndex(SONG_ADDED)));
+        music.setDateModified(cursor.getLong (cursor.getColumnIndex(SONG_MODIFIED)));
+
+        music.setGenres(genres.getGenres(music.getId()));
+        return music;
+    }
+}
@@ -17,49 +17,119 @@
 package dk.siman.jive.model;
 
 import android.Manifest;
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.media.MediaMetadata;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.v4.content.ContextCompat;
+import android.util.LongSparseArray;
 
-import com.google.common.collect.Ordering;
-
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-
-import dk.siman.jive.provider.MusicDB;
-import dk.siman.jive.provider.MusicDBDataSource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dk.siman.jive.provider.MySQLiteHelper;
 import dk.siman.jive.utils.ArtHelper;
 import dk.siman.jive.utils.LogHelper;
+import dk.siman.jive.utils.MemoryGovernor;
+
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALPHABET;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_MOST_PLAYED;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_RECENT;
+import static dk.siman.jive.utils.MediaIDHelper.createBrowseCategoryMediaID;
 
 /**
  * Utility class to get a list of MusicTrack's
  */
-public class MusicProvider {
+public class MusicProvider implements MemoryGovernor.Trimmable {
 
     private static final String TAG = LogHelper.makeLogTag(MusicProvider.class);
 
-    // Categorized caches for music track data:
-    private ConcurrentMap<String, MutableMediaMetadata> mMusicListById;
-    private ConcurrentMap<String, List<MediaMetadata>> mMusicListByFavorite;
-    private ConcurrentMap<String, List<MediaMetadata>> mMusicListByGenre;
-    private ConcurrentMap<String, List<MediaMetadata>> mMusicListByArtist;
-    private ConcurrentMap<String, List<MediaMetadata>> mMusicListByAlbum;
-    private ConcurrentMap<String, List<MediaMetadata>> mMusicListByAlphabet;
-
-    private final MusicDBDataSource datasource;
+    // Number of tracks kept as ready built MediaMetadata, see getMetadata()
+    private static final int METADATA_CACHE_SIZE = 256;
+    // Rough size of a MediaMetadata built from the catalog, without bitmaps
+    private static final int METADATA_BYTES = 1024;
+
+    // Maximum number of tracks returned by a search
+    private static final int MAX_SEARCH_RESULTS = 500;
+
+    // Index builds run in parallel, on at most one thread per core and at most four threads.
+    // The index tasks of a build (seven of them) queue up on those rather than taking every
+    // core of the device.
+    private static final int INDEX_THREADS =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    private static final ExecutorService INDEX_EXECUTOR = newIndexExecutor();
+
+    // Maximum number of ids in one "_ID IN (...)" selection of a sync
+    private static final int SYNC_QUERY_SIZE = 500;
+
+    // Changed tracks beyond this part of the catalog are synced with a full scan
+    private static final int SYNC_RESCAN_DIVISOR = 2;
+
+    // Browse parents listing the categories and their tracks
+    private static final List<String> CATEGORY_ROOTS = Collections.unmodifiableList(
+            Arrays.asList(MEDIA_ID_MUSICS_BY_FAVORITE, MEDIA_ID_MUSICS_BY_GENRE,
+                    MEDIA_ID_MUSICS_BY_ARTIST, MEDIA_ID_MUSICS_BY_ALBUM,
+                    MEDIA_ID_MUSICS_BY_ALPHABET, MEDIA_ID_MUSICS_MOST_PLAYED,
+                    MEDIA_ID_MUSICS_RECENT));
+
+    private static final Uri ART_CONTENT_URI = Uri.parse("content://media/external/audio/albumart");
+
+    // The current catalog snapshot. Readers take it once per call and use only that one.
+    private final AtomicReference<Catalog> mCatalog = new AtomicReference<>(
+            new Catalog(0, TrackTable.EMPTY, Indexes.BY_GENRE, Indexes.BY_ARTIST,
+                    Indexes.BY_ALBUM, Indexes.BY_ALPHABET, null, null, null,
+                    AlbumArtIndex.EMPTY));
+
+    // Metadata set through updateMusic(), like album art bitmaps, by media id. Only returned by
+    // getMusic(), browse and queue lists are built from the catalog alone.
+    private final ConcurrentMap<String, MediaMetadata> mUpdatedMetadata;
+    // Metadata built for the catalog version mMetadataCacheVersion
+    private final Map<String, MediaMetadata> mMetadataCache;
+    private long mMetadataCacheVersion;
+
+    private final FavoriteStore mFavorites;
+    private final PlayHistory mPlayHistory;
+    private final CatalogCache mCatalogCache;
+    // MediaStore fingerprint the loaded catalog was built from, see queryFingerprint()
+    private volatile long mFingerprint;
+    // Catalog of the last MediaStore scan, until it is written to the catalog cache
+    private Catalog mUnsavedCatalog;
+    private CatalogListener mCatalogListener;
+    private final CatalogSync mCatalogSync;
 
     private final ContentResolver mContentResolver;
     private final Context mContext;
@@ -69,21 +139,72 @@ public class MusicProvider {
     }
 
     private volatile State mCurrentState = State.NON_INITIALIZED;
+    // True while a first MediaStore scan has published part of the catalog
+    private volatile boolean mPartial;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     public interface Callback {
         void onMusicCatalogReady(boolean success);
     }
 
+    public interface CatalogListener {
+        /**
+         * Called on the main thread when the catalog content changed after it was first
+         * reported ready.
+         *
+         * @param parentMediaIds the browse parents whose children changed.
+         */
+        void onMusicCatalogChanged(Collection<String> parentMediaIds);
+
+        /**
+         * Called on the main thread when more of the catalog is available during the first
+         * load, before the catalog is reported ready.
+         */
+        void onMusicCatalogProgress();
+    }
+
     public MusicProvider(ContentResolver cr, Context cn) {
-        mMusicListByFavorite = new ConcurrentHashMap<>();
-        mMusicListByGenre = new ConcurrentHashMap<>();
-        mMusicListByArtist = new ConcurrentHashMap<>();
-        mMusicListByAlbum = new ConcurrentHashMap<>();
-        mMusicListByAlphabet = new ConcurrentHashMap<>();
-        mMusicListById = new ConcurrentHashMap<>();
+        mUpdatedMetadata = new ConcurrentHashMap<>();
+        mMetadataCache = new LinkedHashMap<String, MediaMetadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MediaMetadata> eldest) {
+                return size() > METADATA_CACHE_SIZE;
+            }
+        };
         mContentResolver = cr;
         mContext = cn;
-        datasource = new MusicDBDataSource(mContext);
+        mFavorites = FavoriteStore.getInstance(mContext);
+        mPlayHistory = PlayHistory.getInstance(mContext);
+        mCatalogCache = new CatalogCache(mContext);
+        mCatalogSync = new CatalogSync(this, mContentResolver);
+        MemoryGovernor.getInstance().register(this);
+    }
+
+    /**
+     * Release the stores shared by the MusicProviders of the process, the favorites and the
+     * play history, after writing what is pending. The next MusicProvider opens them again
+     * for its own context, which is how each test starts from its own files and database.
+     */
+    public static void releaseSharedStores() {
+        FavoriteStore.releaseInstance();
+        PlayHistory.releaseInstance();
+        MySQLiteHelper.releaseInstance();
+    }
+
+    public void setCatalogListener(CatalogListener listener) {
+        mCatalogListener = listener;
+    }
+
+    /**
+     * Start following MediaStore changes, see {@link #syncWithMediaStore()}.
+     */
+    public void startSync() {
+        mCatalogSync.start();
+    }
+
+    public void stopSync() {
+        mCatalogSync.stop();
     }
 
     /**
@@ -92,159 +213,241 @@ public class MusicProvider {
      * @return genres
      */
     public Iterable<String> getFavorites() {
-        if (mCurrentState != State.INITIALIZED) {
+        if (!isBrowsable()) {
             return Collections.emptyList();
         }
-        buildListsByFavorites();
-        return mMusicListByFavorite.keySet();
+        TrackTable table = mCatalog.get().tracks;
+        List<String> favorites = new ArrayList<>();
+        for (String musicId : mFavorites.getAll()) {
+            if (table.rowOf(musicId) != TrackTable.NO_ROW) {
+                favorites.add(musicId);
+            }
+        }
+        return favorites;
     }
 
     /**
-     * Get an iterator over the list of genres
+     * Get the list of genres, in case insensitive order
      *
      * @return genres
      */
-    public Iterable<String> getGenres() {
-        if (mCurrentState != State.INITIALIZED) {
+    public List<String> getGenres() {
+        if (!isBrowsable()) {
             return Collections.emptyList();
         }
-        return mMusicListByGenre.keySet();
+        return mCatalog.get().byGenre.sortedKeys();
     }
 
     /**
-     * Get an iterator over the list of artist
+     * Get the list of artists, in case insensitive order
      *
      * @return artists
      */
-    public Iterable<String> getArtists() {
-        if (mCurrentState != State.INITIALIZED) {
+    public List<String> getArtists() {
+        if (!isBrowsable()) {
             return Collections.emptyList();
         }
-        return mMusicListByArtist.keySet();
+        return mCatalog.get().byArtist.sortedKeys();
     }
 
     /**
-     * Get an iterator over the list of albums
+     * Get the list of albums, in case insensitive order
      *
-     * @return genres
+     * @return albums
      */
-    public Iterable<String> getAlbums() {
-        if (mCurrentState != State.INITIALIZED) {
+    public List<String> getAlbums() {
+        if (!isBrowsable()) {
             return Collections.emptyList();
         }
-        return mMusicListByAlbum.keySet();
+        return mCatalog.get().byAlbum.sortedKeys();
     }
 
     /**
-     * Get an iterator over the list of music
+     * Get the list of track titles, in case insensitive order
      *
-     * @return genres
+     * @return track titles
      */
-    public Iterable<String> getAllMusic() {
-        if (mCurrentState != State.INITIALIZED) {
+    public List<String> getAllMusic() {
+        if (!isBrowsable()) {
             return Collections.emptyList();
         }
-        return mMusicListByAlphabet.keySet();
+        return mCatalog.get().byAlphabet.sortedKeys();
     }
 
+    /**
+     * @return the art of the album, or null if it has none.
+     */
     public Uri getAlbumArtUri(String mediaid) {
-        for (MediaMetadata track : getMusicsByAlbum(mediaid)) {
-            Uri bitmap = track.getDescription().getIconUri();
-
-            if (ArtHelper.getAlbumArt(mContext,bitmap) != null) {
-                return bitmap;
-            } else {
-                return null;
-            }
+        Catalog catalog = mCatalog.get();
+        int[] rows = catalog.byAlbum.get(mediaid);
+        if (!isBrowsable() || rows == null || rows.length == 0) {
+            return null;
         }
-        return null;
+        long albumId = catalog.tracks.getAlbumId(rows[0]);
+        Uri albumArtUri = ContentUris.withAppendedId(ART_CONTENT_URI, albumId);
+        if (catalog.albumArt.isKnown(albumId)) {
+            return catalog.albumArt.hasArt(albumId) ? albumArtUri : null;
+        }
+        // Not scanned yet, see updateAlbumArt()
+        return ArtHelper.checkAlbumArt(mContext, albumArtUri) ? albumArtUri : null;
     }
 
     /**
      * Get music tracks of favorites
      *
      */
-    public Iterable<MediaMetadata> getMusicsByFavorite(String mediaid) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByFavorite.containsKey(mediaid)) {
+    public List<MediaMetadata> getMusicsByFavorite(String mediaid) {
+        Catalog catalog = mCatalog.get();
+        int row = catalog.tracks.rowOf(mediaid);
+        if (!isBrowsable() || row == TrackTable.NO_ROW
+                || !mFavorites.contains(mediaid)) {
             return Collections.emptyList();
         }
-        return mMusicListByFavorite.get(mediaid);
+        return toMetadata(catalog, new int[] { row });
     }
 
     /**
      * Get music tracks of the given genre
      *
      */
-    public Iterable<MediaMetadata> getMusicsByGenre(String genre) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByGenre.containsKey(genre)) {
+    public List<MediaMetadata> getMusicsByGenre(String genre) {
+        Catalog catalog = mCatalog.get();
+        int[] rows = catalog.byGenre.get(genre);
+        if (!isBrowsable() || rows == null) {
             return Collections.emptyList();
         }
-        return mMusicListByGenre.get(genre);
+        return toMetadata(catalog, rows);
     }
 
     /**
      * Get music tracks of the given artist
      *
      */
-    public Iterable<MediaMetadata> getMusicsByArtist(String artist) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByArtist.containsKey(artist)) {
+    public List<MediaMetadata> getMusicsByArtist(String artist) {
+        Catalog catalog = mCatalog.get();
+        int[] rows = catalog.byArtist.get(artist);
+        if (!isBrowsable() || rows == null) {
             return Collections.emptyList();
         }
-        return mMusicListByArtist.get(artist);
+        return toMetadata(catalog, rows);
     }
 
     /**
      * Get music tracks of the given album
      *
      */
-    public Iterable<MediaMetadata> getMusicsByAlbum(String album) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByAlbum.containsKey(album)) {
+    public List<MediaMetadata> getMusicsByAlbum(String album) {
+        Catalog catalog = mCatalog.get();
+        int[] rows = catalog.byAlbum.get(album);
+        if (!isBrowsable() || rows == null) {
             return Collections.emptyList();
         }
-        return mMusicListByAlbum.get(album);
+        return toMetadata(catalog, rows);
     }
 
     /**
      * Get music tracks of the given album
      *
      */
-    public Iterable<MediaMetadata> getMusicsByAlphabet(String album) {
-        if (mCurrentState != State.INITIALIZED || !mMusicListByAlphabet.containsKey(album)) {
+    public List<MediaMetadata> getMusicsByAlphabet(String album) {
+        Catalog catalog = mCatalog.get();
+        int[] rows = catalog.byAlphabet.get(album);
+        if (!isBrowsable() || rows == null) {
+            return Collections.emptyList();
+        }
+        return toMetadata(catalog, rows);
+    }
+
+    /**
+     * Get all music tracks, ordered by title. Metadata is only built for the tracks that are
+     * read from the list, so a page of it can be taken cheaply with subList().
+     */
+    public List<MediaMetadata> getMusicsAlphabetically() {
+        if (!isBrowsable()) {
+            return Collections.emptyList();
+        }
+        Catalog catalog = mCatalog.get();
+        return toMetadata(catalog, catalog.byAlphabet.sortedRows());
+    }
+
+    /**
+     * Get the favorite music tracks, ordered by title like {@link #getMusicsAlphabetically()}.
+     */
+    public List<MediaMetadata> getFavoriteMusics() {
+        if (!isBrowsable()) {
+            return Collections.emptyList();
+        }
+        Catalog catalog = mCatalog.get();
+        return toMetadata(catalog, CatalogQueues.byTitle(catalog, mFavorites.getAll()));
+    }
+
+    /**
+     * Get the tracks played to the end most often, most played first.
+     */
+    public List<MediaMetadata> getMostPlayedMusics() {
+        return getHistoryMusics(mPlayHistory.getMostPlayed());
+    }
+
+    /**
+     * Get the tracks started last, last started first.
+     */
+    public List<MediaMetadata> getRecentMusics() {
+        return getHistoryMusics(mPlayHistory.getRecent());
+    }
+
+    private List<MediaMetadata> getHistoryMusics(long[] musicIds) {
+        if (!isBrowsable()) {
+            return Collections.emptyList();
+        }
+        Catalog catalog = mCatalog.get();
+        int[] rows = new int[musicIds.length];
+        int count = 0;
+        for (long musicId : musicIds) {
+            // Tracks no longer in MediaStore are left out
+            int row = catalog.tracks.rowOf(String.valueOf(musicId));
+            if (row != TrackTable.NO_ROW) {
+                rows[count++] = row;
+            }
+        }
+        return toMetadata(catalog, Arrays.copyOf(rows, count));
+    }
+
+    /**
+     * Get about half of the music tracks of every genre, in random order.
+     */
+    public List<MediaMetadata> getRandomMusics() {
+        if (!isBrowsable()) {
             return Collections.emptyList();
         }
-        return mMusicListByAlphabet.get(album);
+        Catalog catalog = mCatalog.get();
+        return toMetadata(catalog, CatalogQueues.random(catalog, ThreadLocalRandom.current()));
     }
 
     /**
-     * Very basic implementation of a search that filter music tracks with title containing
-     * the given query.
+     * Search music tracks by words of their title, see {@link SearchIndex}.
      *
      */
     public Iterable<MediaMetadata> searchMusicBySongTitle(String query) {
-        return searchMusic(MediaMetadata.METADATA_KEY_TITLE, query);
+        Catalog catalog = mCatalog.get();
+        return searchMusic(catalog, catalog.titleSearch, query);
     }
 
     public Iterable<MediaMetadata> searchMusicByAlbum(String query) {
-        return searchMusic(MediaMetadata.METADATA_KEY_ALBUM, query);
+        Catalog catalog = mCatalog.get();
+        return searchMusic(catalog, catalog.albumSearch, query);
     }
 
     public Iterable<MediaMetadata> searchMusicByArtist(String query) {
-        return searchMusic(MediaMetadata.METADATA_KEY_ARTIST, query);
+        Catalog catalog = mCatalog.get();
+        return searchMusic(catalog, catalog.artistSearch, query);
     }
 
-    private Iterable<MediaMetadata> searchMusic(String metadataField, String query) {
-        if (mCurrentState != State.INITIALIZED) {
+    private Iterable<MediaMetadata> searchMusic(Catalog catalog, SearchIndex index,
+                                                String query) {
+        if (!isBrowsable() || index == null || query == null) {
             return Collections.emptyList();
         }
-        ArrayList<MediaMetadata> result = new ArrayList<>();
-        query = query.toLowerCase(Locale.US);
-        for (MutableMediaMetadata track : mMusicListById.values()) {
-            if (track.metadata.getString(metadataField).toLowerCase(Locale.US)
-                    .contains(query)) {
-                result.add(track.metadata);
-            }
-        }
-        return result;
+        return toMetadata(catalog, index.search(query, MAX_SEARCH_RESULTS));
     }
 
 
@@ -254,69 +457,179 @@ public class MusicProvider {
      * @param musicId The unique, non-hierarchical music ID.
      */
     public MediaMetadata getMusic(String musicId) {
-        return mMusicListById.containsKey(musicId) ? mMusicListById.get(musicId).metadata : null;
+        Catalog catalog = mCatalog.get();
+        int row = catalog.tracks.rowOf(musicId);
+        if (row == TrackTable.NO_ROW) {
+            return null;
+        }
+        MediaMetadata metadata = mUpdatedMetadata.get(musicId);
+        return metadata != null ? metadata : getMetadata(catalog, row);
     }
 
-    public synchronized void updateMusic(String musicId, MediaMetadata metadata) {
-        MutableMediaMetadata track = mMusicListById.get(musicId);
-        if (track == null) {
+    /**
+     * Replace the metadata returned by {@link #getMusic} for a track, for example to add album
+     * art bitmaps to it. Browse results and queues are not affected, so they stay small and
+     * the catalog version, which keys the cached browse results, stays the same.
+     */
+    public void updateMusic(String musicId, MediaMetadata metadata) {
+        if (mCatalog.get().tracks.rowOf(musicId) == TrackTable.NO_ROW) {
             return;
         }
+        mUpdatedMetadata.put(musicId, metadata);
+    }
+
+    /**
+     * @return the bytes of the metadata cache, the album art set through updateMusic() and the
+     *         catalog views derived on first use.
+     */
+    @Override
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (MediaMetadata metadata : mUpdatedMetadata.values()) {
+            bytes += bitmapBytes(metadata, MediaMetadata.METADATA_KEY_ALBUM_ART)
+                    + bitmapBytes(metadata, MediaMetadata.METADATA_KEY_DISPLAY_ICON);
+        }
+        synchronized (mMetadataCache) {
+            bytes += (long) mMetadataCache.size() * METADATA_BYTES;
+        }
+        return bytes + mCatalog.get().derivedBytes();
+    }
 
-        String oldGenre = track.metadata.getString(MediaMetadata.METADATA_KEY_GENRE);
-        String newGenre = metadata.getString(MediaMetadata.METADATA_KEY_GENRE);
+    /**
+     * Drop what can be built again: the metadata cache and the derived catalog views when
+     * memory runs low, the album art set through updateMusic() once in the background.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (mMetadataCache) {
+                mMetadataCache.clear();
+            }
+            mCatalog.get().trimDerived();
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // Browse results don't carry this art, so they stay valid
+            mUpdatedMetadata.clear();
+        }
+    }
 
-        String oldAlbum = track.metadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
-        String newAlbum = metadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
+    private static long bitmapBytes(MediaMetadata metadata, String key) {
+        Bitmap bitmap = metadata.getBitmap(key);
+        return bitmap != null ? bitmap.getAllocationByteCount() : 0;
+    }
 
-        String oldArtist = track.metadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
-        String newArtist = metadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
+    public void setFavorite(String musicId, boolean favorite) {
+        mFavorites.set(musicId, favorite);
+    }
 
-        track.metadata = metadata;
+    public boolean isFavorite(String musicId) {
+        return mFavorites.contains(musicId);
+    }
 
-        // if genre has changed, we need to rebuild the list by genre
-        if (!oldGenre.equals(newGenre)) {
-            buildListsByGenre();
-        }
+    /**
+     * Start writing the favorite changes to the database now. They are written in the
+     * background shortly after they are made anyway.
+     */
+    public void flushFavorites() {
+        mFavorites.flush();
+    }
 
-        if (!oldAlbum.equals(newAlbum)) {
-            buildListByAlbum();
-        }
+    /**
+     * Wait until the favorite changes made so far are written to the database.
+     *
+     * @return false if they were not written within the timeout.
+     */
+    public boolean awaitFavoritesWritten(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return mFavorites.awaitWritten(timeout, unit);
+    }
 
-        if (!oldArtist.equals(newArtist)) {
-            buildListsByArtist();
-        }
+    /**
+     * @return a number that changes whenever a favorite is added or removed, by any
+     *         MusicProvider of the process.
+     */
+    public int getFavoritesVersion() {
+        return mFavorites.getVersion();
+    }
 
-        buildListsByFavorites();
-        buildListByAlphabet();
+    /**
+     * Record that a track started playing from its beginning.
+     *
+     * @return true if the recently played tracks changed.
+     */
+    public boolean recordPlayStarted(String musicId) {
+        return recordPlayEvent(PlayHistory.EVENT_START, musicId);
     }
 
-    public void setFavorite(String musicId, boolean favorite) {
-        if (favorite) {
-            datasource.open();
-            datasource.addMusic(null, null, null, null, null, null, musicId, favorite);
-            datasource.close();
-        } else {
-            datasource.deleteFavorite(musicId);
+    /**
+     * Record that a track was played to its end.
+     *
+     * @return true if the most played tracks changed.
+     */
+    public boolean recordPlayCompleted(String musicId) {
+        return recordPlayEvent(PlayHistory.EVENT_COMPLETION, musicId);
+    }
+
+    /**
+     * Record that the user skipped to the next track while a track was playing.
+     */
+    public void recordPlaySkipped(String musicId) {
+        recordPlayEvent(PlayHistory.EVENT_SKIP, musicId);
+    }
+
+    private boolean recordPlayEvent(int event, String musicId) {
+        try {
+            return mPlayHistory.record(event, Long.parseLong(musicId));
+        } catch (NumberFormatException e) {
+            LogHelper.w(TAG, "Not recording play event of music ", musicId);
+            return false;
         }
+    }
 
-        buildListsByFavorites();
+    private boolean isListedInPlayHistory(String musicId) {
+        try {
+            return mPlayHistory.isListed(Long.parseLong(musicId));
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
-    public boolean isFavorite(String musicId) {
-        boolean isFav = false;
-        String isFavMusicId = datasource.getFavorite(musicId);
+    /**
+     * Start appending the recorded play events to the play history now. They are appended
+     * in the background shortly after they are recorded anyway.
+     */
+    public void flushPlayHistory() {
+        mPlayHistory.flush();
+    }
 
-        if (isFavMusicId != null)
-            isFav = true;
+    /**
+     * @return a number that changes whenever the most played or the recently played tracks
+     *         change, by any MusicProvider of the process.
+     */
+    public int getPlayHistoryVersion() {
+        return mPlayHistory.getVersion();
+    }
 
-        return isFav;
+    /**
+     * @return the version of the catalog, which changes whenever any browse or search result
+     *         may have changed. Results can be cached as long as it stays the same.
+     */
+    public long getCatalogVersion() {
+        return mCatalog.get().version;
     }
 
     public boolean isInitialized() {
         return mCurrentState == State.INITIALIZED;
     }
 
+    /**
+     * @return true when the catalog can be browsed, which can be before it is initialized if
+     *         the first scan of MediaStore already published part of it.
+     */
+    public boolean isBrowsable() {
+        return mCurrentState == State.INITIALIZED || mPartial;
+    }
+
     /**
      * Get the list of music tracks from a server and caches the track information
      * for future reference, keying tracks by musicId and grouping by genre.
@@ -340,9 +653,11 @@ public class MusicProvider {
 
         // Asynchronously load the music catalog in a separate thread
         new AsyncTask<Void, Void, State>() {
+            private boolean mRestored;
+
             @Override
             protected State doInBackground(Void... params) {
-                retrieveMedia();
+                mRestored = retrieveMedia();
                 return mCurrentState;
             }
 
@@ -351,237 +666,624 @@ public class MusicProvider {
                 if (callback != null) {
                     callback.onMusicCatalogReady(current == State.INITIALIZED);
                 }
+                if (current != State.INITIALIZED) {
+                    return;
+                }
+                if (mRestored) {
+                    validateCatalogAsync();
+                } else {
+                    saveCatalogAsync();
+                }
+                updateAlbumArtAsync();
             }
         }.execute();
     }
 
-    private synchronized void buildListsByFavorites() {
-        ConcurrentMap<String, List<MediaMetadata>> newMusicListByFavorites = new ConcurrentHashMap<>();
-
-        for (MusicDB musicDB : datasource.getAllFavorites()) {
-
-            for (MutableMediaMetadata m : mMusicListById.values()) {
-                String MediaId = musicDB.getMediaId();
-                String trackId = m.metadata.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
-                if (trackId.equals(MediaId)) {
-                    List<MediaMetadata> list = newMusicListByFavorites.get(trackId);
-                    if (list == null) {
-                        list = new ArrayList<>();
-                        newMusicListByFavorites.put(MediaId, list);
+    /**
+     * Check a catalog restored from the cache against MediaStore, and rescan if it changed.
+     */
+    private void validateCatalogAsync() {
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    long fingerprint = queryFingerprint();
+                    if (fingerprint == mFingerprint) {
+                        LogHelper.d(TAG, "Catalog cache is up to date");
+                        return false;
                     }
-                    list.add(m.metadata);
+                    LogHelper.i(TAG, "Catalog cache is stale, querying media...");
+                    Catalog catalog = publishCatalog(queryMediaStore(false));
+                    mFingerprint = fingerprint;
+                    writeCatalogCache(fingerprint, catalog);
+                    return true;
+                } catch (Exception e) {
+                    LogHelper.e(TAG, e, "Could not validate catalog cache");
+                    return false;
                 }
             }
+
+            @Override
+            protected void onPostExecute(Boolean changed) {
+                if (changed && mCatalogListener != null) {
+                    mCatalogListener.onMusicCatalogChanged(CATEGORY_ROOTS);
+                }
+            }
+        }.execute();
+    }
+
+    private void saveCatalogAsync() {
+        final Catalog catalog;
+        synchronized (this) {
+            catalog = mUnsavedCatalog;
+            mUnsavedCatalog = null;
         }
-        mMusicListByFavorite = newMusicListByFavorites;
+        if (catalog == null) {
+            return;
+        }
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                writeCatalogCache(mFingerprint, catalog);
+                return null;
+            }
+        }.execute();
     }
 
-    private synchronized void buildListsByGenre() {
-        ConcurrentMap<String, List<MediaMetadata>> newMusicListByGenre = new ConcurrentHashMap<>();
+    private void writeCatalogCache(long fingerprint, Catalog catalog) {
+        mCatalogCache.write(fingerprint, catalog.tracks, catalog.albumArt, catalog.byGenre,
+                catalog.byArtist, catalog.byAlbum, catalog.byAlphabet);
+    }
 
-        for (MutableMediaMetadata m : mMusicListById.values()) {
-            String genre = m.metadata.getString(MediaMetadata.METADATA_KEY_GENRE);
-            List<MediaMetadata> list = newMusicListByGenre.get(genre);
-            if (list == null) {
-                list = new ArrayList<>();
-                newMusicListByGenre.put(genre, list);
+    /**
+     * Run {@link #updateAlbumArt()} after any catalog work already queued on the serial
+     * AsyncTask executor.
+     */
+    private void updateAlbumArtAsync() {
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    updateAlbumArt();
+                } catch (RuntimeException e) {
+                    LogHelper.e(TAG, e, "Could not update album art");
+                }
             }
-            list.add(m.metadata);
+        });
+    }
+
+    /**
+     * Refresh the album art index from MediaStore, and publish and save it if it changed.
+     */
+    private void updateAlbumArt() {
+        long start = SystemClock.elapsedRealtime();
+        AlbumArtIndex previous = mCatalog.get().albumArt;
+        AlbumArtIndex albumArt = queryAlbumArt(previous);
+        if (albumArt == null || albumArt.equals(previous)) {
+            return;
         }
-        mMusicListByGenre = newMusicListByGenre;
+        Catalog catalog = publishAlbumArt(albumArt);
+        writeCatalogCache(mFingerprint, catalog);
+        LogHelper.i(TAG, "Updated art of ", albumArt.size(), " albums in ",
+                SystemClock.elapsedRealtime() - start, "ms");
+        notifyCatalogChanged(Collections.singletonList(MEDIA_ID_MUSICS_BY_ALBUM));
     }
 
-    private synchronized void buildListsByArtist() {
-        ConcurrentMap<String, List<MediaMetadata>> newMusicListByArtist = new ConcurrentHashMap<>();
+    private Catalog publishAlbumArt(AlbumArtIndex albumArt) {
+        Catalog current;
+        Catalog next;
+        do {
+            current = mCatalog.get();
+            next = current.withAlbumArt(albumArt);
+        } while (!mCatalog.compareAndSet(current, next));
+        return next;
+    }
 
-        for (MutableMediaMetadata m : mMusicListById.values()) {
-            String artist = m.metadata.getString(MediaMetadata.METADATA_KEY_ARTIST);
-            List<MediaMetadata> list = newMusicListByArtist.get(artist);
-            if (list == null) {
-                list = new ArrayList<>();
-                newMusicListByArtist.put(artist, list);
+    /**
+     * Read the art file of every album. The image size is only decoded, bounds only, for art
+     * files that are not in the previous index.
+     *
+     * @return the album art index, or null if MediaStore cannot be queried.
+     */
+    private AlbumArtIndex queryAlbumArt(AlbumArtIndex previous) {
+        Cursor cursor = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                new String[] { MediaStore.Audio.Albums._ID, MediaStore.Audio.Albums.ALBUM_ART },
+                null, null, MediaStore.Audio.Albums._ID);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            AlbumArtIndex.Builder builder = new AlbumArtIndex.Builder(cursor.getCount());
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            while (cursor.moveToNext()) {
+                long albumId = cursor.getLong(0);
+                String path = cursor.getString(1);
+                int known = previous.indexOf(albumId);
+                if (path == null) {
+                    builder.add(albumId, null, 0, 0);
+                } else if (known >= 0 && path.equals(previous.getPath(known))) {
+                    builder.add(albumId, path, previous.getWidth(known),
+                            previous.getHeight(known));
+                } else {
+                    options.outWidth = 0;
+                    options.outHeight = 0;
+                    BitmapFactory.decodeFile(path, options);
+                    builder.add(albumId, path, options.outWidth, options.outHeight);
+                }
             }
-            list.add(m.metadata);
+            return builder.build();
+        } finally {
+            cursor.close();
         }
-        mMusicListByArtist = newMusicListByArtist;
     }
 
-    //TODO: sort by filename if track number does not exist
-    private synchronized void buildListByAlbum() {
-        ConcurrentMap<String, List<MediaMetadata>> newMusicListByAlbum = new ConcurrentHashMap<>();
+    /**
+     * Build the indexes over a track table, each as a separate task on the index pool.
+     *
+     * @param categories build the category indexes.
+     * @param search build the search indexes.
+     */
+    private Indexes buildIndexes(TrackTable tracks, boolean categories, boolean search) {
+        long start = SystemClock.elapsedRealtime();
+        Indexes indexes = Indexes.build(tracks, categories, search, INDEX_EXECUTOR);
+        LogHelper.d(TAG, "Built indexes of ", tracks.size() - tracks.getDeletedCount(),
+                " tracks in ", SystemClock.elapsedRealtime() - start, "ms (", indexes.timings,
+                ")");
+        return indexes;
+    }
+
+    /**
+     * Load the catalog, from the catalog cache if possible and from MediaStore otherwise.
+     *
+     * @return true if the catalog was restored from the cache and still needs to be
+     *         validated against MediaStore.
+     */
+    private synchronized boolean retrieveMedia() {
+        boolean restored = false;
+        try {
+            if (mCurrentState == State.NON_INITIALIZED) {
+                mCurrentState = State.INITIALIZING;
+                mFavorites.load();
+
+                restored = restoreCatalog();
+                if (!restored) {
+                    LogHelper.i(TAG, "Querying media...");
+                    long fingerprint = queryFingerprint();
+                    Catalog catalog = publishCatalog(queryMediaStore(true));
+                    mFingerprint = fingerprint;
+                    mUnsavedCatalog = catalog;
+                }
 
-        for (MutableMediaMetadata m : mMusicListById.values()) {
-            String album = m.metadata.getString(MediaMetadata.METADATA_KEY_ALBUM);
-            List<MediaMetadata> list = newMusicListByAlbum.get(album);
-            if (list == null) {
-                list = new ArrayList<>();
-                newMusicListByAlbum.put(album, list);
+                LogHelper.i(TAG, "Done querying media. MusicProvider is ready.");
+                mCurrentState = State.INITIALIZED;
+                mPartial = false;
             }
-            list.add(m.metadata);
-            Collections.sort(list, new Comparator<MediaMetadata>() {
-                @Override
-                public int compare(MediaMetadata lhs, MediaMetadata rhs) {
-                    Long no = lhs.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER);
-                    Long no2 = rhs.getLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER);
-                    return no.compareTo(no2);
+        } catch (Exception e) {
+            LogHelper.e(TAG, e, "Could not retrieve music list");
+            restored = false;
+        } finally {
+            if (mCurrentState != State.INITIALIZED) {
+                // Something bad happened, so we reset state to NON_INITIALIZED to allow
+                // retries (eg if the network connection is temporary unavailable)
+                mCurrentState = State.NON_INITIALIZED;
+                mPartial = false;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Fill the catalog and its indexes from the catalog cache.
+     *
+     * @return false if there is no usable cache.
+     */
+    private boolean restoreCatalog() {
+        long start = SystemClock.elapsedRealtime();
+        CatalogCache.Snapshot snapshot = mCatalogCache.read();
+        if (snapshot == null || snapshot.indexes.size() != 4) {
+            return false;
+        }
+
+        Indexes indexes = buildIndexes(snapshot.table, false, true);
+        indexes.byGenre = Indexes.BY_GENRE.withBuckets(snapshot.indexes.get(0));
+        indexes.byArtist = Indexes.BY_ARTIST.withBuckets(snapshot.indexes.get(1));
+        indexes.byAlbum = Indexes.BY_ALBUM.withBuckets(snapshot.indexes.get(2));
+        indexes.byAlphabet = Indexes.BY_ALPHABET.withBuckets(snapshot.indexes.get(3));
+        publish(null, snapshot.table, indexes);
+        publishAlbumArt(snapshot.albumArt);
+        mFingerprint = snapshot.fingerprint;
+
+        LogHelper.i(TAG, "Restored ", snapshot.table.size(), " tracks from catalog cache in ",
+                SystemClock.elapsedRealtime() - start, "ms");
+        return true;
+    }
+
+    /**
+     * Replace the catalog with the given tracks and rebuild all indexes.
+     */
+    private Catalog publishCatalog(TrackTable tracks) {
+        return publish(null, tracks, buildIndexes(tracks, true, true));
+    }
+
+    /**
+     * Publish the tracks scanned so far during the first load, so they can be browsed while
+     * the scan goes on. Search is only available once the whole catalog is published.
+     */
+    private void publishPartialCatalog(TrackTable tracks) {
+        long start = SystemClock.elapsedRealtime();
+        publish(null, tracks, buildIndexes(tracks, true, false));
+        mPartial = true;
+        LogHelper.d(TAG, "Published ", tracks.size(), " tracks in ",
+                SystemClock.elapsedRealtime() - start, "ms");
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCatalogListener != null && mPartial) {
+                    mCatalogListener.onMusicCatalogProgress();
                 }
-            });
+            }
+        });
+    }
+
+    /**
+     * Publish a new catalog snapshot with the given tracks and the indexes built over them.
+     *
+     * @param expected the snapshot the new one was derived from, or null to replace whatever
+     *                 snapshot is current.
+     * @return the published snapshot, or null if the content of {@code expected} is not
+     *         current anymore.
+     */
+    private Catalog publish(Catalog expected, TrackTable tracks, Indexes indexes) {
+        Catalog current;
+        Catalog next;
+        do {
+            current = mCatalog.get();
+            if (expected != null && current.tracks != expected.tracks) {
+                return null;
+            }
+            next = current.next(tracks, indexes.byGenre, indexes.byArtist, indexes.byAlbum,
+                    indexes.byAlphabet, indexes.titleSearch, indexes.artistSearch,
+                    indexes.albumSearch);
+        } while (!mCatalog.compareAndSet(current, next));
+        if (expected == null) {
+            // A new scan describes every track anew
+            mUpdatedMetadata.clear();
         }
-        mMusicListByAlbum = newMusicListByAlbum;
+        return next;
     }
 
-    private synchronized void buildListByAlphabet() {
-        ConcurrentMap<String, List<MediaMetadata>> newMusicListByAlbum = new ConcurrentHashMap<>();
+    /**
+     * Bring the loaded catalog up to date with MediaStore, touching only the tracks that were
+     * added, removed or modified since it was loaded. Called by {@link CatalogSync} on its
+     * background thread.
+     *
+     * Tracks are compared by id, date added and modification date, so a change that does
+     * not touch the file, like a genre edit, is only picked up by the next full scan.
+     */
+    void syncWithMediaStore() {
+        if (mCurrentState != State.INITIALIZED) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        LongSparseArray<Long> datesAdded = new LongSparseArray<>();
+        LongSparseArray<Long> datesModified = new LongSparseArray<>();
+        long fingerprint = queryFingerprint(datesAdded, datesModified);
+        if (fingerprint == mFingerprint) {
+            LogHelper.d(TAG, "Catalog is in sync with MediaStore");
+            return;
+        }
 
-        for (MutableMediaMetadata m : mMusicListById.values()) {
-            String music = m.metadata.getString(MediaMetadata.METADATA_KEY_TITLE);
-            List<MediaMetadata> list = newMusicListByAlbum.get(music);
-            if (list == null) {
-                list = new ArrayList<>();
-                newMusicListByAlbum.put(music, list);
+        Catalog catalog = mCatalog.get();
+        TrackTable table = catalog.tracks;
+        RowList deadRows = new RowList();
+        List<Long> fetchIds = new ArrayList<>();
+        for (int row : table.liveRows()) {
+            Long dateModified = datesModified.get(table.getId(row));
+            if (dateModified == null) {
+                deadRows.add(row);
+            } else if (dateModified != table.getDateModified(row)
+                    || datesAdded.get(table.getId(row)) != table.getDateAdded(row)) {
+                deadRows.add(row);
+                fetchIds.add(table.getId(row));
             }
-            list.add(m.metadata);
+        }
+        for (int i = 0; i < datesModified.size(); i++) {
+            if (table.rowOf(datesModified.keyAt(i)) == TrackTable.NO_ROW) {
+                fetchIds.add(datesModified.keyAt(i));
+            }
+        }
+        if (deadRows.size() == 0 && fetchIds.isEmpty()) {
+            mFingerprint = fingerprint;
+            return;
+        }
 
-            Collections.sort(list, Ordering.usingToString());
+        Collection<String> parents;
+        if (deadRows.size() + fetchIds.size() > table.liveSize() / SYNC_RESCAN_DIVISOR) {
+            LogHelper.i(TAG, "Most of MediaStore changed, querying media...");
+            TrackTable tracks = queryMediaStore(false);
+            if (mCurrentState != State.INITIALIZED
+                    || publish(catalog, tracks, buildIndexes(tracks, true, true)) == null) {
+                // The catalog was replaced meanwhile, let the next change sync it again
+                return;
+            }
+            // A new scan describes every track anew
+            mUpdatedMetadata.clear();
+            mFingerprint = fingerprint;
+            parents = CATEGORY_ROOTS;
+        } else {
+            long[] ids = new long[fetchIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = fetchIds.get(i);
+            }
+            parents = applyDelta(catalog, deadRows.toArray(), queryMusic(ids));
+            if (parents == null) {
+                // The catalog was replaced meanwhile, let the next change sync it again
+                return;
+            }
+            mFingerprint = fingerprint;
         }
-        mMusicListByAlphabet = newMusicListByAlbum;
+        writeCatalogCache(mFingerprint, mCatalog.get());
+        LogHelper.i(TAG, "Synced ", deadRows.size(), " removed and ", fetchIds.size(),
+                " new tracks in ", SystemClock.elapsedRealtime() - start, "ms");
+        notifyCatalogChanged(parents);
+        // New albums may have come with art
+        updateAlbumArtAsync();
     }
 
-    private synchronized void retrieveMedia() {
-        try {
-            if (mCurrentState == State.NON_INITIALIZED) {
-                mCurrentState = State.INITIALIZING;
+    /**
+     * Apply a {@link CatalogDelta} to the catalog and publish it.
+     *
+     * @return the browse parents whose children changed, or null if the catalog is not the
+     *         current one anymore.
+     */
+    private Collection<String> applyDelta(Catalog catalog, int[] deadRows, List<Music> musics) {
+        if (mCatalog.get() != catalog || mCurrentState != State.INITIALIZED) {
+            return null;
+        }
+        CatalogDelta delta = CatalogDelta.apply(catalog, deadRows, musics, INDEX_EXECUTOR);
+        if (delta.compacted) {
+            LogHelper.d(TAG, "Compacted the track table to ", delta.tracks.size(), " tracks");
+            return publish(catalog, delta.tracks, delta.indexes) == null ? null : CATEGORY_ROOTS;
+        }
+        if (publish(catalog, delta.tracks, delta.indexes) == null) {
+            return null;
+        }
 
-                Uri musicUri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
-                Uri genreUri = android.provider.MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI;
-
-                HashMap<String, String> genreIdToGenreNameMap = new HashMap<>();
-                HashMap<String, String> songIdToGenreIdMap = new HashMap<>();
-
-                LogHelper.i(TAG, "Querying media...");
-
-                String GENRE_ID      = MediaStore.Audio.Genres._ID;
-                String GENRE_NAME    = MediaStore.Audio.Genres.NAME;
-                String SONG_ID       = android.provider.MediaStore.Audio.Media._ID;
-                String SONG_TITLE    = android.provider.MediaStore.Audio.Media.TITLE;
-                String SONG_ARTIST   = android.provider.MediaStore.Audio.Media.ARTIST;
-                String SONG_ALBUM    = android.provider.MediaStore.Audio.Media.ALBUM;
-                String SONG_ALBUM_ID = android.provider.MediaStore.Audio.Media.ALBUM_ID;
-                String SONG_YEAR     = android.provider.MediaStore.Audio.Media.YEAR;
-                String SONG_TRACK_NO = android.provider.MediaStore.Audio.Media.TRACK;
-                String SONG_FILEPATH = android.provider.MediaStore.Audio.Media.DATA;
-                String SONG_DURATION = android.provider.MediaStore.Audio.Media.DURATION;
-
-                String[] genreColumns = {
-                        GENRE_ID,
-                        GENRE_NAME
-                };
-
-                Cursor cursor = mContentResolver.query(genreUri, genreColumns, null, null, null);
-                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                    genreIdToGenreNameMap.put(cursor.getString(0), cursor.getString(1));
+        Set<String> parents = new HashSet<>();
+        parents.add(MEDIA_ID_MUSICS_BY_ALPHABET);
+        if (delta.genresChanged) {
+            parents.add(MEDIA_ID_MUSICS_BY_GENRE);
+        }
+        if (delta.artistsChanged) {
+            parents.add(MEDIA_ID_MUSICS_BY_ARTIST);
+        }
+        if (delta.albumsChanged) {
+            parents.add(MEDIA_ID_MUSICS_BY_ALBUM);
+        }
+        TrackTable next = delta.tracks;
+        int[][] changedRows = { delta.deadRows, delta.newRows };
+        for (int[] rows : changedRows) {
+            for (int row : rows) {
+                String musicId = next.getMediaId(row);
+                if (mFavorites.contains(musicId)) {
+                    parents.add(MEDIA_ID_MUSICS_BY_FAVORITE);
                 }
-                cursor.close();
-
-                for (String genreID : genreIdToGenreNameMap.keySet()) {
-                    Uri uri = MediaStore.Audio.Genres.Members.getContentUri("external",
-                            Long.parseLong(genreID));
-                    cursor = mContentResolver.query(uri, new String[] { SONG_ID }, null, null, null);
-                    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-                        long currentSongID = cursor.getLong(cursor.getColumnIndex(SONG_ID));
-                        songIdToGenreIdMap.put(Long.toString(currentSongID), genreID);
-                    }
-                    cursor.close();
+                if (isListedInPlayHistory(musicId)) {
+                    parents.add(MEDIA_ID_MUSICS_MOST_PLAYED);
+                    parents.add(MEDIA_ID_MUSICS_RECENT);
                 }
-                String[] columns = {
-                        SONG_ID,
-                        SONG_TITLE,
-                        SONG_ARTIST,
-                        SONG_ALBUM,
-                        SONG_ALBUM_ID,
-                        SONG_YEAR,
-                        SONG_TRACK_NO,
-                        SONG_FILEPATH,
-                        SONG_DURATION
-                };
-
-                final String musicsOnly = MediaStore.Audio.Media.IS_MUSIC + "=1";
-                cursor = mContentResolver.query(musicUri, columns, musicsOnly, null, SONG_TRACK_NO);
-                if (cursor != null && cursor.moveToFirst()) {
-                    do {
-                        // Creating a song from the values on the row
-                        Music music = new Music(cursor.getInt(cursor.getColumnIndex(SONG_ID)),
-                                cursor.getString(cursor.getColumnIndex(SONG_FILEPATH)));
-
-                        music.setSongId     (cursor.getString(cursor.getColumnIndex(SONG_ID)));
-                        music.setTitle(cursor.getString(cursor.getColumnIndex(SONG_TITLE)));
-                        music.setArtist(cursor.getString(cursor.getColumnIndex(SONG_ARTIST)));
-                        music.setAlbum(cursor.getString(cursor.getColumnIndex(SONG_ALBUM)));
-                        music.setAlbumId(cursor.getLong(cursor.getColumnIndex(SONG_ALBUM_ID)));
-                        music.setAlbumArtist(cursor.getString(cursor.getColumnIndex(SONG_ARTIST)));
-                        music.setYear       (cursor.getInt   (cursor.getColumnIndex(SONG_YEAR)));
-                        music.setTrackNumber(cursor.getInt   (cursor.getColumnIndex(SONG_TRACK_NO)));
-                        music.setDuration   (cursor.getInt   (cursor.getColumnIndex(SONG_DURATION)));
-
-                        // Using the previously created genre maps
-                        // to fill the current song genre.
-                        String currentGenreID   = songIdToGenreIdMap.get(Long.toString(music.getId()));
-                        String currentGenreName = genreIdToGenreNameMap.get(currentGenreID);
-                        music.setGenre(currentGenreName);
-
-                        MediaMetadata item = buildFromList(music);
-                        String musicId = item.getString(MediaMetadata.METADATA_KEY_MEDIA_ID);
-                        mMusicListById.put(musicId, new MutableMediaMetadata(musicId, item));
-                    }
-                    while (cursor.moveToNext());
+                addParents(Indexes.BY_GENRE, MEDIA_ID_MUSICS_BY_GENRE, next, row, parents);
+                addParents(Indexes.BY_ARTIST, MEDIA_ID_MUSICS_BY_ARTIST, next, row, parents);
+                addParents(Indexes.BY_ALBUM, MEDIA_ID_MUSICS_BY_ALBUM, next, row, parents);
+                mUpdatedMetadata.remove(musicId);
+            }
+        }
+        return parents;
+    }
+
+    private static void addParents(CategoryIndex index, String root, TrackTable table, int row,
+                                   Set<String> parents) {
+        for (String key : index.keysOf(table, row)) {
+            parents.add(createBrowseCategoryMediaID(root, key));
+        }
+    }
+
+    private void notifyCatalogChanged(final Collection<String> parentMediaIds) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCatalogListener != null) {
+                    mCatalogListener.onMusicCatalogChanged(parentMediaIds);
                 }
-                else {
-                    LogHelper.e(TAG, "Could not retrieve music list");
+            }
+        });
+    }
+
+    /**
+     * Cheap summary of the music rows in MediaStore (ids and modification dates), used to
+     * tell whether a cached catalog is still current without reading every column.
+     */
+    private long queryFingerprint() {
+        return queryFingerprint(null, null);
+    }
+
+    /**
+     * @param datesAdded if not null, filled with the date every music id was added.
+     * @param datesModified if not null, filled with the modification date of every music id.
+     */
+    private long queryFingerprint(LongSparseArray<Long> datesAdded,
+                                  LongSparseArray<Long> datesModified) {
+        Cursor cursor = mContentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[] { MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_ADDED,
+                        MediaStore.Audio.Media.DATE_MODIFIED },
+                MediaStore.Audio.Media.IS_MUSIC + "=1", null, MediaStore.Audio.Media._ID);
+        long fingerprint = 17;
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                fingerprint = 31 * fingerprint + cursor.getLong(0);
+                fingerprint = 31 * fingerprint + cursor.getLong(1);
+                fingerprint = 31 * fingerprint + cursor.getLong(2);
+                // Ids are sorted, so these append
+                if (datesAdded != null) {
+                    datesAdded.append(cursor.getLong(0), cursor.getLong(1));
                 }
-                if (cursor != null) {
-                    cursor.close();
+                if (datesModified != null) {
+                    datesModified.append(cursor.getLong(0), cursor.getLong(2));
                 }
+            }
+            fingerprint = 31 * fingerprint + cursor.getCount();
+            cursor.close();
+        }
+        return fingerprint;
+    }
 
-                buildListsByGenre();
-                buildListsByArtist();
-                buildListByAlbum();
-                buildListsByFavorites();
-                buildListByAlphabet();
+    /**
+     * Scan all music in MediaStore.
+     *
+     * @param progressive publish the scanned tracks with {@link #publishPartialCatalog} in
+     *                    chunks of growing size along the way.
+     */
+    private TrackTable queryMediaStore(boolean progressive) {
+        GenreMembership genres = GenreMembership.query(mContentResolver);
+        MediaStoreTrackSource source = new MediaStoreTrackSource(mContentResolver, null,
+                MediaStore.Audio.Media.TRACK, genres);
+        if (!source.isValid() || source.getCount() == 0) {
+            LogHelper.e(TAG, "Could not retrieve music list");
+        }
+        CatalogLoader.ChunkListener listener = null;
+        if (progressive) {
+            listener = new CatalogLoader.ChunkListener() {
+                @Override
+                public void onChunkLoaded(TrackTable tracks) {
+                    publishPartialCatalog(tracks);
+                }
+            };
+        }
+        return CatalogLoader.load(source, listener);
+    }
 
-                LogHelper.i(TAG, "Done querying media. MusicProvider is ready.");
-                mCurrentState = State.INITIALIZED;
+    /**
+     * Query the given music tracks from MediaStore. Ids that are not music anymore are left
+     * out.
+     */
+    private List<Music> queryMusic(long[] ids) {
+        List<Music> musics = new ArrayList<>(ids.length);
+        if (ids.length == 0) {
+            return musics;
+        }
+        GenreMembership genres = GenreMembership.query(mContentResolver);
+        for (int start = 0; start < ids.length; start += SYNC_QUERY_SIZE) {
+            StringBuilder selection = new StringBuilder(MediaStore.Audio.Media._ID)
+                    .append(" IN (");
+            int end = Math.min(start + SYNC_QUERY_SIZE, ids.length);
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(ids[i]);
             }
-        } catch (Exception e) {
-            LogHelper.e(TAG, e, "Could not retrieve music list");
-        } finally {
-            if (mCurrentState != State.INITIALIZED) {
-                // Something bad happened, so we reset state to NON_INITIALIZED to allow
-                // retries (eg if the network connection is temporary unavailable)
-                mCurrentState = State.NON_INITIALIZED;
+            selection.append(')');
+            MediaStoreTrackSource source = new MediaStoreTrackSource(mContentResolver,
+                    selection.toString(), MediaStore.Audio.Media._ID, genres);
+            Music music;
+            while ((music = source.next()) != null) {
+                musics.add(music);
             }
+            source.close();
         }
+        return musics;
     }
 
-    private MediaMetadata buildFromList(Music music) {
-        long albumId = music.getAlbumId();
-        final Uri ART_CONTENT_URI = Uri.parse("content://media/external/audio/albumart");
-        Uri albumArtUri = ContentUris.withAppendedId(ART_CONTENT_URI, albumId);
+    /**
+     * Resolve rows of a catalog to their metadata, building each MediaMetadata only when the
+     * list is read.
+     */
+    private List<MediaMetadata> toMetadata(final Catalog catalog, final int[] rows) {
+        if (rows == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<MediaMetadata>() {
+            @Override
+            public MediaMetadata get(int index) {
+                return getMetadata(catalog, rows[index]);
+            }
 
-        String genre = music.getGenre();
-        if (genre == null)
-            genre = "Other";
+            @Override
+            public int size() {
+                return rows.length;
+            }
+        };
+    }
+
+    private MediaMetadata getMetadata(Catalog catalog, int row) {
+        String musicId = catalog.tracks.getMediaId(row);
+        MediaMetadata metadata;
+        synchronized (mMetadataCache) {
+            if (catalog.version != mMetadataCacheVersion) {
+                // Entries may describe tracks as they were in another catalog
+                mMetadataCache.clear();
+                mMetadataCacheVersion = catalog.version;
+            }
+            metadata = mMetadataCache.get(musicId);
+        }
+        if (metadata == null) {
+            metadata = buildFromRow(catalog, row);
+            synchronized (mMetadataCache) {
+                if (catalog.version == mMetadataCacheVersion) {
+                    mMetadataCache.put(musicId, metadata);
+                }
+            }
+        }
+        return metadata;
+    }
+
+    private static MediaMetadata buildFromRow(Catalog catalog, int row) {
+        TrackTable table = catalog.tracks;
+        long albumId = table.getAlbumId(row);
+        // Leave the art out when it is known not to exist, so nobody tries to load it
+        String albumArtUri = null;
+        if (!catalog.albumArt.isKnown(albumId) || catalog.albumArt.hasArt(albumId)) {
+            albumArtUri = ContentUris.withAppendedId(ART_CONTENT_URI, albumId).toString();
+        }
+
+        String[] genres = table.getGenres(row);
+        String genre = genres.length > 0 ? genres[0] : Indexes.UNKNOWN_GENRE;
 
         return new MediaMetadata.Builder()
-                .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, music.getTrackNumber())
-                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, music.getSongId())
-                .putString(MediaMetadata.METADATA_KEY_ALBUM, music.getAlbum())
-                .putString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST, music.getAlbumArtist())
-                .putString(MediaMetadata.METADATA_KEY_DISPLAY_SUBTITLE, music.getAlbumArtist())
-                .putString(MediaMetadata.METADATA_KEY_ARTIST, music.getArtist())
-                .putLong(MediaMetadata.METADATA_KEY_DURATION, music.getDuration())
+                .putLong(MediaMetadata.METADATA_KEY_TRACK_NUMBER, table.getTrackNumber(row))
+                .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, table.getMediaId(row))
+                .putString(MediaMetadata.METADATA_KEY_ALBUM, table.getAlbum(row))
+                .putString(MediaMetadata.METADATA_KEY_ALBUM_ARTIST, table.getAlbumArtist(row))
+                .putString(MediaMetadata.METADATA_KEY_DISPLAY_SUBTITLE, table.getAlbumArtist(row))
+                .putString(MediaMetadata.METADATA_KEY_ARTIST, table.getArtist(row))
+                .putLong(MediaMetadata.METADATA_KEY_DURATION, table.getDuration(row))
                 .putString(MediaMetadata.METADATA_KEY_GENRE, genre)
-                .putString(MediaMetadata.METADATA_KEY_TITLE, music.getTitle())
-                .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, albumArtUri.toString())
+                .putString(MediaMetadata.METADATA_KEY_TITLE, table.getTitle(row))
+                .putString(MediaMetadata.METADATA_KEY_ALBUM_ART_URI, albumArtUri)
                 .build();
     }
+
+    private static ExecutorService newIndexExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(INDEX_THREADS, INDEX_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "MusicProvider index #" + mCount.incrementAndGet());
+                    }
+                });
+        // Let the threads go once the catalog is built
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 }
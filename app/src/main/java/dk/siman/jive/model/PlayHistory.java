@@ -0,0 +1,528 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * Play statistics of the tracks, shared by every {@link MusicProvider} of the process: how
+ * often each track was started, played to the end and skipped, and when it was last started.
+ *
+ * Events are applied to the counters in memory when they are recorded, and appended to a
+ * binary log behind, by a single writer thread, so recording does no I/O on the playback
+ * path. The log is compacted into a snapshot of the counters every {@link #COMPACT_EVENTS}
+ * events. Each log file has a generation, and a snapshot counts the events of the logs of
+ * lower generations, so a log is never counted twice, whenever the process dies.
+ *
+ * The most played and the recently played tracks are kept in {@link TopTracks} as events
+ * are applied, so they are read in O(k).
+ */
+class PlayHistory {
+
+    private static final String TAG = LogHelper.makeLogTag(PlayHistory.class);
+
+    static final int EVENT_START = 1;
+    static final int EVENT_COMPLETION = 2;
+    static final int EVENT_SKIP = 3;
+
+    // Tracks listed as most played and as recently played
+    private static final int TOP_COUNT = 50;
+    // Events recorded within this time are appended together
+    private static final long APPEND_DELAY_MS = 2000;
+    // Events appended to the log before it is compacted
+    private static final int COMPACT_EVENTS = 1000;
+    // Bytes of an event in the log: type, music id and time
+    private static final int EVENT_BYTES = 1 + 8 + 8;
+
+    private static final String SNAPSHOT_FILE_NAME = "play_counts.bin";
+    private static final String LOG_FILE_PREFIX = "play_history.";
+    private static final String LOG_FILE_SUFFIX = ".log";
+    private static final int MAGIC = 0x4a495650; // "JIVP"
+    private static final int VERSION = 1;
+
+    private static PlayHistory mInstance = null;
+
+    private static final class Counts {
+        int starts;
+        int completions;
+        int skips;
+        long lastStarted;
+    }
+
+    private final File mDir;
+    private final HandlerThread mWriterThread;
+    private final Handler mWriter;
+
+    // Guarded by this
+    private final Map<Long, Counts> mCounts = new HashMap<>();
+    private final TopTracks mMostPlayed = new TopTracks(TOP_COUNT);
+    private final TopTracks mRecent = new TopTracks(TOP_COUNT);
+    // Events recorded and not appended yet, encoded like in the log
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPending = new DataOutputStream(mPendingBytes);
+    private boolean mAppendScheduled;
+    // Generation of the log events are appended to
+    private long mGeneration;
+    private volatile boolean mLoaded;
+
+    // Events in the current log, only used on the writer thread, or once it has stopped
+    private int mLogEvents;
+
+    // Counts the changes of the most played and recently played tracks
+    private final AtomicInteger mVersion = new AtomicInteger();
+
+    private final Runnable mAppendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            appendPending();
+        }
+    };
+
+    private PlayHistory(Context context) {
+        mDir = context.getApplicationContext().getFilesDir();
+        mWriterThread = new HandlerThread("PlayHistory", Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    static synchronized PlayHistory getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new PlayHistory(context);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Append the recorded events, stop the writer thread and forget the history, so the next
+     * getInstance() reads the history of the context given then.
+     */
+    static synchronized void releaseInstance() {
+        if (mInstance != null) {
+            mInstance.release();
+            mInstance = null;
+        }
+    }
+
+    private void release() {
+        // Let the writer thread finish the appends that are due; once it has stopped, this
+        // thread is the only writer left
+        mWriterThread.quitSafely();
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Whatever the writer thread did not append yet is appended here
+        appendPending();
+    }
+
+    /**
+     * Read the snapshot and the logs, if they were not read yet. Only waits for the disk if
+     * the history is needed before the read started on creation is done.
+     */
+    void load() {
+        if (mLoaded) {
+            return;
+        }
+        boolean replayed;
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            long generation = readSnapshot();
+            replayed = false;
+            for (long logGeneration : logGenerations()) {
+                if (logGeneration >= generation) {
+                    replayLog(logGeneration);
+                    replayed = true;
+                    // Never append to a log that may end with part of an event
+                    generation = logGeneration + 1;
+                }
+            }
+            mGeneration = generation;
+            mLoaded = true;
+            LogHelper.d(TAG, "Loaded play history of ", mCounts.size(), " tracks");
+        }
+        if (replayed) {
+            // Fold the replayed logs into the snapshot
+            mWriter.post(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+
+    /**
+     * Record a play event.
+     *
+     * @return true if the most played or the recently played tracks changed.
+     */
+    boolean record(int event, long musicId) {
+        load();
+        long time = System.currentTimeMillis();
+        synchronized (this) {
+            boolean changed = apply(event, musicId, time);
+            try {
+                writeEvent(mPending, event, musicId, time);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+                throw new IllegalStateException(e);
+            }
+            if (!mAppendScheduled) {
+                mAppendScheduled = true;
+                mWriter.postDelayed(mAppendRunnable, APPEND_DELAY_MS);
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * @return the music ids of the tracks played to the end most often, most played first.
+     */
+    synchronized long[] getMostPlayed() {
+        load();
+        return mMostPlayed.ids();
+    }
+
+    /**
+     * @return the music ids of the tracks started last, last started first.
+     */
+    synchronized long[] getRecent() {
+        load();
+        return mRecent.ids();
+    }
+
+    /**
+     * @return true if the track is listed as most played or recently played.
+     */
+    synchronized boolean isListed(long musicId) {
+        load();
+        return mMostPlayed.contains(musicId) || mRecent.contains(musicId);
+    }
+
+    /**
+     * @return a number that changes whenever the most played or the recently played tracks
+     *         change.
+     */
+    int getVersion() {
+        return mVersion.get();
+    }
+
+    /**
+     * Start appending the recorded events now, instead of after {@link #APPEND_DELAY_MS}.
+     */
+    synchronized void flush() {
+        if (mAppendScheduled) {
+            mWriter.removeCallbacks(mAppendRunnable);
+            mWriter.post(mAppendRunnable);
+        }
+    }
+
+    /**
+     * Apply an event to the counters and the top tracks. Called holding the lock.
+     *
+     * @return true if the most played or the recently played tracks changed.
+     */
+    private boolean apply(int event, long musicId, long time) {
+        Counts counts = mCounts.get(musicId);
+        if (counts == null) {
+            counts = new Counts();
+            mCounts.put(musicId, counts);
+        }
+        boolean changed = false;
+        switch (event) {
+            case EVENT_START:
+                counts.starts++;
+                counts.lastStarted = time;
+                changed = mRecent.update(musicId, time);
+                break;
+            case EVENT_COMPLETION:
+                counts.completions++;
+                changed = mMostPlayed.update(musicId, counts.completions);
+                break;
+            case EVENT_SKIP:
+                counts.skips++;
+                break;
+            default:
+                LogHelper.w(TAG, "Ignoring unknown play event ", event);
+        }
+        if (changed) {
+            mVersion.incrementAndGet();
+        }
+        return changed;
+    }
+
+    /**
+     * Append the recorded events to the log, and compact it when it is long enough. Runs on
+     * the writer thread, or once it has stopped.
+     */
+    private void appendPending() {
+        byte[] bytes;
+        long generation;
+        synchronized (this) {
+            bytes = mPendingBytes.toByteArray();
+            mPendingBytes.reset();
+            generation = mGeneration;
+            mAppendScheduled = false;
+        }
+        if (bytes.length == 0) {
+            return;
+        }
+        append(generation, bytes);
+        mLogEvents += bytes.length / EVENT_BYTES;
+        if (mLogEvents >= COMPACT_EVENTS) {
+            compact();
+        }
+    }
+
+    /**
+     * Write a snapshot of the counters and start a new log. Runs on the writer thread.
+     */
+    private void compact() {
+        Map<Long, Counts> counts = new HashMap<>();
+        byte[] bytes;
+        long generation;
+        synchronized (this) {
+            for (Map.Entry<Long, Counts> entry : mCounts.entrySet()) {
+                Counts copy = new Counts();
+                copy.starts = entry.getValue().starts;
+                copy.completions = entry.getValue().completions;
+                copy.skips = entry.getValue().skips;
+                copy.lastStarted = entry.getValue().lastStarted;
+                counts.put(entry.getKey(), copy);
+            }
+            // Events recorded from now on go to the next log
+            bytes = mPendingBytes.toByteArray();
+            mPendingBytes.reset();
+            generation = mGeneration;
+            mGeneration++;
+        }
+        // The snapshot counts these events; append them in case it is not written
+        if (bytes.length > 0) {
+            append(generation, bytes);
+        }
+        mLogEvents = 0;
+        if (!writeSnapshot(generation + 1, counts)) {
+            return;
+        }
+        for (long logGeneration : logGenerations()) {
+            if (logGeneration <= generation) {
+                logFile(logGeneration).delete();
+            }
+        }
+        LogHelper.d(TAG, "Compacted play history of ", counts.size(), " tracks");
+    }
+
+    private void append(long generation, byte[] bytes) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(logFile(generation), true);
+            out.write(bytes);
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not append ", bytes.length / EVENT_BYTES,
+                    " play events");
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void writeEvent(DataOutputStream out, int event, long musicId, long time)
+            throws IOException {
+        out.writeByte(event);
+        out.writeLong(musicId);
+        out.writeLong(time);
+    }
+
+    private void replayLog(long generation) {
+        DataInputStream in = null;
+        int events = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(logFile(generation))));
+            while (true) {
+                int event;
+                try {
+                    event = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(event, in.readLong(), in.readLong());
+                events++;
+            }
+        } catch (EOFException e) {
+            LogHelper.w(TAG, "Ignoring the unfinished last event of ", logFile(generation));
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read ", logFile(generation));
+        } finally {
+            close(in);
+        }
+        LogHelper.d(TAG, "Replayed ", events, " play events of generation ", generation);
+    }
+
+    /**
+     * Read the snapshot into the counters.
+     *
+     * @return the generation of the first log the snapshot does not count, 0 if there is no
+     *         snapshot.
+     */
+    private long readSnapshot() {
+        File file = new File(mDir, SNAPSHOT_FILE_NAME);
+        if (!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LogHelper.i(TAG, "Ignoring play history snapshot with unknown format");
+                return 0;
+            }
+            long generation = in.readLong();
+            int size = in.readInt();
+            Map<Long, Counts> snapshot = new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                long musicId = in.readLong();
+                Counts counts = new Counts();
+                counts.starts = in.readInt();
+                counts.completions = in.readInt();
+                counts.skips = in.readInt();
+                counts.lastStarted = in.readLong();
+                snapshot.put(musicId, counts);
+            }
+            for (Map.Entry<Long, Counts> entry : snapshot.entrySet()) {
+                Counts counts = entry.getValue();
+                if (counts.completions > 0) {
+                    mMostPlayed.update(entry.getKey(), counts.completions);
+                }
+                if (counts.starts > 0) {
+                    mRecent.update(entry.getKey(), counts.lastStarted);
+                }
+            }
+            mCounts.putAll(snapshot);
+            return generation;
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not read the play history snapshot");
+            return 0;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * @return false if the snapshot could not be written.
+     */
+    private boolean writeSnapshot(long generation, Map<Long, Counts> counts) {
+        File file = new File(mDir, SNAPSHOT_FILE_NAME);
+        File tmp = new File(mDir, SNAPSHOT_FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(counts.size());
+            for (Map.Entry<Long, Counts> entry : counts.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeInt(entry.getValue().starts);
+                out.writeInt(entry.getValue().completions);
+                out.writeInt(entry.getValue().skips);
+                out.writeLong(entry.getValue().lastStarted);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp + " to " + file);
+            }
+            return true;
+        } catch (IOException e) {
+            LogHelper.e(TAG, e, "Could not write the play history snapshot");
+            close(out);
+            tmp.delete();
+            return false;
+        }
+    }
+
+    private File logFile(long generation) {
+        return new File(mDir, LOG_FILE_PREFIX + generation + LOG_FILE_SUFFIX);
+    }
+
+    /**
+     * @return the generations of the log files, in increasing order.
+     */
+    private List<Long> logGenerations() {
+        List<Long> generations = new ArrayList<>();
+        String[] names = mDir.list();
+        if (names == null) {
+            return generations;
+        }
+        for (String name : names) {
+            if (name.startsWith(LOG_FILE_PREFIX) && name.endsWith(LOG_FILE_SUFFIX)) {
+                try {
+                    generations.add(Long.parseLong(name.substring(LOG_FILE_PREFIX.length(),
+                            name.length() - LOG_FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LogHelper.w(TAG, "Ignoring ", name);
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                LogHelper.w(TAG, e, "Could not close");
+            }
+        }
+    }
+}
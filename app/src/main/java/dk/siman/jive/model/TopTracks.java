@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive.model;
+
+import java.util.Arrays;
+
+/**
+ * The k tracks of highest score, highest first, for scores that never decrease, like play
+ * counts and play times.
+ *
+ * Because a score only grows, a track that drops out of the top never comes back without an
+ * update of its own, so updating the top with each score change keeps it exact without
+ * keeping the scores of the other tracks. An update and reading the top cost O(k).
+ */
+final class TopTracks {
+
+    private final long[] mIds;
+    private final long[] mScores;
+    private int mSize;
+
+    TopTracks(int capacity) {
+        mIds = new long[capacity];
+        mScores = new long[capacity];
+    }
+
+    /**
+     * Set the score of a track. The score must not be lower than a score set before for it.
+     *
+     * @return true if the tracks of the top or their order changed, false if only the score
+     *         of a listed track did, or the track is not in the top.
+     */
+    boolean update(long id, long score) {
+        int index = indexOf(id);
+        boolean added = index < 0;
+        if (added) {
+            if (mSize < mIds.length) {
+                index = mSize++;
+            } else if (mSize > 0 && score > mScores[mSize - 1]) {
+                // Replaces the lowest
+                index = mSize - 1;
+            } else {
+                return false;
+            }
+            mIds[index] = id;
+        }
+        int from = index;
+        mScores[index] = score;
+        // Move it up past the lower scores; ties keep the track updated first on top
+        while (index > 0 && mScores[index - 1] < score) {
+            mIds[index] = mIds[index - 1];
+            mScores[index] = mScores[index - 1];
+            index--;
+        }
+        mIds[index] = id;
+        mScores[index] = score;
+        return added || index != from;
+    }
+
+    boolean contains(long id) {
+        return indexOf(id) >= 0;
+    }
+
+    /**
+     * @return the ids of the tracks, highest score first.
+     */
+    long[] ids() {
+        return Arrays.copyOf(mIds, mSize);
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -22,44 +22,76 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import dk.siman.jive.utils.LogHelper;
 
+/**
+ * Access to the favorites database.
+ *
+ * The database stays open once opened, and the statements of the frequent operations (is
+ * favorite, add, remove) are compiled once and reused. Use one instance from any thread, the
+ * operations are serialized.
+ */
 public class MusicDBDataSource {
 
     private static final String TAG = LogHelper.makeLogTag(MusicDBDataSource.class);
 
+    // A media id is a favorite as long as it has a row: deleteFavorite() removes the row, and
+    // getAllFavorites() lists every row, so the single lookup follows the same rule
+    private static final String IS_FAVORITE_SQL = "SELECT " + MySQLiteHelper.MEDIA_ID
+            + " FROM " + MySQLiteHelper.TABLE_MUSICS + " WHERE " + MySQLiteHelper.MEDIA_ID
+            + " = ?";
+    private static final String UPDATE_FAVORITE_SQL = "UPDATE " + MySQLiteHelper.TABLE_MUSICS
+            + " SET " + MySQLiteHelper.IS_FAVORITE + " = ? WHERE " + MySQLiteHelper.MEDIA_ID
+            + " = ?";
+    private static final String INSERT_FAVORITE_SQL = "INSERT INTO "
+            + MySQLiteHelper.TABLE_MUSICS + " (" + MySQLiteHelper.MEDIA_ID + ", "
+            + MySQLiteHelper.IS_FAVORITE + ") VALUES (?, ?)";
+    private static final String DELETE_FAVORITE_SQL = "DELETE FROM "
+            + MySQLiteHelper.TABLE_MUSICS + " WHERE " + MySQLiteHelper.MEDIA_ID + " = ?";
+    private static final String ALL_FAVORITES_SQL = "SELECT " + MySQLiteHelper.MEDIA_ID
+            + " FROM " + MySQLiteHelper.TABLE_MUSICS;
+
     // Database fields
     private SQLiteDatabase database;
     private final MySQLiteHelper dbHelper;
-    private final String[] allColumns = {
-            MySQLiteHelper._ID,
-            MySQLiteHelper.ARTIST,
-            MySQLiteHelper.TITLE,
-            MySQLiteHelper.ALBUM,
-            MySQLiteHelper.ALBUM_ID,
-            MySQLiteHelper.DURATION,
-            MySQLiteHelper.GENRE_NAME,
-            MySQLiteHelper.MEDIA_ID,
-            MySQLiteHelper.IS_FAVORITE};
+    // Compiled on first use, for as long as the database stays open
+    private SQLiteStatement mIsFavoriteStatement;
+    private SQLiteStatement mUpdateFavoriteStatement;
+    private SQLiteStatement mInsertFavoriteStatement;
+    private SQLiteStatement mDeleteFavoriteStatement;
 
     public MusicDBDataSource(Context context) {
         dbHelper = MySQLiteHelper.getInstance(context);
     }
 
-    public void open() throws SQLException {
-        database = dbHelper.getWritableDatabase();
+    /**
+     * Open the database, if it is not open already. The other operations open it as needed.
+     */
+    public synchronized void open() throws SQLException {
+        if (database == null || !database.isOpen()) {
+            closeStatements();
+            database = dbHelper.getWritableDatabase();
+        }
     }
 
-    public void close() {
+    /**
+     * Close the database. Only needed to give it up for good, it is opened again on next use.
+     */
+    public synchronized void close() {
+        closeStatements();
+        database = null;
         dbHelper.close();
     }
 
-
-    public MusicDB addMusic(String artist, String title, String album, Long albumId, Long duration, String genreName, String mediaId, Boolean isFavorite) {
+    public synchronized MusicDB addMusic(String artist, String title, String album, Long albumId, Long duration, String genreName, String mediaId, Boolean isFavorite) {
+        open();
         ContentValues values = new ContentValues();
 
         if (artist != null)
@@ -79,84 +111,105 @@ public class MusicDBDataSource {
         if (isFavorite != null)
             values.put(MySQLiteHelper.IS_FAVORITE, isFavorite);
 
-        if (values != null) {
-            long insertId = database.insert(MySQLiteHelper.TABLE_MUSICS, null, values);
-            Cursor cursor = database.query(
-                    MySQLiteHelper.TABLE_MUSICS,
-                    allColumns,
-                    MySQLiteHelper._ID + " = " + insertId,
-                    null,
-                    null,
-                    null,
-                    null);
-
-            cursor.moveToFirst();
-            MusicDB newComment = cursorToComment(cursor);
-            cursor.close();
-            return newComment;
+        // A media id is listed once, a new row for it replaces the old one
+        long insertId = database.insertWithOnConflict(MySQLiteHelper.TABLE_MUSICS, null,
+                values, SQLiteDatabase.CONFLICT_REPLACE);
+        if (insertId == -1) {
+            return null;
         }
-        return null;
+        // The row holds what was just written, no need to read it back
+        MusicDB newComment = new MusicDB();
+        newComment.setId((int) insertId);
+        newComment.setComment(artist);
+        return newComment;
     }
 
-    // Deleting single contact
-    public void deleteFavorite(String mediaID) {
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-
-        db.delete(MySQLiteHelper.TABLE_MUSICS,
-                MySQLiteHelper.MEDIA_ID + " = ?",
-                new String[] { String.valueOf(mediaID) });
+    /**
+     * Add a favorite. A row already listing the media id only gets marked a favorite, so it
+     * keeps its other columns and its row id.
+     */
+    public synchronized void addFavorite(String mediaID) {
+        open();
+        if (mUpdateFavoriteStatement == null) {
+            mUpdateFavoriteStatement = database.compileStatement(UPDATE_FAVORITE_SQL);
+        }
+        mUpdateFavoriteStatement.bindLong(1, 1);
+        mUpdateFavoriteStatement.bindString(2, mediaID);
+        if (mUpdateFavoriteStatement.executeUpdateDelete() > 0) {
+            return;
+        }
+        if (mInsertFavoriteStatement == null) {
+            mInsertFavoriteStatement = database.compileStatement(INSERT_FAVORITE_SQL);
+        }
+        mInsertFavoriteStatement.bindString(1, mediaID);
+        mInsertFavoriteStatement.bindLong(2, 1);
+        mInsertFavoriteStatement.executeInsert();
+    }
 
-        db.close();
+    /**
+     * Add and remove favorites in one transaction.
+     *
+     * @param favorites by media id, true to add the favorite and false to remove it.
+     */
+    public synchronized void writeFavorites(Map<String, Boolean> favorites) {
+        open();
+        // Under write-ahead logging, readers go on while the transaction is open
+        database.beginTransactionNonExclusive();
+        try {
+            for (Map.Entry<String, Boolean> favorite : favorites.entrySet()) {
+                if (favorite.getValue()) {
+                    addFavorite(favorite.getKey());
+                } else {
+                    deleteFavorite(favorite.getKey());
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
+    // Deleting single contact
+    public synchronized void deleteFavorite(String mediaID) {
+        open();
+        if (mDeleteFavoriteStatement == null) {
+            mDeleteFavoriteStatement = database.compileStatement(DELETE_FAVORITE_SQL);
+        }
+        mDeleteFavoriteStatement.bindString(1, String.valueOf(mediaID));
+        mDeleteFavoriteStatement.executeUpdateDelete();
+    }
 
     // Getting single favorite
-    public String getFavorite(String mediaID) {
-        String isFavorite;
-
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-
-        Cursor cursor = db.query(MySQLiteHelper.TABLE_MUSICS,
-                new String[] { MySQLiteHelper._ID, MySQLiteHelper.MEDIA_ID, MySQLiteHelper.IS_FAVORITE },
-                MySQLiteHelper.MEDIA_ID + "=?",
-                new String[] { String.valueOf(mediaID) },
-                null, null, null, null);
-
-        if (cursor == null) {
-            // Query failed...
-            LogHelper.e(TAG, "Failed to retrieve music: cursor is null :-(");
-            return null;
+    public synchronized String getFavorite(String mediaID) {
+        open();
+        if (mIsFavoriteStatement == null) {
+            mIsFavoriteStatement = database.compileStatement(IS_FAVORITE_SQL);
         }
-        if (!cursor.moveToFirst()) {
-            // Nothing to query. There is no music on the device. How boring.
-            //LogHelper.e(TAG, "Failed to move cursor to first row (no query results).");
+        mIsFavoriteStatement.bindString(1, String.valueOf(mediaID));
+        try {
+            return mIsFavoriteStatement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            // Not a favorite
             return null;
         }
+    }
 
-        do {
-            isFavorite = cursor.getString(1);
-        } while (cursor.moveToNext());
-
-        cursor.close();
-
-        // return contact
-        return isFavorite;
+    public boolean isFavorite(String mediaID) {
+        return getFavorite(mediaID) != null;
     }
 
     // Getting All favorites
-    public List<MusicDB> getAllFavorites() {
+    public synchronized List<MusicDB> getAllFavorites() {
+        open();
         List<MusicDB> favoriteList = new ArrayList<>();
-        // Select All Query
-        String selectQuery = "SELECT  * FROM " + MySQLiteHelper.TABLE_MUSICS;
-
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
+        // The connection keeps the compiled query, like the statements above
+        Cursor cursor = database.rawQuery(ALL_FAVORITES_SQL, null);
 
         // looping through all rows and adding to list
         if (cursor.moveToFirst()) {
             do {
                 MusicDB music = new MusicDB();
-                music.setMediaId(cursor.getString(1));
+                music.setMediaId(cursor.getString(0));
                 // Adding favorite to list
                 favoriteList.add(music);
             } while (cursor.moveToNext());
@@ -167,7 +220,8 @@ public class MusicDBDataSource {
         return favoriteList;
     }
 
-    public MusicDB updateMusic(String artist, String title, String album, Long albumId, Long duration, String genreName, String mediaId) {
+    public synchronized MusicDB updateMusic(String artist, String title, String album, Long albumId, Long duration, String genreName, String mediaId) {
+        open();
         ContentValues values = new ContentValues();
 
         values.put(MySQLiteHelper.ARTIST, artist);
@@ -178,27 +232,32 @@ public class MusicDBDataSource {
         values.put(MySQLiteHelper.GENRE_NAME, genreName);
         values.put(MySQLiteHelper.MEDIA_ID, mediaId);
 
-        String selection = MySQLiteHelper.MEDIA_ID + "=" + mediaId;
-
-        Cursor c = database.rawQuery("SELECT * FROM " + MySQLiteHelper.TABLE_MUSICS+ " WHERE " + MySQLiteHelper.MEDIA_ID + "= '" + mediaId + "'", null);
-
-        boolean exists = c.moveToFirst();
-        if(!exists) {
-            LogHelper.d(TAG, "exists = " + exists);
+        // Media ids are unique, so the row to update is found through their index
+        int updated = database.update(MySQLiteHelper.TABLE_MUSICS, values,
+                MySQLiteHelper.MEDIA_ID + " = ?", new String[] { mediaId });
+        LogHelper.d(TAG, "exists = " + (updated > 0));
+        if (updated == 0) {
             database.insert(MySQLiteHelper.TABLE_MUSICS, null, values);
-        } else {
-            LogHelper.d(TAG, "exists = " + exists);
-            database.update(MySQLiteHelper.TABLE_MUSICS, values, selection, null);
         }
-
-        c.close();
         return null;
     }
 
-    private MusicDB cursorToComment(Cursor cursor) {
-      MusicDB comment = new MusicDB();
-    comment.setId(cursor.getInt(0));
-    comment.setComment(cursor.getString(1));
-    return comment;
-  }
+    private void closeStatements() {
+        if (mIsFavoriteStatement != null) {
+            mIsFavoriteStatement.close();
+            mIsFavoriteStatement = null;
+        }
+        if (mUpdateFavoriteStatement != null) {
+            mUpdateFavoriteStatement.close();
+            mUpdateFavoriteStatement = null;
+        }
+        if (mInsertFavoriteStatement != null) {
+            mInsertFavoriteStatement.close();
+            mInsertFavoriteStatement = null;
+        }
+        if (mDeleteFavoriteStatement != null) {
+            mDeleteFavoriteStatement.close();
+            mDeleteFavoriteStatement = null;
+        }
+    }
 } 
@@ -21,8 +21,18 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import dk.siman.jive.utils.LogHelper;
+
+/**
+ * The favorites database.
+ *
+ * Version 2 makes media ids unique, so a favorite is found through an index and toggling it
+ * cannot pile up rows. Every version from 1 on is upgraded step by step in onUpgrade().
+ */
 public class MySQLiteHelper extends SQLiteOpenHelper {
 
+    private static final String TAG = LogHelper.makeLogTag(MySQLiteHelper.class);
+
     public static final String TABLE_MUSICS = "music";
     public static final String _ID = "_id";
     public static final String MEDIA_ID = "media_id";
@@ -35,8 +45,8 @@ public class MySQLiteHelper extends SQLiteOpenHelper {
     public static final String GENRE_NAME = "genre_name";
     public static final String IS_FAVORITE = "is_favorite";
 
-    private static final String DATABASE_NAME = "musicdb.db";
-    private static final int DATABASE_VERSION = 1;
+    static final String DATABASE_NAME = "musicdb.db";
+    static final int DATABASE_VERSION = 2;
     private static MySQLiteHelper mInstance = null;
 
     private static final String DATABASE_CREATE = "CREATE TABLE IF NOT EXISTS " + TABLE_MUSICS
@@ -52,25 +62,58 @@ public class MySQLiteHelper extends SQLiteOpenHelper {
             + GENRE_NAME + " TEXT, "
             + IS_FAVORITE + " TEXT)";
 
+    private static final String MEDIA_ID_INDEX_CREATE = "CREATE UNIQUE INDEX IF NOT EXISTS "
+            + TABLE_MUSICS + "_" + MEDIA_ID + " ON " + TABLE_MUSICS + " (" + MEDIA_ID + ")";
+
+    // Keeps the newest row of every media id, and drops rows without one
+    private static final String DEDUPE_MEDIA_IDS = "DELETE FROM " + TABLE_MUSICS
+            + " WHERE " + MEDIA_ID + " IS NULL OR " + _ID + " NOT IN (SELECT MAX(" + _ID
+            + ") FROM " + TABLE_MUSICS + " GROUP BY " + MEDIA_ID + ")";
+
     private MySQLiteHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Favorites are written in the background while they are read for browsing
+        setWriteAheadLoggingEnabled(true);
     }
 
-    public static MySQLiteHelper getInstance(Context context) {
+    public static synchronized MySQLiteHelper getInstance(Context context) {
         if (mInstance == null) {
             mInstance = new MySQLiteHelper(context.getApplicationContext());
         }
         return mInstance;
     }
 
+    /**
+     * Close the shared helper and forget it, so the next getInstance() opens the database of
+     * the context given then.
+     */
+    public static synchronized void releaseInstance() {
+        if (mInstance != null) {
+            mInstance.close();
+            mInstance = null;
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(DATABASE_CREATE);
+        database.execSQL(MEDIA_ID_INDEX_CREATE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        LogHelper.i(TAG, "Upgrading ", DATABASE_NAME, " from version ", oldVersion,
+                " to ", newVersion);
+        if (oldVersion < 2) {
+            upgradeToVersion2(db);
+        }
+        // Let the query planner know the new shape of the tables
+        db.execSQL("ANALYZE");
+    }
 
+    private static void upgradeToVersion2(SQLiteDatabase db) {
+        db.execSQL(DEDUPE_MEDIA_IDS);
+        db.execSQL(MEDIA_ID_INDEX_CREATE);
     }
 
 }
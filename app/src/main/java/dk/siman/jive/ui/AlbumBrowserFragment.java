@@ -176,6 +176,9 @@ public class AlbumBrowserFragment extends Fragment {
                 }
             };
 
+    private final PagedChildrenLoader mChildrenLoader =
+            new PagedChildrenLoader(mSubscriptionCallback);
+
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
@@ -208,6 +211,7 @@ public class AlbumBrowserFragment extends Fragment {
         mAlbumListAdapter = new AlbumListAdapter(getActivity(), musicList, getParentId());
 
         listView.setAdapter(mAlbumListAdapter);
+        listView.setOnScrollListener(mChildrenLoader);
 
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
@@ -250,10 +254,7 @@ public class AlbumBrowserFragment extends Fragment {
     public void onStop() {
         LogHelper.d(TAG, "onStop");
         super.onStop();
-        MediaBrowser mediaBrowser = mMediaFragmentListener.getMediaBrowser();
-        if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
-            mediaBrowser.unsubscribe(mMediaId);
-        }
+        mChildrenLoader.stop();
         if (getActivity().getMediaController() != null) {
             LogHelper.d(TAG, "unregisterCallback");
             getActivity().getMediaController().unregisterCallback(mMediaControllerCallback);
@@ -325,18 +326,8 @@ public class AlbumBrowserFragment extends Fragment {
         }
         updateTitle();
 
-        // Unsubscribing before subscribing is required if this mediaId already has a subscriber
-        // on this MediaBrowser instance. Subscribing to an already subscribed mediaId will replace
-        // the callback, but won't trigger the initial callback.onChildrenLoaded.
-        //
-        // This is temporary: A bug is being fixed that will make subscribe
-        // consistently call onChildrenLoaded initially, no matter if it is replacing an existing
-        // subscriber or not. Currently this only happens if the mediaID has no previous
-        // subscriber or if the media content changes on the service side, so we need to
-        // unsubscribe first.
-        mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
-
-        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+        // Loaded a page at a time, see PagedChildrenLoader
+        mChildrenLoader.start(mMediaFragmentListener.getMediaBrowser(), mMediaId);
 
         // Add MediaController callback so we can redraw the list when metadata changes:
         if (getActivity().getMediaController() != null) {
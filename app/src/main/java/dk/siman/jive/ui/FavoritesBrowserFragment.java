@@ -58,6 +58,7 @@ public class FavoritesBrowserFragment extends Fragment {
     private static final String ARG_MEDIA_ID = "media_id";
 
     private BrowseAdapter mBrowserAdapter;
+    private PagedChildrenLoader mChildrenLoader;
     private String mMediaId;
     private MediaFragmentListener mMediaFragmentListener;
     private View mErrorView;
@@ -138,9 +139,11 @@ public class FavoritesBrowserFragment extends Fragment {
         mErrorMessage = (TextView) mErrorView.findViewById(R.id.error_message);
 
         mBrowserAdapter = new BrowseAdapter(getActivity());
+        mChildrenLoader = new PagedChildrenLoader(mSubscriptionCallback);
 
         ListView listView = (ListView) rootView.findViewById(R.id.list_view);
         listView.setAdapter(mBrowserAdapter);
+        listView.setOnScrollListener(mChildrenLoader);
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -175,10 +178,7 @@ public class FavoritesBrowserFragment extends Fragment {
     @Override
     public void onStop() {
         super.onStop();
-        MediaBrowser mediaBrowser = mMediaFragmentListener.getMediaBrowser();
-        if (mediaBrowser != null && mediaBrowser.isConnected() && mMediaId != null) {
-            mediaBrowser.unsubscribe(mMediaId);
-        }
+        mChildrenLoader.stop();
         if (getActivity().getMediaController() != null) {
             getActivity().getMediaController().unregisterCallback(mMediaControllerCallback);
         }
@@ -218,18 +218,8 @@ public class FavoritesBrowserFragment extends Fragment {
         }
         updateTitle();
 
-        // Unsubscribing before subscribing is required if this mediaId already has a subscriber
-        // on this MediaBrowser instance. Subscribing to an already subscribed mediaId will replace
-        // the callback, but won't trigger the initial callback.onChildrenLoaded.
-        //
-        // This is temporary: A bug is being fixed that will make subscribe
-        // consistently call onChildrenLoaded initially, no matter if it is replacing an existing
-        // subscriber or not. Currently this only happens if the mediaID has no previous
-        // subscriber or if the media content changes on the service side, so we need to
-        // unsubscribe first.
-        mMediaFragmentListener.getMediaBrowser().unsubscribe(mMediaId);
-
-        mMediaFragmentListener.getMediaBrowser().subscribe(mMediaId, mSubscriptionCallback);
+        // Loaded a page at a time, see PagedChildrenLoader
+        mChildrenLoader.start(mMediaFragmentListener.getMediaBrowser(), mMediaId);
 
         // Add MediaController callback so we can redraw the list when metadata changes:
         if (getActivity().getMediaController() != null) {
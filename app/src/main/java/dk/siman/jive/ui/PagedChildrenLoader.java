@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.ui;
+
+import android.media.browse.MediaBrowser;
+import android.widget.AbsListView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import dk.siman.jive.utils.LogHelper;
+import dk.siman.jive.utils.MediaIDHelper;
+
+/**
+ * Loads the children of a media id one page at a time, as the list showing them is scrolled
+ * towards its end.
+ *
+ * Every page is its own subscription on the {@link MediaBrowser}, so a page is reloaded on its
+ * own when the service notifies a change. The pages loaded so far are handed to the
+ * fragment's {@link MediaBrowser.SubscriptionCallback} as one list, under the unpaged media id.
+ */
+class PagedChildrenLoader implements AbsListView.OnScrollListener {
+
+    private static final String TAG = LogHelper.makeLogTag(PagedChildrenLoader.class);
+
+    static final int PAGE_SIZE = 100;
+    // Load the next page when the list is scrolled this close to its last item
+    private static final int PREFETCH_DISTANCE = 20;
+
+    private final MediaBrowser.SubscriptionCallback mCallback;
+    private final List<List<MediaBrowser.MediaItem>> mPages = new ArrayList<>();
+    private final List<String> mSubscriptions = new ArrayList<>();
+    private MediaBrowser mMediaBrowser;
+    private String mMediaId;
+    private boolean mLoading;
+
+    private final MediaBrowser.SubscriptionCallback mPageCallback =
+            new MediaBrowser.SubscriptionCallback() {
+                @Override
+                public void onChildrenLoaded(String parentId,
+                                             List<MediaBrowser.MediaItem> children) {
+                    int[] page = MediaIDHelper.getPage(parentId);
+                    if (mMediaId == null || page == null
+                            || !mMediaId.equals(MediaIDHelper.getUnpagedMediaID(parentId))) {
+                        return;
+                    }
+                    LogHelper.d(TAG, "Loaded page ", page[0], " of ", mMediaId,
+                            ", count=", children.size());
+                    while (mPages.size() <= page[0]) {
+                        mPages.add(new ArrayList<MediaBrowser.MediaItem>());
+                    }
+                    mPages.set(page[0], children);
+                    if (page[0] == mSubscriptions.size() - 1) {
+                        mLoading = false;
+                    }
+
+                    List<MediaBrowser.MediaItem> loaded = new ArrayList<>();
+                    for (List<MediaBrowser.MediaItem> items : mPages) {
+                        loaded.addAll(items);
+                    }
+                    mCallback.onChildrenLoaded(mMediaId, loaded);
+                }
+
+                @Override
+                public void onError(String id) {
+                    mLoading = false;
+                    mCallback.onError(id);
+                }
+            };
+
+    PagedChildrenLoader(MediaBrowser.SubscriptionCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Start loading the children of the media id from its first page, dropping any pages
+     * loaded before.
+     */
+    void start(MediaBrowser mediaBrowser, String mediaId) {
+        stop();
+        mMediaBrowser = mediaBrowser;
+        mMediaId = mediaId;
+        loadNextPage();
+    }
+
+    /**
+     * Unsubscribe from every page loaded.
+     */
+    void stop() {
+        if (mMediaBrowser != null && mMediaBrowser.isConnected()) {
+            for (String pagedMediaId : mSubscriptions) {
+                mMediaBrowser.unsubscribe(pagedMediaId);
+            }
+        }
+        mSubscriptions.clear();
+        mPages.clear();
+        mMediaBrowser = null;
+        mMediaId = null;
+        mLoading = false;
+    }
+
+    private boolean isComplete() {
+        return mPages.size() == mSubscriptions.size() && !mPages.isEmpty()
+                && mPages.get(mPages.size() - 1).size() < PAGE_SIZE;
+    }
+
+    private void loadNextPage() {
+        if (mMediaBrowser == null || !mMediaBrowser.isConnected() || mLoading || isComplete()) {
+            return;
+        }
+        mLoading = true;
+        String pagedMediaId = MediaIDHelper.createPagedMediaID(
+                mMediaId, mSubscriptions.size(), PAGE_SIZE);
+        mSubscriptions.add(pagedMediaId);
+        // Unsubscribing first guarantees the initial onChildrenLoaded of the page, even if the
+        // page was subscribed to before
+        mMediaBrowser.unsubscribe(pagedMediaId);
+        mMediaBrowser.subscribe(pagedMediaId, mPageCallback);
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        if (totalItemCount > 0
+                && firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+}
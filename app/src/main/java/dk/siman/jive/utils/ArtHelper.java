@@ -26,6 +26,7 @@ import android.os.ParcelFileDescriptor;
 
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 public class ArtHelper {
     private static final String TAG = LogHelper.makeLogTag(ArtHelper.class);
@@ -68,9 +69,10 @@ public class ArtHelper {
             ParcelFileDescriptor pfd = context.getContentResolver()
                     .openFileDescriptor(uri, "r");
             if (pfd != null) {
+                pfd.close();
                 return true;
             }
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             //LogHelper.i(TAG, "Song does not contain album art");
         } catch (NullPointerException e) {
             //LogHelper.i(TAG, "NullPointerException: " + e);
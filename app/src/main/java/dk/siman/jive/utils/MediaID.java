@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A parsed media ID: the category hierarchy a music was selected from, and the music ID
+ * itself for playable items. See {@link MediaIDHelper#createMediaID} for the string form.
+ *
+ * Category values may contain any character: the ones with a meaning in media IDs, the
+ * separators and '#' which starts the page of a paged media ID (see
+ * {@link MediaIDHelper#createPagedMediaID}), are escaped in the string form.
+ *
+ * Media IDs are immutable. Parsing goes through a small cache, since the same IDs are parsed
+ * over and over (the playing queue, list rows being redrawn), and category types are shared
+ * with the MEDIA_ID_* constants. Playable IDs of one category share the serialized category
+ * prefix, see {@link #child}.
+ */
+public final class MediaID {
+
+    private static final char CATEGORY_SEPARATOR = '/';
+    private static final char LEAF_SEPARATOR = '|';
+    private static final char ESCAPE = '%';
+    // Characters escaped in categories, as ESCAPE and two hex digits
+    private static final String RESERVED = "%/|#";
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final int PARSE_CACHE_SIZE = 256;
+
+    private static final String[] NO_CATEGORIES = new String[0];
+
+    // Category types parsed from strings are replaced by the constants
+    private static final Map<String, String> CATEGORY_TYPES = new HashMap<>();
+
+    static {
+        for (String type : new String[] {
+                MediaIDHelper.MEDIA_ID_ROOT,
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE,
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE,
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH,
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM,
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST,
+                MediaIDHelper.MEDIA_ID_MUSICS_BY_ALPHABET,
+                MediaIDHelper.MEDIA_ID_MUSICS_MOST_PLAYED,
+                MediaIDHelper.MEDIA_ID_MUSICS_RECENT}) {
+            CATEGORY_TYPES.put(type, type);
+        }
+    }
+
+    private static final Map<String, MediaID> PARSE_CACHE =
+            new LinkedHashMap<String, MediaID>(PARSE_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, MediaID> eldest) {
+                    return size() > PARSE_CACHE_SIZE;
+                }
+            };
+
+    private final String[] mHierarchy;
+    private final String mMusicId;
+    // String forms, built on first use
+    private String mString;
+    private String mChildPrefix;
+
+    private MediaID(String[] hierarchy, String musicId, String string) {
+        mHierarchy = hierarchy;
+        mMusicId = musicId;
+        mString = string;
+    }
+
+    /**
+     * @param musicId the music ID of a playable item, or null for a browsable one.
+     * @param categories the category hierarchy, like a category type and its value.
+     */
+    public static MediaID of(String musicId, String... categories) {
+        String[] hierarchy = categories == null || categories.length == 0
+                ? NO_CATEGORIES : categories.clone();
+        if (hierarchy.length > 0) {
+            hierarchy[0] = internCategoryType(hierarchy[0]);
+        }
+        return new MediaID(hierarchy, musicId, null);
+    }
+
+    public static MediaID parse(String mediaId) {
+        synchronized (PARSE_CACHE) {
+            MediaID parsed = PARSE_CACHE.get(mediaId);
+            if (parsed != null) {
+                return parsed;
+            }
+        }
+
+        String musicId = null;
+        String categories = mediaId;
+        int leaf = mediaId.indexOf(LEAF_SEPARATOR);
+        if (leaf >= 0) {
+            musicId = mediaId.substring(leaf + 1);
+            categories = mediaId.substring(0, leaf);
+        }
+        String[] hierarchy = split(categories);
+        if (hierarchy.length > 0) {
+            hierarchy[0] = internCategoryType(hierarchy[0]);
+        }
+        MediaID parsed = new MediaID(hierarchy, musicId, mediaId);
+
+        synchronized (PARSE_CACHE) {
+            PARSE_CACHE.put(mediaId, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the unique music ID, or null if this is a browsable media ID.
+     */
+    public String getMusicId() {
+        return mMusicId;
+    }
+
+    public boolean isBrowseable() {
+        return mMusicId == null;
+    }
+
+    /**
+     * @return the number of levels of the category hierarchy.
+     */
+    public int getDepth() {
+        return mHierarchy.length;
+    }
+
+    public String getCategory(int level) {
+        return mHierarchy[level];
+    }
+
+    /**
+     * @return the category type, like {@link MediaIDHelper#MEDIA_ID_MUSICS_BY_GENRE}, or null.
+     */
+    public String getCategoryType() {
+        return mHierarchy.length > 0 ? mHierarchy[0] : null;
+    }
+
+    /**
+     * @return the category value, like a genre name, if the hierarchy is a category type and
+     *         its value; null otherwise.
+     */
+    public String getCategoryValue() {
+        return mHierarchy.length == 2 ? mHierarchy[1] : null;
+    }
+
+    /**
+     * @return a copy of the category hierarchy.
+     */
+    public String[] getHierarchy() {
+        return mHierarchy.clone();
+    }
+
+    /**
+     * @return the browsable media ID this one is listed in.
+     */
+    public MediaID getParent() {
+        if (!isBrowseable()) {
+            return new MediaID(mHierarchy, null, null);
+        }
+        if (mHierarchy.length <= 1) {
+            return parse(MediaIDHelper.MEDIA_ID_ROOT);
+        }
+        return new MediaID(Arrays.copyOf(mHierarchy, mHierarchy.length - 1), null, null);
+    }
+
+    /**
+     * @return the media ID of a music listed in this category.
+     */
+    public MediaID child(String musicId) {
+        String prefix = mChildPrefix;
+        if (prefix == null) {
+            prefix = serialize(mHierarchy, null) + LEAF_SEPARATOR;
+            mChildPrefix = prefix;
+        }
+        return new MediaID(mHierarchy, musicId, prefix + musicId);
+    }
+
+    @Override
+    public String toString() {
+        String string = mString;
+        if (string == null) {
+            string = serialize(mHierarchy, mMusicId);
+            mString = string;
+        }
+        return string;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MediaID && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    private static String serialize(String[] hierarchy, String musicId) {
+        StringBuilder sb = new StringBuilder();
+        if (hierarchy.length > 0) {
+            escape(sb, hierarchy[0]);
+            for (int i = 1; i < hierarchy.length; i++) {
+                escape(sb.append(CATEGORY_SEPARATOR), hierarchy[i]);
+            }
+        }
+        if (musicId != null) {
+            sb.append(LEAF_SEPARATOR).append(musicId);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Split the categories like String.split() does, without its intermediate list.
+     */
+    private static String[] split(String categories) {
+        int count = 1;
+        for (int i = 0; i < categories.length(); i++) {
+            if (categories.charAt(i) == CATEGORY_SEPARATOR) {
+                count++;
+            }
+        }
+        if (count == 1) {
+            return new String[] { unescape(categories) };
+        }
+        String[] hierarchy = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = i == count - 1 ? categories.length()
+                    : categories.indexOf(CATEGORY_SEPARATOR, start);
+            hierarchy[i] = unescape(categories.substring(start, end));
+            start = end + 1;
+        }
+        // String.split() drops trailing empty strings
+        while (count > 0 && hierarchy[count - 1].isEmpty()) {
+            count--;
+        }
+        return count == hierarchy.length ? hierarchy : Arrays.copyOf(hierarchy, count);
+    }
+
+    private static void escape(StringBuilder sb, String category) {
+        for (int i = 0; i < category.length(); i++) {
+            char c = category.charAt(i);
+            if (RESERVED.indexOf(c) >= 0) {
+                sb.append(ESCAPE).append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String category) {
+        int pos = category.indexOf(ESCAPE);
+        if (pos < 0) {
+            return category;
+        }
+        StringBuilder sb = new StringBuilder(category.length());
+        sb.append(category, 0, pos);
+        for (int i = pos; i < category.length(); i++) {
+            char c = category.charAt(i);
+            if (c == ESCAPE && i + 2 < category.length() && isHexEscape(category, i)) {
+                sb.append((char) Integer.parseInt(category.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isHexEscape(String category, int pos) {
+        return Character.digit(category.charAt(pos + 1), 16) >= 0
+                && Character.digit(category.charAt(pos + 2), 16) >= 0;
+    }
+
+    private static String internCategoryType(String type) {
+        String interned = CATEGORY_TYPES.get(type);
+        return interned != null ? interned : type;
+    }
+}
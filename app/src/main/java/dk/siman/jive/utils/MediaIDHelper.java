@@ -16,8 +16,6 @@
 
 package dk.siman.jive.utils;
 
-import java.util.Arrays;
-
 /**
  * Utility class to help on queue related tasks.
  */
@@ -33,10 +31,19 @@ public class MediaIDHelper {
     public static final String MEDIA_ID_MUSICS_BY_ALBUM = "__BY_ALBUM__";
     public static final String MEDIA_ID_MUSICS_BY_ARTIST = "__BY_ARTIST__";
     public static final String MEDIA_ID_MUSICS_BY_ALPHABET = "__BY_ALPHABET__";
+    public static final String MEDIA_ID_MUSICS_MOST_PLAYED = "__MOST_PLAYED__";
+    public static final String MEDIA_ID_MUSICS_RECENT = "__RECENT__";
+
 
+    // Paging options of onLoadChildren, as MediaBrowser.EXTRA_PAGE and EXTRA_PAGE_SIZE name
+    // them from API 24 on
+    public static final String EXTRA_PAGE = "android.media.browse.extra.PAGE";
+    public static final String EXTRA_PAGE_SIZE = "android.media.browse.extra.PAGE_SIZE";
 
-    private static final char CATEGORY_SEPARATOR = '/';
-    private static final char LEAF_SEPARATOR = '|';
+    // Before API 24 MediaBrowser cannot pass options when subscribing, so a page is requested
+    // by subscribing to <parentMediaId>#page=<page>,<pageSize>. MediaID escapes '#' in
+    // category values, so the separator never comes from the media ID itself.
+    private static final String PAGE_SEPARATOR = "#page=";
 
     public static String createMediaID(String musicID, String... categories) {
         // MediaIDs are of the form <categoryType>/<categoryValue>|<musicUniqueId>, to make it easy
@@ -44,21 +51,54 @@ public class MediaIDHelper {
         // can correctly build the playing queue. This is specially useful when
         // one music can appear in more than one list, like "by genre -> genre_1"
         // and "by artist -> artist_1".
-        StringBuilder sb = new StringBuilder();
-        if (categories != null && categories.length > 0) {
-            sb.append(categories[0]);
-            for (int i=1; i < categories.length; i++) {
-                sb.append(CATEGORY_SEPARATOR).append(categories[i]);
-            }
+        // Media IDs built in a loop should use MediaID.child() on the category instead.
+        return MediaID.of(musicID, categories).toString();
+    }
+
+    public static String createBrowseCategoryMediaID(String categoryType, String categoryValue) {
+        return MediaID.of(null, categoryType, categoryValue).toString();
+    }
+
+    /**
+     * Media ID of one page of the children of a browsable media ID.
+     *
+     * @param page zero based page index.
+     * @param pageSize number of children per page.
+     */
+    public static String createPagedMediaID(String mediaID, int page, int pageSize) {
+        return mediaID + PAGE_SEPARATOR + page + ',' + pageSize;
+    }
+
+    /**
+     * @return the page index and page size of a paged media ID, or null if the media ID is
+     *         not paged.
+     */
+    public static int[] getPage(String mediaID) {
+        int pos = mediaID.indexOf(PAGE_SEPARATOR);
+        if (pos < 0) {
+            return null;
+        }
+        String[] page = mediaID.substring(pos + PAGE_SEPARATOR.length()).split(",");
+        if (page.length != 2) {
+            return null;
         }
-        if (musicID != null) {
-            sb.append(LEAF_SEPARATOR).append(musicID);
+        try {
+            int index = Integer.parseInt(page[0]);
+            int size = Integer.parseInt(page[1]);
+            return index >= 0 && size > 0 ? new int[] { index, size } : null;
+        } catch (NumberFormatException e) {
+            return null;
         }
-        return sb.toString();
     }
 
-    public static String createBrowseCategoryMediaID(String categoryType, String categoryValue) {
-        return categoryType + CATEGORY_SEPARATOR + categoryValue;
+    /**
+     * @return the media ID without its page, see {@link #createPagedMediaID}.
+     */
+    public static String getUnpagedMediaID(String mediaID) {
+        if (getPage(mediaID) == null) {
+            return mediaID;
+        }
+        return mediaID.substring(0, mediaID.indexOf(PAGE_SEPARATOR));
     }
 
     /**
@@ -71,11 +111,7 @@ public class MediaIDHelper {
      * @return musicID
      */
     public static String extractMusicIDFromMediaID(String mediaID) {
-        int pos = mediaID.indexOf(LEAF_SEPARATOR);
-        if (pos >= 0) {
-            return mediaID.substring(pos+1);
-        }
-        return null;
+        return MediaID.parse(mediaID).getMusicId();
     }
 
     /**
@@ -87,34 +123,14 @@ public class MediaIDHelper {
      * @param mediaID that contains a category and categoryValue.
      */
     public static String[] getHierarchy(String mediaID) {
-        int pos = mediaID.indexOf(LEAF_SEPARATOR);
-        if (pos >= 0) {
-            mediaID = mediaID.substring(0, pos);
-        }
-        return mediaID.split(String.valueOf(CATEGORY_SEPARATOR));
+        return MediaID.parse(mediaID).getHierarchy();
     }
 
     public static String extractBrowseCategoryValueFromMediaID(String mediaID) {
-        String[] hierarchy = getHierarchy(mediaID);
-        if (hierarchy != null && hierarchy.length == 2) {
-            return hierarchy[1];
-        }
-        return null;
-    }
-
-    private static boolean isBrowseable(String mediaID) {
-        return mediaID.indexOf(LEAF_SEPARATOR) < 0;
+        return MediaID.parse(mediaID).getCategoryValue();
     }
 
     public static String getParentMediaID(String mediaID) {
-        String[] hierarchy = getHierarchy(mediaID);
-        if (!isBrowseable(mediaID)) {
-            return createMediaID(null, hierarchy);
-        }
-        if (hierarchy == null || hierarchy.length <= 1) {
-            return MEDIA_ID_ROOT;
-        }
-        String[] parentHierarchy = Arrays.copyOf(hierarchy, hierarchy.length-1);
-        return createMediaID(null, parentHierarchy);
+        return MediaID.parse(mediaID).getParent().toString();
     }
 }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Hands memory pressure on to the caches of the process.
+ *
+ * Caches register themselves as a {@link Trimmable} and report how many bytes they hold.
+ * On every trim level of {@link ComponentCallbacks2#onTrimMemory} each cache decides what it
+ * can give back: what is cheap to load again goes first, what playback needs goes last. The
+ * point is to stay in the background LRU instead of being killed in the middle of playback.
+ *
+ * Caches are held weakly, so a cache of a screen does not outlive the screen.
+ */
+public final class MemoryGovernor implements ComponentCallbacks2 {
+
+    private static final String TAG = LogHelper.makeLogTag(MemoryGovernor.class);
+
+    private static final MemoryGovernor INSTANCE = new MemoryGovernor();
+
+    private final Set<Trimmable> mTrimmables =
+            Collections.newSetFromMap(new WeakHashMap<Trimmable, Boolean>());
+
+    public interface Trimmable {
+        /**
+         * @return the approximate number of bytes held, that trimming could give back.
+         */
+        long getRetainedBytes();
+
+        /**
+         * Release memory as fits the level.
+         *
+         * @param level one of the ComponentCallbacks2.TRIM_MEMORY_* levels.
+         */
+        void onTrimMemory(int level);
+    }
+
+    private MemoryGovernor() {
+    }
+
+    public static MemoryGovernor getInstance() {
+        return INSTANCE;
+    }
+
+    public void register(Trimmable trimmable) {
+        synchronized (mTrimmables) {
+            mTrimmables.add(trimmable);
+        }
+    }
+
+    public void unregister(Trimmable trimmable) {
+        synchronized (mTrimmables) {
+            mTrimmables.remove(trimmable);
+        }
+    }
+
+    /**
+     * @return the bytes held by all registered caches.
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (Trimmable trimmable : snapshot()) {
+            bytes += trimmable.getRetainedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        List<Trimmable> trimmables = snapshot();
+        long before = 0;
+        long after = 0;
+        for (Trimmable trimmable : trimmables) {
+            before += trimmable.getRetainedBytes();
+            try {
+                trimmable.onTrimMemory(level);
+            } catch (RuntimeException e) {
+                LogHelper.e(TAG, e, "Could not trim ", trimmable);
+            }
+            after += trimmable.getRetainedBytes();
+        }
+        LogHelper.i(TAG, "onTrimMemory level=", level, " caches=", trimmables.size(),
+                " retained ", before / 1024, "KB -> ", after / 1024, "KB");
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private List<Trimmable> snapshot() {
+        synchronized (mTrimmables) {
+            return new ArrayList<>(mTrimmables);
+        }
+    }
+}
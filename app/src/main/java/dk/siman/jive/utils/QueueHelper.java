@@ -16,15 +16,13 @@
 
 package dk.siman.jive.utils;
 
+import android.media.MediaDescription;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.os.Bundle;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.ThreadLocalRandom;
 
 import dk.siman.jive.VoiceSearchParams;
 import dk.siman.jive.model.MusicProvider;
@@ -35,6 +33,8 @@ import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
 import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_SEARCH;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_MOST_PLAYED;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_RECENT;
 
 /**
  * Utility class to help on queue related tasks.
@@ -47,15 +47,23 @@ public class QueueHelper {
             MusicProvider musicProvider) {
 
         // extract the browsing hierarchy from the media ID:
-        String[] hierarchy = MediaIDHelper.getHierarchy(mediaId);
+        MediaID hierarchy = MediaID.parse(mediaId);
+
+        // The play history lists have no category value
+        if (MEDIA_ID_MUSICS_MOST_PLAYED.equals(hierarchy.getCategoryType())) {
+            return convertToQueue(musicProvider.getMostPlayedMusics(),
+                    MEDIA_ID_MUSICS_MOST_PLAYED);
+        } else if (MEDIA_ID_MUSICS_RECENT.equals(hierarchy.getCategoryType())) {
+            return convertToQueue(musicProvider.getRecentMusics(), MEDIA_ID_MUSICS_RECENT);
+        }
 
-        if (hierarchy.length != 2) {
+        if (hierarchy.getDepth() != 2) {
             LogHelper.e(TAG, "Could not build a playing queue for this mediaId: ", mediaId);
             return null;
         }
 
-        String categoryType = hierarchy[0];
-        String categoryValue = hierarchy[1];
+        String categoryType = hierarchy.getCategoryType();
+        String categoryValue = hierarchy.getCategoryValue();
         LogHelper.d(TAG, "Creating playing queue for ", categoryType, ",  ", categoryValue);
 
         Iterable<MediaMetadata> tracks = null;
@@ -74,9 +82,9 @@ public class QueueHelper {
                 tracks = musicProvider.getMusicsByAlbum(categoryValue);
                 break;
             case MEDIA_ID_MUSICS_BY_ALPHABET:
-                return convertToAllQueue(musicProvider, hierarchy[0], hierarchy[1]);
+                return convertToAllQueue(musicProvider, categoryType, categoryValue);
             case MEDIA_ID_MUSICS_BY_FAVORITE:
-                return convertToFavoriteQueue(musicProvider, hierarchy[0], hierarchy[1]);
+                return convertToFavoriteQueue(musicProvider, categoryType, categoryValue);
         }
         LogHelper.d(TAG, "tracks: ", tracks, " categoryValue: ", categoryValue);
 
@@ -85,35 +93,26 @@ public class QueueHelper {
             return null;
         }
 
-        return convertToQueue(tracks, hierarchy[0], hierarchy[1]);
+        return convertToQueue(tracks, categoryType, categoryValue);
     }
 
     private static List<MediaSession.QueueItem> convertToFavoriteQueue(MusicProvider musicProvider, String... categories) {
         List<MediaSession.QueueItem> queue = new ArrayList<>();
+        MediaID category = MediaID.of(null, categories);
         int count = 0;
 
-        for (String favorite : musicProvider.getFavorites()) {
-            for (MediaMetadata track : musicProvider.getMusicsByFavorite(favorite)) {
-                String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                        track.getDescription().getMediaId(), categories);
+        // Favorites come ordered by title already
+        for (MediaMetadata track : musicProvider.getFavoriteMusics()) {
+            String hierarchyAwareMediaID =
+                    category.child(track.getDescription().getMediaId()).toString();
 
-                MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                        .build();
-
-                MediaSession.QueueItem item = new MediaSession.QueueItem(
-                        trackCopy.getDescription(), count++);
-                queue.add(item);
-            }
-        }
+            MediaMetadata trackCopy = new MediaMetadata.Builder(track)
+                    .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                    .build();
 
-        if (!queue.isEmpty()) {
-            Collections.sort(queue, new Comparator<MediaSession.QueueItem>() {
-                @Override
-                public int compare(MediaSession.QueueItem lhs, MediaSession.QueueItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
-                }
-            });
+            MediaSession.QueueItem item = new MediaSession.QueueItem(
+                    trackCopy.getDescription(), count++);
+            queue.add(item);
         }
 
         return queue;
@@ -121,30 +120,21 @@ public class QueueHelper {
 
     private static List<MediaSession.QueueItem> convertToAllQueue(MusicProvider musicProvider, String... categories) {
         List<MediaSession.QueueItem> queue = new ArrayList<>();
+        MediaID category = MediaID.of(null, categories);
         int count = 0;
 
-        for (String music : musicProvider.getAllMusic()) {
-            for (MediaMetadata track : musicProvider.getMusicsByAlphabet(music)) {
-                String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                        track.getDescription().getMediaId(), categories);
-
-                MediaMetadata trackCopy = new MediaMetadata.Builder(track)
-                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
-                        .build();
+        // Tracks come ordered by title already
+        for (MediaMetadata track : musicProvider.getMusicsAlphabetically()) {
+            String hierarchyAwareMediaID =
+                    category.child(track.getDescription().getMediaId()).toString();
 
-                MediaSession.QueueItem item = new MediaSession.QueueItem(
-                        trackCopy.getDescription(), count++);
-                queue.add(item);
-            }
-        }
+            MediaMetadata trackCopy = new MediaMetadata.Builder(track)
+                    .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                    .build();
 
-        if (!queue.isEmpty()) {
-            Collections.sort(queue, new Comparator<MediaSession.QueueItem>() {
-                @Override
-                public int compare(MediaSession.QueueItem lhs, MediaSession.QueueItem rhs) {
-                    return lhs.toString().compareToIgnoreCase(rhs.toString());
-                }
-            });
+            MediaSession.QueueItem item = new MediaSession.QueueItem(
+                    trackCopy.getDescription(), count++);
+            queue.add(item);
         }
 
         return queue;
@@ -219,13 +209,14 @@ public class QueueHelper {
     private static List<MediaSession.QueueItem> convertToQueue(
             Iterable<MediaMetadata> tracks, String... categories) {
         List<MediaSession.QueueItem> queue = new ArrayList<>();
+        MediaID category = MediaID.of(null, categories);
         int count = 0;
         for (MediaMetadata track : tracks) {
 
             // We create a hierarchy-aware mediaID, so we know what the queue is about by looking
             // at the QueueItem media IDs.
-            String hierarchyAwareMediaID = MediaIDHelper.createMediaID(
-                    track.getDescription().getMediaId(), categories);
+            String hierarchyAwareMediaID =
+                    category.child(track.getDescription().getMediaId()).toString();
 
             MediaMetadata trackCopy = new MediaMetadata.Builder(track)
                     .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
@@ -248,23 +239,45 @@ public class QueueHelper {
      * @return list containing {@link MediaSession.QueueItem}'s
      */
     public static List<MediaSession.QueueItem> getRandomQueue(MusicProvider musicProvider) {
-        List<MediaMetadata> result = new ArrayList<>();
-
-        for (String genre: musicProvider.getGenres()) {
-            Iterable<MediaMetadata> tracks = musicProvider.getMusicsByGenre(genre);
-            for (MediaMetadata track: tracks) {
-                if (ThreadLocalRandom.current().nextBoolean()) {
-                    result.add(track);
-                }
-            }
-        }
+        List<MediaMetadata> result = musicProvider.getRandomMusics();
         LogHelper.d(TAG, "getRandomQueue: result.size=", result.size());
 
-        Collections.shuffle(result);
-
         return convertToQueue(result, MEDIA_ID_MUSICS_BY_SEARCH, "random");
     }
 
+    /**
+     * Create a queue of saved music IDs, queued from the category hierarchy. Musics the
+     * provider doesn't know yet, like before it is initialized, only get their media ID.
+     *
+     * @param musicProvider the provider used for fetching music.
+     * @return list containing {@link MediaSession.QueueItem}'s
+     */
+    public static List<MediaSession.QueueItem> getPlayingQueue(String[] categories,
+            long[] musicIds, MusicProvider musicProvider) {
+        List<MediaSession.QueueItem> queue = new ArrayList<>(musicIds.length);
+        MediaID category = MediaID.of(null, categories);
+
+        for (int i = 0; i < musicIds.length; i++) {
+            String musicId = String.valueOf(musicIds[i]);
+            String hierarchyAwareMediaID = category.child(musicId).toString();
+            MediaMetadata track = musicProvider.getMusic(musicId);
+
+            MediaDescription description;
+            if (track != null) {
+                description = new MediaMetadata.Builder(track)
+                        .putString(MediaMetadata.METADATA_KEY_MEDIA_ID, hierarchyAwareMediaID)
+                        .build().getDescription();
+            } else {
+                description = new MediaDescription.Builder()
+                        .setMediaId(hierarchyAwareMediaID)
+                        .build();
+            }
+            queue.add(new MediaSession.QueueItem(description, i));
+        }
+
+        return queue;
+    }
+
     public static boolean isIndexPlayable(int index, List<MediaSession.QueueItem> queue) {
         return (queue != null && index >= 0 && index < queue.size());
     }
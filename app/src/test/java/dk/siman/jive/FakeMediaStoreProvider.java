@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves a {@link SyntheticLibrary} under the MediaStore authority, for the parts of
+ * MediaStore.Audio the app reads: media, genres, genre members and albums.
+ *
+ * Only the selections the app makes are understood: music only, and "_id IN (...)". Rows
+ * are sorted by track number when asked to, and by id otherwise.
+ */
+class FakeMediaStoreProvider extends ContentProvider {
+
+    private static final int MEDIA = 1;
+    private static final int GENRES = 2;
+    private static final int ALL_GENRE_MEMBERS = 3;
+    private static final int GENRE_MEMBERS = 4;
+    private static final int ALBUMS = 5;
+
+    private static final Pattern ID_IN = Pattern.compile(
+            MediaStore.Audio.Media._ID + " IN \\(([0-9,]*)\\)");
+
+    private final UriMatcher mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    private final SyntheticLibrary mLibrary;
+    private int mQueryCount;
+
+    FakeMediaStoreProvider(SyntheticLibrary library) {
+        mLibrary = library;
+        mMatcher.addURI(MediaStore.AUTHORITY, "external/audio/media", MEDIA);
+        mMatcher.addURI(MediaStore.AUTHORITY, "external/audio/genres", GENRES);
+        mMatcher.addURI(MediaStore.AUTHORITY, "external/audio/genres/all/members",
+                ALL_GENRE_MEMBERS);
+        mMatcher.addURI(MediaStore.AUTHORITY, "external/audio/genres/#/members", GENRE_MEMBERS);
+        mMatcher.addURI(MediaStore.AUTHORITY, "external/audio/albums", ALBUMS);
+    }
+
+    /**
+     * Serve the library to every ContentResolver of the test.
+     */
+    static FakeMediaStoreProvider register(SyntheticLibrary library) {
+        FakeMediaStoreProvider provider = new FakeMediaStoreProvider(library);
+        provider.onCreate();
+        ShadowContentResolver.registerProvider(MediaStore.AUTHORITY, provider);
+        return provider;
+    }
+
+    /**
+     * @return the number of queries answered so far.
+     */
+    synchronized int getQueryCount() {
+        return mQueryCount;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        synchronized (this) {
+            mQueryCount++;
+        }
+        switch (mMatcher.match(uri)) {
+            case MEDIA:
+                return queryMedia(projection, selection, sortOrder);
+            case GENRES:
+                return queryGenres(projection);
+            case ALL_GENRE_MEMBERS:
+                return queryGenreMembers(projection, -1);
+            case GENRE_MEMBERS:
+                return queryGenreMembers(projection, Long.parseLong(uri.getPathSegments().get(3)));
+            case ALBUMS:
+                return queryAlbums(projection);
+            default:
+                throw new UnsupportedOperationException("Unknown uri " + uri);
+        }
+    }
+
+    private Cursor queryMedia(String[] projection, String selection, String sortOrder) {
+        List<SyntheticLibrary.Track> tracks = new ArrayList<>(mLibrary.getTracks());
+        Matcher idIn = selection == null ? null : ID_IN.matcher(selection);
+        if (idIn != null && idIn.find()) {
+            Set<Long> ids = new HashSet<>();
+            for (String id : idIn.group(1).split(",")) {
+                if (!id.isEmpty()) {
+                    ids.add(Long.parseLong(id));
+                }
+            }
+            List<SyntheticLibrary.Track> selected = new ArrayList<>(ids.size());
+            for (SyntheticLibrary.Track track : tracks) {
+                if (ids.contains(track.id)) {
+                    selected.add(track);
+                }
+            }
+            tracks = selected;
+        }
+        if (MediaStore.Audio.Media.TRACK.equals(sortOrder)) {
+            Collections.sort(tracks, new Comparator<SyntheticLibrary.Track>() {
+                @Override
+                public int compare(SyntheticLibrary.Track lhs, SyntheticLibrary.Track rhs) {
+                    return lhs.trackNumber < rhs.trackNumber ? -1
+                            : lhs.trackNumber == rhs.trackNumber ? 0 : 1;
+                }
+            });
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, tracks.size());
+        for (SyntheticLibrary.Track track : tracks) {
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                row[i] = valueOf(track, projection[i]);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Object valueOf(SyntheticLibrary.Track track, String column) {
+        switch (column) {
+            case MediaStore.Audio.Media._ID:
+                return track.id;
+            case MediaStore.Audio.Media.TITLE:
+                return track.title;
+            case MediaStore.Audio.Media.ARTIST:
+                return track.artist;
+            case MediaStore.Audio.Media.ALBUM:
+                return track.album;
+            case MediaStore.Audio.Media.ALBUM_ID:
+                return track.albumId;
+            case MediaStore.Audio.Media.YEAR:
+                return track.year;
+            case MediaStore.Audio.Media.TRACK:
+                return track.trackNumber;
+            case MediaStore.Audio.Media.DATA:
+                return track.data;
+            case MediaStore.Audio.Media.DURATION:
+                return track.duration;
+            case MediaStore.Audio.Media.DATE_ADDED:
+                return track.dateAdded;
+            case MediaStore.Audio.Media.DATE_MODIFIED:
+                return track.dateModified;
+            case MediaStore.Audio.Media.IS_MUSIC:
+                return 1;
+            default:
+                throw new UnsupportedOperationException("Unknown column " + column);
+        }
+    }
+
+    private Cursor queryGenres(String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(projection);
+        List<String> genres = mLibrary.getGenres();
+        for (int i = 0; i < genres.size(); i++) {
+            long id = i + 1;
+            Object[] row = new Object[projection.length];
+            for (int column = 0; column < projection.length; column++) {
+                row[column] = MediaStore.Audio.Genres._ID.equals(projection[column])
+                        ? id : genres.get(i);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * @param genreId the genre to list the members of, or -1 for the members of all genres.
+     */
+    private Cursor queryGenreMembers(String[] projection, long genreId) {
+        MatrixCursor cursor = new MatrixCursor(projection);
+        for (SyntheticLibrary.Track track : mLibrary.getTracks()) {
+            for (long id : track.genreIds) {
+                if (genreId != -1 && id != genreId) {
+                    continue;
+                }
+                Object[] row = new Object[projection.length];
+                for (int column = 0; column < projection.length; column++) {
+                    row[column] = MediaStore.Audio.Genres.Members.AUDIO_ID.equals(
+                            projection[column]) ? track.id : id;
+                }
+                cursor.addRow(row);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Albums have no art, as MediaStore reports for files without embedded art.
+     */
+    private Cursor queryAlbums(String[] projection) {
+        MatrixCursor cursor = new MatrixCursor(projection);
+        for (long id = 1; id <= mLibrary.getAlbumCount(); id++) {
+            Object[] row = new Object[projection.length];
+            for (int column = 0; column < projection.length; column++) {
+                row[column] = MediaStore.Audio.Albums._ID.equals(projection[column]) ? id : null;
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("MediaStore is read only here");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("MediaStore is read only here");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("MediaStore is read only here");
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive;
+
+import android.media.browse.MediaBrowser.MediaItem;
+import android.media.session.MediaSession;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import dk.siman.jive.model.MusicProvider;
+import dk.siman.jive.utils.QueueHelper;
+
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALPHABET;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_ROOT;
+import static dk.siman.jive.utils.MediaIDHelper.createBrowseCategoryMediaID;
+import static dk.siman.jive.utils.MediaIDHelper.createPagedMediaID;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the load, browse and queue steps of synthetic libraries of user sized scale, and
+ * records their allocations, see {@link ScenarioRecorder}. The report of each scenario is
+ * printed to stdout. {@link LargeLibraryTest} checks the results of the same steps.
+ *
+ * Benchmarks are left out of the unit tests; run them with
+ *   ./gradlew :app:testDebugUnitTest -Pbenchmark
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class LargeLibraryBenchmark {
+
+    private static final int PAGE_SIZE = 100;
+    // Every n-th track is made a favorite
+    private static final int FAVORITE_INTERVAL = 100;
+
+    @Before
+    public void setUp() {
+        LibraryServiceFixture.releaseSharedStores();
+    }
+
+    @After
+    public void tearDown() {
+        LibraryServiceFixture.releaseSharedStores();
+    }
+
+    @Test
+    public void tenThousandTracks() {
+        run(new SyntheticLibrary.Builder("10k tracks")
+                .setTrackCount(10000)
+                .setGenreCount(40)
+                .setArtistCount(800)
+                .setAlbumCount(1000)
+                .build());
+    }
+
+    @Test
+    public void fiftyThousandTracks() {
+        run(new SyntheticLibrary.Builder("50k tracks")
+                .setTrackCount(50000)
+                .setGenreCount(200)
+                .setArtistCount(4000)
+                .setAlbumCount(5000)
+                .build());
+    }
+
+    @Test
+    public void fiftyThousandTracksMissingTags() {
+        run(new SyntheticLibrary.Builder("50k tracks, 30% untagged")
+                .setTrackCount(50000)
+                .setGenreCount(200)
+                .setArtistCount(4000)
+                .setAlbumCount(5000)
+                .setUntaggedPercent(30)
+                .build());
+    }
+
+    @Test
+    public void longUnicodeTitles() {
+        run(new SyntheticLibrary.Builder("10k tracks, long unicode titles")
+                .setTrackCount(10000)
+                .setGenreCount(40)
+                .setArtistCount(800)
+                .setAlbumCount(1000)
+                .setLongTitles(true)
+                .build());
+    }
+
+    private void run(SyntheticLibrary library) {
+        ScenarioRecorder recorder = new ScenarioRecorder(library.getName());
+        LibraryServiceFixture fixture = new LibraryServiceFixture(library);
+        MusicService service = fixture.service;
+        MusicProvider musicProvider = fixture.musicProvider;
+        int trackCount = library.getTracks().size();
+
+        recorder.start("retrieveMedia");
+        boolean ready = fixture.loadCatalog();
+        recorder.stop(fixture.mediaStore.getQueryCount());
+        assertTrue(ready);
+
+        recorder.start("setFavorite");
+        recorder.stop(fixture.addFavorites(FAVORITE_INTERVAL));
+
+        browse(recorder, service, MEDIA_ID_ROOT);
+        List<MediaItem> genres = browse(recorder, service, MEDIA_ID_MUSICS_BY_GENRE);
+        browse(recorder, service, genres.get(0).getMediaId());
+        List<MediaItem> artists = browse(recorder, service,
+                createPagedMediaID(MEDIA_ID_MUSICS_BY_ARTIST, 0, PAGE_SIZE));
+        browse(recorder, service, artists.get(0).getMediaId());
+        List<MediaItem> albums = browse(recorder, service,
+                createPagedMediaID(MEDIA_ID_MUSICS_BY_ALBUM, 0, PAGE_SIZE));
+        browse(recorder, service, albums.get(0).getMediaId());
+        browse(recorder, service, MEDIA_ID_MUSICS_BY_FAVORITE);
+
+        String firstPage = createPagedMediaID(MEDIA_ID_MUSICS_BY_ALPHABET, 0, PAGE_SIZE);
+        browse(recorder, service, firstPage);
+        // The same page again comes from the browse cache
+        browse(recorder, service, firstPage);
+        int lastPage = (trackCount - 1) / PAGE_SIZE;
+        browse(recorder, service, createPagedMediaID(MEDIA_ID_MUSICS_BY_ALPHABET, lastPage,
+                PAGE_SIZE));
+        browse(recorder, service, MEDIA_ID_MUSICS_BY_ALPHABET);
+
+        queue(recorder, musicProvider, genres.get(0).getMediaId());
+        queue(recorder, musicProvider, artists.get(0).getMediaId());
+        queue(recorder, musicProvider,
+                createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_FAVORITE, "all"));
+        queue(recorder, musicProvider,
+                createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_ALPHABET, "all"));
+
+        recorder.start("queue random");
+        List<MediaSession.QueueItem> random = QueueHelper.getRandomQueue(musicProvider);
+        recorder.stop(random.size());
+
+        System.out.println(recorder.report());
+    }
+
+    private static List<MediaItem> browse(ScenarioRecorder recorder, MusicService service,
+                                          String mediaId) {
+        recorder.start("browse " + mediaId);
+        List<MediaItem> items = service.loadChildren(mediaId);
+        recorder.stop(items.size());
+        return items;
+    }
+
+    private static void queue(ScenarioRecorder recorder, MusicProvider musicProvider,
+                              String mediaId) {
+        recorder.start("queue " + mediaId);
+        List<MediaSession.QueueItem> queue = QueueHelper.getPlayingQueue(mediaId, musicProvider);
+        recorder.stop(queue.size());
+    }
+}
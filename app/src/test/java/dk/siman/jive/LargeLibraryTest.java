@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive;
+
+import android.media.browse.MediaBrowser.MediaItem;
+import android.media.session.MediaSession;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import dk.siman.jive.model.MusicProvider;
+import dk.siman.jive.utils.MediaID;
+import dk.siman.jive.utils.MediaIDHelper;
+import dk.siman.jive.utils.QueueHelper;
+
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALBUM;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ALPHABET;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_ARTIST;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_FAVORITE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_BY_GENRE;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_MOST_PLAYED;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_MUSICS_RECENT;
+import static dk.siman.jive.utils.MediaIDHelper.MEDIA_ID_ROOT;
+import static dk.siman.jive.utils.MediaIDHelper.createBrowseCategoryMediaID;
+import static dk.siman.jive.utils.MediaIDHelper.createPagedMediaID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loads, browses and queues synthetic libraries of user sized scale through a fake
+ * MediaStore, end to end: MusicProvider's catalog load, MusicService's browse results and
+ * QueueHelper's playing queues, and checks them against the library. The same steps are
+ * timed by {@link LargeLibraryBenchmark}.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class LargeLibraryTest {
+
+    private static final int PAGE_SIZE = 100;
+    // Every n-th track is made a favorite
+    private static final int FAVORITE_INTERVAL = 100;
+    // Name of the genre of the tracks without one, see Indexes
+    private static final String UNKNOWN_GENRE = "Other";
+
+    @Before
+    public void setUp() {
+        LibraryServiceFixture.releaseSharedStores();
+    }
+
+    @After
+    public void tearDown() {
+        LibraryServiceFixture.releaseSharedStores();
+    }
+
+    @Test
+    public void tenThousandTracks() {
+        check(new SyntheticLibrary.Builder("10k tracks")
+                .setTrackCount(10000)
+                .setGenreCount(40)
+                .setArtistCount(800)
+                .setAlbumCount(1000)
+                .build());
+    }
+
+    @Test
+    public void fiftyThousandTracks() {
+        check(new SyntheticLibrary.Builder("50k tracks")
+                .setTrackCount(50000)
+                .setGenreCount(200)
+                .setArtistCount(4000)
+                .setAlbumCount(5000)
+                .build());
+    }
+
+    @Test
+    public void fiftyThousandTracksMissingTags() {
+        check(new SyntheticLibrary.Builder("50k tracks, 30% untagged")
+                .setTrackCount(50000)
+                .setGenreCount(200)
+                .setArtistCount(4000)
+                .setAlbumCount(5000)
+                .setUntaggedPercent(30)
+                .build());
+    }
+
+    @Test
+    public void longUnicodeTitles() {
+        check(new SyntheticLibrary.Builder("10k tracks, long unicode titles")
+                .setTrackCount(10000)
+                .setGenreCount(40)
+                .setArtistCount(800)
+                .setAlbumCount(1000)
+                .setLongTitles(true)
+                .build());
+    }
+
+    private void check(SyntheticLibrary library) {
+        LibraryServiceFixture fixture = new LibraryServiceFixture(library);
+        MusicService service = fixture.service;
+        MusicProvider musicProvider = fixture.musicProvider;
+        int trackCount = library.getTracks().size();
+
+        assertTrue(fixture.loadCatalog());
+        assertEquals(trackCount, musicProvider.getMusicsAlphabetically().size());
+
+        // The root lists every browse category
+        assertEquals(new HashSet<>(Arrays.asList(MEDIA_ID_MUSICS_BY_FAVORITE,
+                        MEDIA_ID_MUSICS_BY_GENRE, MEDIA_ID_MUSICS_BY_ARTIST,
+                        MEDIA_ID_MUSICS_BY_ALBUM, MEDIA_ID_MUSICS_MOST_PLAYED,
+                        MEDIA_ID_MUSICS_RECENT)),
+                new HashSet<>(mediaIds(service.loadChildren(MEDIA_ID_ROOT))));
+
+        // Every genre of the library is listed, and a genre lists each of its tracks once
+        List<MediaItem> genres = service.loadChildren(MEDIA_ID_MUSICS_BY_GENRE);
+        Set<String> genreNames = new HashSet<>();
+        for (MediaItem genre : genres) {
+            assertTrue(genre.isBrowsable());
+            genreNames.add(MediaID.parse(genre.getMediaId()).getCategoryValue());
+        }
+        assertEquals(libraryGenres(library), genreNames);
+        String genre = library.getGenres().get(0);
+        List<MediaItem> genreTracks = service.loadChildren(
+                createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_GENRE, genre));
+        assertEquals(tracksOfGenre(library, 1), new HashSet<>(musicIds(genreTracks)));
+        assertEquals(genreTracks.size(), musicIds(genreTracks).size());
+        for (MediaItem track : genreTracks) {
+            assertTrue(track.isPlayable());
+            assertEquals(genre, MediaID.parse(track.getMediaId()).getCategoryValue());
+        }
+
+        // Paged categories list at most a page, and their tracks belong to them
+        List<MediaItem> artists = service.loadChildren(
+                createPagedMediaID(MEDIA_ID_MUSICS_BY_ARTIST, 0, PAGE_SIZE));
+        assertPage(artists);
+        checkCategoryTracks(service, artists.get(0));
+        List<MediaItem> albums = service.loadChildren(
+                createPagedMediaID(MEDIA_ID_MUSICS_BY_ALBUM, 0, PAGE_SIZE));
+        assertPage(albums);
+        checkCategoryTracks(service, albums.get(0));
+
+        // The pages of a list are the parts of the whole list, in the same order
+        List<String> all = musicIds(service.loadChildren(MEDIA_ID_MUSICS_BY_ALPHABET));
+        assertEquals(trackCount, all.size());
+        String firstPage = createPagedMediaID(MEDIA_ID_MUSICS_BY_ALPHABET, 0, PAGE_SIZE);
+        List<MediaItem> first = service.loadChildren(firstPage);
+        assertEquals(all.subList(0, Math.min(PAGE_SIZE, trackCount)), musicIds(first));
+        int lastPage = (trackCount - 1) / PAGE_SIZE;
+        assertEquals(all.subList(lastPage * PAGE_SIZE, trackCount),
+                musicIds(service.loadChildren(createPagedMediaID(MEDIA_ID_MUSICS_BY_ALPHABET,
+                        lastPage, PAGE_SIZE))));
+        // Asking again is answered from the browse cache, as long as nothing changed
+        List<MediaItem> cached = service.loadChildren(firstPage);
+        assertSame(cached, service.loadChildren(firstPage));
+
+        // Favorites are listed and queued as they are made
+        int favoriteCount = fixture.addFavorites(FAVORITE_INTERVAL);
+        List<MediaItem> favorites = service.loadChildren(MEDIA_ID_MUSICS_BY_FAVORITE);
+        assertEquals(favoriteCount, favorites.size());
+        for (String musicId : musicIds(favorites)) {
+            assertTrue(musicProvider.isFavorite(musicId));
+        }
+        assertEquals(favoriteCount, QueueHelper.getPlayingQueue(
+                createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_FAVORITE, "all"),
+                musicProvider).size());
+        // Other lists do not depend on the favorites, so they stay cached
+        assertSame(cached, service.loadChildren(firstPage));
+
+        // A queue holds the tracks of its list in the same order, its ids are the positions
+        List<MediaSession.QueueItem> queue = QueueHelper.getPlayingQueue(
+                createBrowseCategoryMediaID(MEDIA_ID_MUSICS_BY_ALPHABET, "all"), musicProvider);
+        List<String> queued = new ArrayList<>();
+        for (int i = 0; i < queue.size(); i++) {
+            assertEquals(i, queue.get(i).getQueueId());
+            queued.add(MediaIDHelper.extractMusicIDFromMediaID(
+                    queue.get(i).getDescription().getMediaId()));
+        }
+        assertEquals(all, queued);
+
+        List<MediaSession.QueueItem> random = QueueHelper.getRandomQueue(musicProvider);
+        assertFalse(random.isEmpty());
+    }
+
+    private static void assertPage(List<MediaItem> items) {
+        assertFalse(items.isEmpty());
+        assertTrue(items.size() <= PAGE_SIZE);
+    }
+
+    /**
+     * Check that the tracks listed in a category are all queued from it.
+     */
+    private static void checkCategoryTracks(MusicService service, MediaItem category) {
+        String value = MediaID.parse(category.getMediaId()).getCategoryValue();
+        List<MediaItem> tracks = service.loadChildren(category.getMediaId());
+        assertFalse(tracks.isEmpty());
+        for (MediaItem track : tracks) {
+            assertTrue(track.isPlayable());
+            assertEquals(value, MediaID.parse(track.getMediaId()).getCategoryValue());
+        }
+    }
+
+    private static Set<String> libraryGenres(SyntheticLibrary library) {
+        Set<String> genres = new HashSet<>();
+        for (SyntheticLibrary.Track track : library.getTracks()) {
+            if (track.genreIds.length == 0) {
+                genres.add(UNKNOWN_GENRE);
+            }
+            for (long genreId : track.genreIds) {
+                genres.add(library.getGenres().get((int) genreId - 1));
+            }
+        }
+        return genres;
+    }
+
+    private static Set<String> tracksOfGenre(SyntheticLibrary library, long genreId) {
+        Set<String> musicIds = new HashSet<>();
+        for (SyntheticLibrary.Track track : library.getTracks()) {
+            for (long id : track.genreIds) {
+                if (id == genreId) {
+                    musicIds.add(String.valueOf(track.id));
+                }
+            }
+        }
+        return musicIds;
+    }
+
+    private static List<String> mediaIds(List<MediaItem> items) {
+        List<String> mediaIds = new ArrayList<>();
+        for (MediaItem item : items) {
+            mediaIds.add(item.getMediaId());
+        }
+        return mediaIds;
+    }
+
+    private static List<String> musicIds(List<MediaItem> items) {
+        List<String> musicIds = new ArrayList<>();
+        for (MediaItem item : items) {
+            musicIds.add(MediaIDHelper.extractMusicIDFromMediaID(item.getMediaId()));
+        }
+        return musicIds;
+    }
+}
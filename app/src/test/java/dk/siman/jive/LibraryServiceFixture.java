@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive;
+
+import android.Manifest;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.shadows.ShadowLooper;
+
+import dk.siman.jive.model.MusicProvider;
+
+/**
+ * A MusicService whose MediaStore serves a {@link SyntheticLibrary}, for the tests and the
+ * benchmarks of large libraries.
+ *
+ * The favorites and the play history are shared by the whole process, while each test gets
+ * its own application, files and database. Call {@link #releaseSharedStores()} before and
+ * after each test, so no test sees the stores of another one.
+ */
+final class LibraryServiceFixture {
+
+    final SyntheticLibrary library;
+    final FakeMediaStoreProvider mediaStore;
+    final MusicService service;
+    final MusicProvider musicProvider;
+
+    LibraryServiceFixture(SyntheticLibrary library) {
+        this.library = library;
+        mediaStore = FakeMediaStoreProvider.register(library);
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(
+                Manifest.permission.READ_EXTERNAL_STORAGE,
+                Manifest.permission.WRITE_EXTERNAL_STORAGE);
+        service = Robolectric.setupService(MusicService.class);
+        musicProvider = service.getMusicProvider();
+    }
+
+    static void releaseSharedStores() {
+        MusicProvider.releaseSharedStores();
+    }
+
+    /**
+     * Load the catalog, running the tasks it posts to the background and to the main thread.
+     *
+     * @return true if the catalog was reported ready.
+     */
+    boolean loadCatalog() {
+        final boolean[] ready = new boolean[1];
+        musicProvider.retrieveMediaAsync(new MusicProvider.Callback() {
+            @Override
+            public void onMusicCatalogReady(boolean success) {
+                ready[0] = success;
+            }
+        });
+        Robolectric.flushBackgroundThreadScheduler();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        return ready[0];
+    }
+
+    /**
+     * Make every n-th track of the library a favorite.
+     *
+     * @return the number of favorites made.
+     */
+    int addFavorites(int interval) {
+        int count = 0;
+        for (int i = 0; i < library.getTracks().size(); i += interval) {
+            musicProvider.setFavorite(String.valueOf(library.getTracks().get(i).id), true);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Wall time and allocations of the steps of a scenario.
+ *
+ * Allocations are summed over all live threads, so work handed to pools, like the index
+ * builds, is counted too. Threads that end during a step take their allocations with them.
+ * They are reported as -1 on JVMs that cannot measure them.
+ */
+final class ScenarioRecorder {
+
+    private final String mScenario;
+    private final List<String> mLines = new ArrayList<>();
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private String mStep;
+    private long mStartNanos;
+    private long mStartBytes;
+
+    ScenarioRecorder(String scenario) {
+        mScenario = scenario;
+        if (mThreads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mThreads;
+            if (threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+    }
+
+    void start(String step) {
+        mStep = step;
+        mStartBytes = allocatedBytes();
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * @param items number of items the step produced, for the report.
+     */
+    void stop(int items) {
+        long elapsedNanos = System.nanoTime() - mStartNanos;
+        long bytes = allocatedBytes();
+        long allocated = bytes < 0 || mStartBytes < 0 ? -1 : bytes - mStartBytes;
+        mLines.add(String.format(Locale.US, "%-32s %10.1f ms %12d KB %8d items", mStep,
+                elapsedNanos / 1e6, allocated < 0 ? -1 : allocated / 1024, items));
+        mStep = null;
+    }
+
+    String report() {
+        StringBuilder report = new StringBuilder("Scenario ").append(mScenario).append('\n');
+        for (String line : mLines) {
+            report.append("  ").append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return the bytes allocated by all live threads so far, or -1 if not supported.
+     */
+    private long allocatedBytes() {
+        if (!(mThreads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) mThreads;
+        if (!threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive;
+
+import android.provider.MediaStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A made up music library, shaped by a few parameters: how many tracks, genres, artists and
+ * albums it has, how many tracks lack tags, and whether titles are long and mix scripts.
+ *
+ * Libraries are generated from a seed, so the same parameters always give the same tracks.
+ * {@link FakeMediaStoreProvider} serves them like MediaStore does.
+ */
+final class SyntheticLibrary {
+
+    // Words of titles, from a few scripts. Escaped to keep the source ASCII.
+    private static final String[] WORDS = {
+            "love", "night", "river", "golden", "midnight", "electric", "summer", "shadow",
+            "Caf\u00e9", "D\u00e9j\u00e0", "K\u00f8benhavn", "\u00c5ngstr\u00f6m",
+            "\u039d\u03cd\u03c7\u03c4\u03b1", "\u041b\u044e\u0431\u043e\u0432\u044c",
+            "\u6771\u4eac", "\u591c\u306e\u6b4c", "\u0633\u0644\u0627\u0645",
+            "\ud83c\udfb5", "\u0928\u092e\u0938\u094d\u0924\u0947", "\uc0ac\ub791"
+    };
+
+    // Album of the tracks without tags, named after their folder like MediaStore does
+    private static final String UNTAGGED_ALBUM = "Download";
+
+    /**
+     * One row of MediaStore.Audio.Media, with the ids of the genres the track is in.
+     */
+    static final class Track {
+        final long id;
+        final String title;
+        final String artist;
+        final String album;
+        final long albumId;
+        final int year;
+        final int trackNumber;
+        final String data;
+        final long duration;
+        final long dateAdded;
+        final long dateModified;
+        final long[] genreIds;
+
+        Track(long id, String title, String artist, String album, long albumId, int year,
+              int trackNumber, String data, long duration, long dateAdded,
+              long[] genreIds) {
+            this.id = id;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.albumId = albumId;
+            this.year = year;
+            this.trackNumber = trackNumber;
+            this.data = data;
+            this.duration = duration;
+            this.dateAdded = dateAdded;
+            this.dateModified = dateAdded;
+            this.genreIds = genreIds;
+        }
+    }
+
+    private final String mName;
+    private final List<Track> mTracks;
+    // Genre names, by genre id - 1
+    private final List<String> mGenres;
+    private final int mAlbumCount;
+
+    private SyntheticLibrary(String name, List<Track> tracks, List<String> genres,
+                             int albumCount) {
+        mName = name;
+        mTracks = Collections.unmodifiableList(tracks);
+        mGenres = Collections.unmodifiableList(genres);
+        mAlbumCount = albumCount;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * @return the tracks, by increasing id.
+     */
+    List<Track> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * @return the genre names, the genre with id n at index n - 1.
+     */
+    List<String> getGenres() {
+        return mGenres;
+    }
+
+    /**
+     * @return the number of albums, their ids running from 1. The album of the untagged
+     *         tracks comes last.
+     */
+    int getAlbumCount() {
+        return mAlbumCount;
+    }
+
+    static final class Builder {
+        private final String mName;
+        private int mTrackCount = 1000;
+        private int mGenreCount = 20;
+        private int mArtistCount = 100;
+        private int mAlbumCount = 200;
+        private int mUntaggedPercent;
+        private boolean mLongTitles;
+        private long mSeed = 42;
+
+        Builder(String name) {
+            mName = name;
+        }
+
+        Builder setTrackCount(int trackCount) {
+            mTrackCount = trackCount;
+            return this;
+        }
+
+        Builder setGenreCount(int genreCount) {
+            mGenreCount = genreCount;
+            return this;
+        }
+
+        Builder setArtistCount(int artistCount) {
+            mArtistCount = artistCount;
+            return this;
+        }
+
+        Builder setAlbumCount(int albumCount) {
+            mAlbumCount = albumCount;
+            return this;
+        }
+
+        /**
+         * @param untaggedPercent share of the tracks with no artist, album, genre or track
+         *                        number, titled after their file.
+         */
+        Builder setUntaggedPercent(int untaggedPercent) {
+            mUntaggedPercent = untaggedPercent;
+            return this;
+        }
+
+        /**
+         * @param longTitles give tracks titles of a few hundred characters, mixing scripts
+         *                   and characters outside the BMP.
+         */
+        Builder setLongTitles(boolean longTitles) {
+            mLongTitles = longTitles;
+            return this;
+        }
+
+        Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        SyntheticLibrary build() {
+            Random random = new Random(mSeed);
+            List<String> genres = new ArrayList<>(mGenreCount);
+            for (int i = 0; i < mGenreCount; i++) {
+                genres.add("Genre " + (i + 1));
+            }
+
+            List<Track> tracks = new ArrayList<>(mTrackCount);
+            for (int i = 0; i < mTrackCount; i++) {
+                long id = i + 1;
+                long dateAdded = 1420070400L + i;
+                long duration = 60000 + random.nextInt(600000);
+                String title = title(random);
+                if (random.nextInt(100) < mUntaggedPercent) {
+                    String file = "track" + id;
+                    tracks.add(new Track(id, file, MediaStore.UNKNOWN_STRING, UNTAGGED_ALBUM,
+                            mAlbumCount + 1, 0, 0, "/storage/emulated/0/Download/" + file
+                            + ".mp3", duration, dateAdded, new long[0]));
+                    continue;
+                }
+                // Albums hold consecutive tracks, artists every n-th album
+                int album = (int) ((long) i * mAlbumCount / mTrackCount);
+                int artist = album % mArtistCount;
+                long genreId = artist % mGenreCount + 1;
+                long[] genreIds = random.nextInt(10) == 0 && mGenreCount > 1
+                        ? new long[] { genreId, genreId % mGenreCount + 1 }
+                        : new long[] { genreId };
+                String artistName = "Artist " + artist;
+                String albumName = "Album " + album;
+                int trackNumber = i - (int) ((long) album * mTrackCount / mAlbumCount) + 1;
+                tracks.add(new Track(id, title, artistName, albumName, album + 1,
+                        1960 + artist % 60, trackNumber, "/storage/emulated/0/Music/"
+                        + artistName + "/" + albumName + "/" + trackNumber + ".mp3",
+                        duration, dateAdded, genreIds));
+            }
+            return new SyntheticLibrary(mName, tracks, genres, mAlbumCount + 1);
+        }
+
+        private String title(Random random) {
+            int words = mLongTitles ? 20 + random.nextInt(40) : 1 + random.nextInt(4);
+            StringBuilder title = new StringBuilder();
+            for (int i = 0; i < words; i++) {
+                if (i > 0) {
+                    title.append(' ');
+                }
+                title.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            return title.toString();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+
+package dk.siman.jive.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import dk.siman.jive.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Times the favorite operations of {@link MusicDBDataSource} against the way they used to be
+ * done: opening and closing the database around single operations, compiling every query
+ * anew, inserting a row per favorite and reading it back. Both ways must give the same
+ * answers; the latency per operation of each is printed to stdout.
+ *
+ * Runs on Robolectric's SQLite, so the numbers compare the two ways with each other and do
+ * not predict the latency on a device. Benchmarks are left out of the unit tests; run them
+ * with
+ *   ./gradlew :app:testDebugUnitTest -Pbenchmark
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class MusicDBDataSourceBenchmark {
+
+    // Favorites in the table while operations are timed
+    private static final int FAVORITE_COUNT = 2000;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+    private static final int LIST_ITERATIONS = 50;
+
+    private interface Favorites {
+        boolean isFavorite(String mediaId);
+
+        void add(String mediaId);
+
+        void remove(String mediaId);
+
+        int list();
+    }
+
+    /**
+     * A helper of its own on the favorites database, as the shared one is kept open by
+     * {@link MusicDBDataSource} while the legacy operations close theirs. The database is
+     * created by MySQLiteHelper before this one opens it.
+     */
+    private static final class LegacyHelper extends SQLiteOpenHelper {
+        LegacyHelper(Context context) {
+            super(context, MySQLiteHelper.DATABASE_NAME, null, MySQLiteHelper.DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    /**
+     * The favorite operations as they were done before statements were cached:
+     * MusicProvider.setFavorite() opened the database, added a music row with a plain
+     * insert, read it back and closed the database, the other operations opened it anew.
+     */
+    private static final class LegacyFavorites implements Favorites {
+        private static final String[] ALL_COLUMNS = {
+                MySQLiteHelper._ID,
+                MySQLiteHelper.ARTIST,
+                MySQLiteHelper.TITLE,
+                MySQLiteHelper.ALBUM,
+                MySQLiteHelper.ALBUM_ID,
+                MySQLiteHelper.DURATION,
+                MySQLiteHelper.GENRE_NAME,
+                MySQLiteHelper.MEDIA_ID,
+                MySQLiteHelper.IS_FAVORITE};
+
+        private final LegacyHelper mHelper = new LegacyHelper(RuntimeEnvironment.application);
+
+        @Override
+        public boolean isFavorite(String mediaId) {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            Cursor cursor = db.query(MySQLiteHelper.TABLE_MUSICS,
+                    new String[] { MySQLiteHelper._ID, MySQLiteHelper.MEDIA_ID,
+                            MySQLiteHelper.IS_FAVORITE },
+                    MySQLiteHelper.MEDIA_ID + "=?", new String[] { mediaId },
+                    null, null, null, null);
+            String favorite = null;
+            if (cursor.moveToFirst()) {
+                do {
+                    favorite = cursor.getString(1);
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            return favorite != null;
+        }
+
+        @Override
+        public void add(String mediaId) {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put(MySQLiteHelper.MEDIA_ID, mediaId);
+            values.put(MySQLiteHelper.IS_FAVORITE, true);
+            // A media id that is listed already fails on the unique index, as it would now
+            long insertId = db.insert(MySQLiteHelper.TABLE_MUSICS, null, values);
+            Cursor cursor = db.query(MySQLiteHelper.TABLE_MUSICS, ALL_COLUMNS,
+                    MySQLiteHelper._ID + " = " + insertId, null, null, null, null);
+            // Read back as cursorToComment() did
+            if (cursor.moveToFirst()) {
+                cursor.getInt(0);
+                cursor.getString(1);
+            }
+            cursor.close();
+            mHelper.close();
+        }
+
+        @Override
+        public void remove(String mediaId) {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            db.delete(MySQLiteHelper.TABLE_MUSICS, MySQLiteHelper.MEDIA_ID + " = ?",
+                    new String[] { mediaId });
+            db.close();
+        }
+
+        @Override
+        public int list() {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            Cursor cursor = db.rawQuery("SELECT  * FROM " + MySQLiteHelper.TABLE_MUSICS, null);
+            List<String> favorites = new ArrayList<>();
+            if (cursor.moveToFirst()) {
+                do {
+                    favorites.add(cursor.getString(1));
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            return favorites.size();
+        }
+
+        void close() {
+            mHelper.close();
+        }
+    }
+
+    private static final class CachedFavorites implements Favorites {
+        private final MusicDBDataSource mDataSource =
+                new MusicDBDataSource(RuntimeEnvironment.application);
+
+        @Override
+        public boolean isFavorite(String mediaId) {
+            return mDataSource.isFavorite(mediaId);
+        }
+
+        @Override
+        public void add(String mediaId) {
+            mDataSource.addFavorite(mediaId);
+        }
+
+        @Override
+        public void remove(String mediaId) {
+            mDataSource.deleteFavorite(mediaId);
+        }
+
+        @Override
+        public int list() {
+            return mDataSource.getAllFavorites().size();
+        }
+
+        void close() {
+            mDataSource.close();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        // Each test has its own application, and so its own database
+        MySQLiteHelper.releaseInstance();
+    }
+
+    @After
+    public void tearDown() {
+        MySQLiteHelper.releaseInstance();
+    }
+
+    @Test
+    public void favoriteOperations() {
+        MusicDBDataSource dataSource = new MusicDBDataSource(RuntimeEnvironment.application);
+        for (int i = 0; i < FAVORITE_COUNT; i++) {
+            dataSource.addFavorite(mediaId(i));
+        }
+
+        LegacyFavorites legacy = new LegacyFavorites();
+        CachedFavorites cached = new CachedFavorites();
+        // Both ways read and write the same rows
+        assertSameAnswers(legacy, cached);
+        assertSameAnswers(cached, legacy);
+
+        StringBuilder report = new StringBuilder(String.format(Locale.US,
+                "Favorite operations, %d favorites%n%-12s %12s %12s%n", FAVORITE_COUNT,
+                "operation", "legacy us", "cached us"));
+        double[] legacyTimes = time(legacy);
+        double[] cachedTimes = time(cached);
+        String[] operations = { "isFavorite", "add", "remove", "list" };
+        for (int i = 0; i < operations.length; i++) {
+            report.append(String.format(Locale.US, "%-12s %12.1f %12.1f%n", operations[i],
+                    legacyTimes[i], cachedTimes[i]));
+        }
+        System.out.print(report);
+        legacy.close();
+        cached.close();
+        dataSource.close();
+    }
+
+    private static void assertSameAnswers(Favorites writer, Favorites reader) {
+        String mediaId = mediaId(FAVORITE_COUNT);
+        assertFalse(reader.isFavorite(mediaId));
+        writer.add(mediaId);
+        writer.add(mediaId);
+        assertTrue(reader.isFavorite(mediaId));
+        assertTrue(reader.isFavorite(mediaId(0)));
+        assertEquals(FAVORITE_COUNT + 1, reader.list());
+        writer.remove(mediaId);
+        assertFalse(reader.isFavorite(mediaId));
+        assertEquals(FAVORITE_COUNT, reader.list());
+    }
+
+    /**
+     * @return the microseconds per operation of isFavorite, add, remove and list.
+     */
+    private static double[] time(Favorites favorites) {
+        run(favorites, WARMUP_ITERATIONS, 1);
+        return run(favorites, ITERATIONS, LIST_ITERATIONS);
+    }
+
+    private static double[] run(Favorites favorites, int iterations, int listIterations) {
+        double[] times = new double[4];
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < iterations; i++) {
+            // Every other id looked up is not a favorite
+            if (favorites.isFavorite(mediaId(i % 2 == 0 ? i : 2 * FAVORITE_COUNT + i))) {
+                found++;
+            }
+        }
+        times[0] = micros(start, iterations);
+        assertEquals((iterations + 1) / 2, found);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            favorites.add(mediaId(FAVORITE_COUNT + i));
+        }
+        times[1] = micros(start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            favorites.remove(mediaId(FAVORITE_COUNT + i));
+        }
+        times[2] = micros(start, iterations);
+
+        start = System.nanoTime();
+        for (int i = 0; i < listIterations; i++) {
+            assertEquals(FAVORITE_COUNT, favorites.list());
+        }
+        times[3] = micros(start, listIterations);
+        return times;
+    }
+
+    private static double micros(long start, int operations) {
+        return (System.nanoTime() - start) / 1000.0 / operations;
+    }
+
+    private static String mediaId(int i) {
+        return String.valueOf(100000 + i);
+    }
+}
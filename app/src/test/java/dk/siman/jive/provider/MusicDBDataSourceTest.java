@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.siman.jive.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import dk.siman.jive.BuildConfig;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.LOLLIPOP)
+public class MusicDBDataSourceTest {
+
+    private static final String MEDIA_ID = "100001";
+
+    private MusicDBDataSource mDataSource;
+
+    @Before
+    public void setUp() {
+        // Each test has its own application, and so its own database
+        MySQLiteHelper.releaseInstance();
+        mDataSource = new MusicDBDataSource(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        mDataSource.close();
+        MySQLiteHelper.releaseInstance();
+    }
+
+    @Test
+    public void addFavorite() {
+        assertFalse(mDataSource.isFavorite(MEDIA_ID));
+        mDataSource.addFavorite(MEDIA_ID);
+        assertTrue(mDataSource.isFavorite(MEDIA_ID));
+        assertEquals(1, mDataSource.getAllFavorites().size());
+    }
+
+    @Test
+    public void addFavoriteTwice() {
+        mDataSource.addFavorite(MEDIA_ID);
+        mDataSource.addFavorite(MEDIA_ID);
+        assertEquals(1, mDataSource.getAllFavorites().size());
+        assertEquals(MEDIA_ID, mDataSource.getAllFavorites().get(0).getMediaId());
+    }
+
+    @Test
+    public void isFavoriteAgreesWithAllFavorites() {
+        mDataSource.updateMusic("Artist", "Title", "Album", 7L, 180000L, "Genre", MEDIA_ID);
+        assertEquals(1, mDataSource.getAllFavorites().size());
+        assertTrue(mDataSource.isFavorite(MEDIA_ID));
+    }
+
+    @Test
+    public void addFavoriteKeepsRow() {
+        mDataSource.updateMusic("Artist", "Title", "Album", 7L, 180000L, "Genre", MEDIA_ID);
+        long rowId = rowId();
+
+        mDataSource.addFavorite(MEDIA_ID);
+        assertTrue(mDataSource.isFavorite(MEDIA_ID));
+        assertEquals(MEDIA_ID, mDataSource.getFavorite(MEDIA_ID));
+        assertEquals(1, mDataSource.getAllFavorites().size());
+        assertEquals(rowId, rowId());
+        Cursor cursor = database().query(MySQLiteHelper.TABLE_MUSICS,
+                new String[] { MySQLiteHelper.ARTIST, MySQLiteHelper.TITLE },
+                MySQLiteHelper.MEDIA_ID + " = ?", new String[] { MEDIA_ID },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Artist", cursor.getString(0));
+            assertEquals("Title", cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void deleteFavorite() {
+        mDataSource.addFavorite(MEDIA_ID);
+        mDataSource.deleteFavorite(MEDIA_ID);
+        assertFalse(mDataSource.isFavorite(MEDIA_ID));
+        assertNull(mDataSource.getFavorite(MEDIA_ID));
+        assertTrue(mDataSource.getAllFavorites().isEmpty());
+    }
+
+    @Test
+    public void writeFavorites() {
+        mDataSource.addFavorite(MEDIA_ID);
+        Map<String, Boolean> favorites = new HashMap<>();
+        favorites.put(MEDIA_ID, false);
+        favorites.put("100002", true);
+        favorites.put("100003", true);
+        mDataSource.writeFavorites(favorites);
+
+        assertFalse(mDataSource.isFavorite(MEDIA_ID));
+        assertTrue(mDataSource.isFavorite("100002"));
+        assertTrue(mDataSource.isFavorite("100003"));
+        assertEquals(2, mDataSource.getAllFavorites().size());
+    }
+
+    private long rowId() {
+        Cursor cursor = database().query(MySQLiteHelper.TABLE_MUSICS,
+                new String[] { MySQLiteHelper._ID }, MySQLiteHelper.MEDIA_ID + " = ?",
+                new String[] { MEDIA_ID }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static SQLiteDatabase database() {
+        return MySQLiteHelper.getInstance(RuntimeEnvironment.application).getWritableDatabase();
+    }
+}
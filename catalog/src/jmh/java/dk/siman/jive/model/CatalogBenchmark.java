@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the catalog operations MusicProvider runs, over synthetic libraries of growing
+ * size: loading the tracks, building the indexes, searching, building playing queues and
+ * syncing a change.
+ *
+ * Benchmarks return Object, as the catalog types are not visible to the generated code.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogBenchmark {
+
+    // Same pool size as MusicProvider's index pool
+    private static final int INDEX_THREADS =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private static final int MAX_SEARCH_RESULTS = 500;
+
+    @Param({ "1000", "10000", "100000" })
+    public int tracks;
+
+    private ExecutorService mExecutor;
+    private Catalog mCatalog;
+    private List<String> mFavorites;
+    private int[] mDeadRows;
+    private List<Music> mChangedMusics;
+
+    @Setup
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(INDEX_THREADS);
+        TrackTable table = CatalogLoader.load(new SyntheticTrackSource(tracks), null);
+        mCatalog = newCatalog(table, Indexes.build(table, true, true, mExecutor));
+
+        // One track in ten is a favorite
+        mFavorites = new ArrayList<>();
+        for (int row = 0; row < table.size(); row += 10) {
+            mFavorites.add(table.getMediaId(row));
+        }
+
+        // One track in a hundred was modified, so a sync replaces its row by a new one
+        int changed = Math.max(1, tracks / 100);
+        mDeadRows = new int[changed];
+        mChangedMusics = new ArrayList<>(changed);
+        SyntheticTrackSource source = new SyntheticTrackSource(tracks, 7, 1);
+        for (int i = 0; i < changed; i++) {
+            int row = i * (tracks / changed);
+            Music music;
+            do {
+                music = source.next();
+            } while (music.getId() != table.getId(row));
+            mDeadRows[i] = row;
+            mChangedMusics.add(music);
+        }
+        source.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public Object load() {
+        return CatalogLoader.load(new SyntheticTrackSource(tracks), null);
+    }
+
+    @Benchmark
+    public Object indexAll() {
+        return Indexes.build(mCatalog.tracks, true, true, mExecutor);
+    }
+
+    @Benchmark
+    public Object indexCategories() {
+        return Indexes.build(mCatalog.tracks, true, false, mExecutor);
+    }
+
+    @Benchmark
+    public Object searchWord() {
+        return mCatalog.titleSearch.search("love", MAX_SEARCH_RESULTS);
+    }
+
+    @Benchmark
+    public Object searchPrefix() {
+        return mCatalog.titleSearch.search("mi", MAX_SEARCH_RESULTS);
+    }
+
+    @Benchmark
+    public Object searchSubstring() {
+        return mCatalog.titleSearch.search("ectri", MAX_SEARCH_RESULTS);
+    }
+
+    @Benchmark
+    public Object searchWords() {
+        return mCatalog.titleSearch.search("golden riv", MAX_SEARCH_RESULTS);
+    }
+
+    @Benchmark
+    public Object queueFavorites() {
+        return CatalogQueues.byTitle(mCatalog, mFavorites);
+    }
+
+    @Benchmark
+    public Object queueRandom() {
+        return CatalogQueues.random(mCatalog, new Random(tracks));
+    }
+
+    @Benchmark
+    public Object update() {
+        return CatalogDelta.apply(mCatalog, mDeadRows, mChangedMusics, mExecutor);
+    }
+
+    static Catalog newCatalog(TrackTable table, Indexes indexes) {
+        return new Catalog(0, table, indexes.byGenre, indexes.byArtist, indexes.byAlbum,
+                indexes.byAlphabet, indexes.titleSearch, indexes.artistSearch,
+                indexes.albumSearch, AlbumArtIndex.EMPTY);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ordering the titles of a library: with the precomputed collation keys of
+ * {@link CategoryIndex}, against comparing with a Collator or ignoring case on every
+ * comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CollationBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int tracks;
+
+    private Map<String, int[]> mBuckets;
+    private List<String> mTitles;
+
+    @Setup
+    public void setUp() {
+        TrackTable table = CatalogLoader.load(new SyntheticTrackSource(tracks), null);
+        mBuckets = new HashMap<>();
+        for (int row : table.liveRows()) {
+            mBuckets.put(table.getTitle(row), new int[] { row });
+        }
+        mTitles = new ArrayList<>(mBuckets.keySet());
+    }
+
+    @Benchmark
+    public Object collationKeys() {
+        return Indexes.BY_ALPHABET.withBuckets(mBuckets).sortedKeys();
+    }
+
+    @Benchmark
+    public Object collator() {
+        List<String> titles = new ArrayList<>(mTitles);
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+        Collections.sort(titles, collator);
+        return titles;
+    }
+
+    @Benchmark
+    public Object ignoreCase() {
+        List<String> titles = new ArrayList<>(mTitles);
+        Collections.sort(titles, String.CASE_INSENSITIVE_ORDER);
+        return titles;
+    }
+}
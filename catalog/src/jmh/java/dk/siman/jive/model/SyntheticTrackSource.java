@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.Random;
+
+/**
+ * A made up library of any size, for benchmarking the catalog off device.
+ *
+ * Tracks are generated from a seed, so every source of the same size and seed yields the
+ * same tracks. The library is shaped like a real one: about ten tracks per album, a few
+ * albums per artist, a few dozen genres, some tracks with two genres and some without any
+ * tags at all.
+ */
+class SyntheticTrackSource implements TrackSource {
+
+    private static final String[] WORDS = {
+            "love", "night", "heart", "blue", "dance", "river", "fire", "dream", "road",
+            "light", "summer", "rain", "golden", "wild", "city", "ocean", "stone", "song",
+            "ghost", "electric", "midnight", "shadow", "paradise", "winter",
+            // Accented words, escaped to keep the source ASCII
+            "Caf\u00e9", "\u00dcber", "Se\u00f1or", "M\u00e4dchen", "D\u00e9j\u00e0",
+            "\u00c5ben", "K\u00f8benhavn", "Zo\u00eb", "na\u00efve", "\u00c5ngstr\u00f6m"
+    };
+
+    private static final int GENRE_COUNT = 40;
+    private static final int TRACKS_PER_ALBUM = 10;
+    private static final int ALBUMS_PER_ARTIST = 3;
+
+    private final int mCount;
+    private final Random mRandom;
+    private final long mFirstId;
+    private int mNext;
+
+    /**
+     * @param firstId id of the first track, the others follow it.
+     */
+    SyntheticTrackSource(int count, long seed, long firstId) {
+        mCount = count;
+        mRandom = new Random(seed);
+        mFirstId = firstId;
+    }
+
+    SyntheticTrackSource(int count) {
+        this(count, 42, 1);
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public Music next() {
+        if (mNext == mCount) {
+            return null;
+        }
+        int index = mNext++;
+        long id = mFirstId + index;
+        int album = index / TRACKS_PER_ALBUM;
+        int artist = album / ALBUMS_PER_ARTIST;
+        int trackNumber = index % TRACKS_PER_ALBUM + 1;
+
+        String artistName = words(artist, 2) + " " + artist;
+        String albumName = words(album * 7 + 3, 3) + " " + album;
+        String title = words(mRandom.nextInt(), 1 + mRandom.nextInt(4));
+
+        Music music = new Music(id, "/storage/emulated/0/Music/" + artistName + "/"
+                + albumName + "/" + trackNumber + " " + title + ".mp3");
+        music.setSongId(String.valueOf(id));
+        music.setDuration(120000 + mRandom.nextInt(300000));
+        music.setDateAdded(1420070400 + index);
+        music.setDateModified(1420070400 + index);
+        music.setTitle(title);
+        // One track in fifty was never tagged beyond its title
+        if (mRandom.nextInt(50) == 0) {
+            return music;
+        }
+        music.setArtist(artistName);
+        music.setAlbumArtist(artistName);
+        music.setAlbum(albumName);
+        music.setAlbumId((long) album + 1);
+        music.setYear(1960 + artist % 60);
+        music.setTrackNumber(trackNumber);
+        int genre = artist % GENRE_COUNT;
+        if (mRandom.nextInt(10) == 0) {
+            music.setGenres(new String[] { "Genre " + genre,
+                    "Genre " + (genre + 1) % GENRE_COUNT });
+        } else {
+            music.setGenres(new String[] { "Genre " + genre });
+        }
+        return music;
+    }
+
+    @Override
+    public void close() {
+        mNext = mCount;
+    }
+
+    /**
+     * @return a few words picked from the seed.
+     */
+    private static String words(int seed, int count) {
+        StringBuilder sb = new StringBuilder();
+        int value = seed & Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[value % WORDS.length]);
+            value = value / WORDS.length + i * 31;
+        }
+        return sb.toString();
+    }
+}
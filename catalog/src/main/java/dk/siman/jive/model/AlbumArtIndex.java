@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.Arrays;
+
+/**
+ * Album art of every album MediaStore knows, by album id: the art file, if any, and the
+ * size of its image.
+ *
+ * Filled from MediaStore.Audio.Albums in a background pass after the catalog is loaded, so
+ * the browse lists know whether an album has art without opening or decoding any file.
+ * Albums are kept sorted by id in parallel arrays; the index is immutable.
+ */
+final class AlbumArtIndex {
+
+    static final AlbumArtIndex EMPTY = new Builder(0).build();
+
+    private final long[] mAlbumIds;
+    private final String[] mPaths;
+    private final int[] mWidths;
+    private final int[] mHeights;
+
+    private AlbumArtIndex(Builder builder) {
+        mAlbumIds = Arrays.copyOf(builder.mAlbumIds, builder.mSize);
+        mPaths = Arrays.copyOf(builder.mPaths, builder.mSize);
+        mWidths = Arrays.copyOf(builder.mWidths, builder.mSize);
+        mHeights = Arrays.copyOf(builder.mHeights, builder.mSize);
+    }
+
+    int size() {
+        return mAlbumIds.length;
+    }
+
+    long getAlbumId(int index) {
+        return mAlbumIds[index];
+    }
+
+    /**
+     * @return the art file of the album, or null if it has none.
+     */
+    String getPath(int index) {
+        return mPaths[index];
+    }
+
+    int getWidth(int index) {
+        return mWidths[index];
+    }
+
+    int getHeight(int index) {
+        return mHeights[index];
+    }
+
+    /**
+     * @return the index of the album, or -1 if it was not scanned.
+     */
+    int indexOf(long albumId) {
+        int index = Arrays.binarySearch(mAlbumIds, albumId);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * @return true if the album was scanned, so {@link #hasArt} can be trusted.
+     */
+    boolean isKnown(long albumId) {
+        return indexOf(albumId) >= 0;
+    }
+
+    /**
+     * @return true if the album was scanned and has a readable art image.
+     */
+    boolean hasArt(long albumId) {
+        int index = indexOf(albumId);
+        return index >= 0 && mPaths[index] != null && mWidths[index] > 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AlbumArtIndex)) {
+            return false;
+        }
+        AlbumArtIndex other = (AlbumArtIndex) o;
+        return Arrays.equals(mAlbumIds, other.mAlbumIds)
+                && Arrays.equals(mPaths, other.mPaths)
+                && Arrays.equals(mWidths, other.mWidths)
+                && Arrays.equals(mHeights, other.mHeights);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mAlbumIds);
+    }
+
+    /**
+     * Collects albums in increasing id order.
+     */
+    static final class Builder {
+        private long[] mAlbumIds;
+        private String[] mPaths;
+        private int[] mWidths;
+        private int[] mHeights;
+        private int mSize;
+
+        Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            mAlbumIds = new long[capacity];
+            mPaths = new String[capacity];
+            mWidths = new int[capacity];
+            mHeights = new int[capacity];
+        }
+
+        /**
+         * @param path the art file, or null if the album has none.
+         * @param width width of the art image, 0 if it cannot be read.
+         * @param height height of the art image, 0 if it cannot be read.
+         */
+        void add(long albumId, String path, int width, int height) {
+            if (mSize > 0 && albumId <= mAlbumIds[mSize - 1]) {
+                throw new IllegalArgumentException("Albums must be added by increasing id");
+            }
+            if (mSize == mAlbumIds.length) {
+                int capacity = mSize * 2;
+                mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+                mPaths = Arrays.copyOf(mPaths, capacity);
+                mWidths = Arrays.copyOf(mWidths, capacity);
+                mHeights = Arrays.copyOf(mHeights, capacity);
+            }
+            mAlbumIds[mSize] = albumId;
+            mPaths[mSize] = path;
+            mWidths[mSize] = Math.max(width, 0);
+            mHeights[mSize] = Math.max(height, 0);
+            mSize++;
+        }
+
+        AlbumArtIndex build() {
+            return new AlbumArtIndex(this);
+        }
+    }
+}
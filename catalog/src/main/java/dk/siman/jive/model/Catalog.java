@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+/**
+ * Immutable snapshot of the music catalog: the tracks and every index built over them.
+ *
+ * {@link MusicProvider} publishes a new snapshot for every change, with a higher version.
+ * A reader takes the current snapshot once and answers from it alone, so it never sees the
+ * indexes of one catalog mixed with the tracks of another, and never waits for a writer.
+ */
+final class Catalog {
+
+    // Increases with every published snapshot, so results can be cached per version
+    final long version;
+    final TrackTable tracks;
+    final CategoryIndex byGenre;
+    final CategoryIndex byArtist;
+    final CategoryIndex byAlbum;
+    final CategoryIndex byAlphabet;
+    // Search indexes, null while the catalog is only partially loaded
+    final SearchIndex titleSearch;
+    final SearchIndex artistSearch;
+    final SearchIndex albumSearch;
+    // Album art by album id, filled in after the tracks are loaded
+    final AlbumArtIndex albumArt;
+
+    Catalog(long version, TrackTable tracks, CategoryIndex byGenre, CategoryIndex byArtist,
+            CategoryIndex byAlbum, CategoryIndex byAlphabet, SearchIndex titleSearch,
+            SearchIndex artistSearch, SearchIndex albumSearch, AlbumArtIndex albumArt) {
+        this.version = version;
+        this.tracks = tracks;
+        this.byGenre = byGenre;
+        this.byArtist = byArtist;
+        this.byAlbum = byAlbum;
+        this.byAlphabet = byAlphabet;
+        this.titleSearch = titleSearch;
+        this.artistSearch = artistSearch;
+        this.albumSearch = albumSearch;
+        this.albumArt = albumArt;
+    }
+
+    /**
+     * @return a copy of this snapshot with the next version and the given content. Album
+     *         art is kept, as it does not depend on the tracks.
+     */
+    Catalog next(TrackTable tracks, CategoryIndex byGenre, CategoryIndex byArtist,
+                 CategoryIndex byAlbum, CategoryIndex byAlphabet, SearchIndex titleSearch,
+                 SearchIndex artistSearch, SearchIndex albumSearch) {
+        return new Catalog(version + 1, tracks, byGenre, byArtist, byAlbum, byAlphabet,
+                titleSearch, artistSearch, albumSearch, albumArt);
+    }
+
+    /**
+     * @return a copy of this snapshot with the next version and the given album art.
+     */
+    Catalog withAlbumArt(AlbumArtIndex albumArt) {
+        return new Catalog(version + 1, tracks, byGenre, byArtist, byAlbum, byAlphabet,
+                titleSearch, artistSearch, albumSearch, albumArt);
+    }
+
+    /**
+     * @return the bytes held by views of the indexes that are derived on first use.
+     */
+    long derivedBytes() {
+        return byGenre.derivedBytes() + byArtist.derivedBytes() + byAlbum.derivedBytes()
+                + byAlphabet.derivedBytes();
+    }
+
+    /**
+     * Drop the views of the indexes that are derived on first use. The content of the
+     * snapshot does not change, readers only pay for deriving them again.
+     */
+    void trimDerived() {
+        byGenre.trimDerived();
+        byArtist.trimDerived();
+        byAlbum.trimDerived();
+        byAlphabet.trimDerived();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The tracks and indexes of a catalog after some of its tracks were removed and others
+ * added, see {@link #apply}.
+ */
+final class CatalogDelta {
+
+    // Deleted rows beyond this part of the table are compacted away
+    static final int COMPACT_DIVISOR = 4;
+
+    final TrackTable tracks;
+    final Indexes indexes;
+    // Rows of the removed and of the added tracks in the new table, null if it was compacted
+    final int[] deadRows;
+    final int[] newRows;
+    // True if the table was compacted, which moves every row and rebuilds every index
+    final boolean compacted;
+    // True if the keys of a category index changed, not only the rows of some of its keys
+    final boolean genresChanged;
+    final boolean artistsChanged;
+    final boolean albumsChanged;
+
+    private CatalogDelta(TrackTable tracks, Indexes indexes, int[] deadRows, int[] newRows,
+                         boolean compacted, boolean genresChanged, boolean artistsChanged,
+                         boolean albumsChanged) {
+        this.tracks = tracks;
+        this.indexes = indexes;
+        this.deadRows = deadRows;
+        this.newRows = newRows;
+        this.compacted = compacted;
+        this.genresChanged = genresChanged;
+        this.artistsChanged = artistsChanged;
+        this.albumsChanged = albumsChanged;
+    }
+
+    /**
+     * Replace the dead rows of the catalog by the given tracks, updating only the index
+     * buckets they belong to. Rows of the other tracks do not move, so rows already handed out
+     * keep pointing at the same tracks. Once too many rows are dead, the table is compacted
+     * and every index rebuilt instead.
+     *
+     * @param executor runs the index builds, see {@link Indexes#build}.
+     */
+    static CatalogDelta apply(Catalog catalog, int[] deadRows, List<Music> musics,
+                              ExecutorService executor) {
+        TrackTable.Builder builder = new TrackTable.Builder(catalog.tracks, musics.size());
+        for (int row : deadRows) {
+            builder.delete(row);
+        }
+        int[] newRows = new int[musics.size()];
+        for (int i = 0; i < newRows.length; i++) {
+            newRows[i] = builder.add(musics.get(i));
+        }
+        TrackTable next = builder.build();
+
+        if (next.getDeletedCount() > next.size() / COMPACT_DIVISOR) {
+            TrackTable.Builder compact = new TrackTable.Builder(next.size()
+                    - next.getDeletedCount());
+            for (int row : next.liveRows()) {
+                compact.add(next, row);
+            }
+            TrackTable tracks = compact.build();
+            return new CatalogDelta(tracks, Indexes.build(tracks, true, true, executor),
+                    null, null, true, true, true, true);
+        }
+
+        Indexes indexes = Indexes.build(next, false, true, executor);
+        CategoryIndex.Editor byGenre = catalog.byGenre.edit();
+        CategoryIndex.Editor byArtist = catalog.byArtist.edit();
+        CategoryIndex.Editor byAlbum = catalog.byAlbum.edit();
+        CategoryIndex.Editor byAlphabet = catalog.byAlphabet.edit();
+        boolean genresChanged = false;
+        boolean artistsChanged = false;
+        boolean albumsChanged = false;
+        int[][] changedRows = { deadRows, newRows };
+        for (int[] rows : changedRows) {
+            boolean add = rows == newRows;
+            for (int row : rows) {
+                genresChanged |= edit(byGenre, next, row, add);
+                artistsChanged |= edit(byArtist, next, row, add);
+                albumsChanged |= edit(byAlbum, next, row, add);
+                edit(byAlphabet, next, row, add);
+            }
+        }
+        indexes.byGenre = byGenre.build();
+        indexes.byArtist = byArtist.build();
+        indexes.byAlbum = byAlbum.build();
+        indexes.byAlphabet = byAlphabet.build();
+        return new CatalogDelta(next, indexes, deadRows, newRows, false, genresChanged,
+                artistsChanged, albumsChanged);
+    }
+
+    /**
+     * @return true if the keys of the index changed.
+     */
+    private static boolean edit(CategoryIndex.Editor editor, TrackTable table, int row,
+                                boolean add) {
+        return add ? editor.add(table, row) : editor.remove(table, row);
+    }
+}
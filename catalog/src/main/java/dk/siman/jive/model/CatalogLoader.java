@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+/**
+ * Reads the tracks of a {@link TrackSource} into a {@link TrackTable}.
+ */
+final class CatalogLoader {
+
+    // Chunk sizes of a progressive load start at this and double every time
+    static final int FIRST_CHUNK_SIZE = 250;
+
+    /**
+     * Receives the tracks loaded so far, while a load goes on.
+     */
+    interface ChunkListener {
+        void onChunkLoaded(TrackTable tracks);
+    }
+
+    private CatalogLoader() {
+    }
+
+    /**
+     * Read every track of the source, and close it.
+     *
+     * @param listener if not null, given the tracks read so far in chunks of growing size,
+     *                 so the catalog can be browsed before the load is done.
+     */
+    static TrackTable load(TrackSource source, ChunkListener listener) {
+        try {
+            int count = source.getCount();
+            if (count <= 0) {
+                return TrackTable.EMPTY;
+            }
+            TrackTable.Builder tracks = new TrackTable.Builder(count);
+            int nextChunk = FIRST_CHUNK_SIZE;
+            Music music;
+            while ((music = source.next()) != null) {
+                tracks.add(music);
+                if (listener != null && tracks.size() == nextChunk && tracks.size() < count) {
+                    listener.onChunkLoaded(tracks.build());
+                    nextChunk *= 2;
+                }
+            }
+            return tracks.build();
+        } finally {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Selects and orders the rows of the playing queues that are not simply the rows of one
+ * category.
+ */
+final class CatalogQueues {
+
+    private CatalogQueues() {
+    }
+
+    /**
+     * @return the rows of the given tracks that are in the catalog, ordered by title like
+     *         {@link CategoryIndex#sortedRows()} of the alphabet index.
+     */
+    static int[] byTitle(Catalog catalog, Collection<String> mediaIds) {
+        int[] ranks = catalog.byAlphabet.rowRanks();
+        // Pack the title rank and the row of every track in a long, and sort those
+        long[] keys = new long[mediaIds.size()];
+        int count = 0;
+        for (String mediaId : mediaIds) {
+            int row = catalog.tracks.rowOf(mediaId);
+            if (row != TrackTable.NO_ROW && row < ranks.length && ranks[row] >= 0
+                    && count < keys.length) {
+                keys[count++] = (long) ranks[row] << 32 | row;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = (int) keys[i];
+        }
+        return rows;
+    }
+
+    /**
+     * @return about half of the tracks of every genre, shuffled. A track is picked once for
+     *         each of its genres.
+     */
+    static int[] random(Catalog catalog, Random random) {
+        RowList picked = new RowList();
+        for (String genre : catalog.byGenre.sortedKeys()) {
+            for (int row : catalog.byGenre.get(genre)) {
+                if (random.nextBoolean()) {
+                    picked.add(row);
+                }
+            }
+        }
+        int[] rows = picked.toArray();
+        for (int i = rows.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int row = rows[i];
+            rows[i] = rows[j];
+            rows[j] = row;
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rows of a {@link TrackTable} grouped into buckets by the value of one field (genre, artist,
+ * album...). A track with several values for the field, like a song tagged with two genres,
+ * is listed in each of the matching buckets.
+ *
+ * The buckets of an index never change, so it can be shared between threads without
+ * locking. Changes produce a new index: {@link #build} groups a whole table, and an
+ * {@link Editor} adds or removes single rows in O(bucket) time each. Returned arrays must not
+ * be modified.
+ *
+ * {@link #sortedRows()} and {@link #rowRanks()} are derived from the buckets on first use and
+ * cached. They can be dropped with {@link #trimDerived()} to save memory, and are derived
+ * again when next asked for.
+ *
+ * The bucket keys are ordered for display when an index is created, by collation keys of
+ * the current locale, so lists built from an index never compare strings again.
+ */
+class CategoryIndex {
+
+    /**
+     * Extracts the bucket keys of a row.
+     */
+    interface KeyFunction {
+        String[] keysOf(TrackTable table, int row);
+    }
+
+    /**
+     * Primary sort key of a row inside its buckets. Rows with the same key are ordered by
+     * file path.
+     */
+    interface SortKey {
+        int keyOf(TrackTable table, int row);
+    }
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private static final Comparator<CollationKey> COLLATION_ORDER =
+            new Comparator<CollationKey>() {
+                @Override
+                public int compare(CollationKey lhs, CollationKey rhs) {
+                    int order = lhs.compareTo(rhs);
+                    // Keys differing in case only still get a stable order
+                    return order != 0 ? order
+                            : lhs.getSourceString().compareTo(rhs.getSourceString());
+                }
+            };
+
+    private final KeyFunction mKeyFunction;
+    private final SortKey mSortKey;
+    private final Map<String, int[]> mBuckets;
+    private final List<String> mSortedKeys;
+    // Derived on first use, see sortedRows() and rowRanks()
+    private volatile int[] mSortedRows;
+    private volatile int[] mRowRanks;
+
+    /**
+     * Create an empty index.
+     *
+     * @param keyFunction the keys of the buckets a row is listed in.
+     * @param sortKey order kept inside every bucket, or null to keep row order.
+     */
+    CategoryIndex(KeyFunction keyFunction, SortKey sortKey) {
+        this(keyFunction, sortKey, Collections.<String, int[]>emptyMap());
+    }
+
+    private CategoryIndex(KeyFunction keyFunction, SortKey sortKey, Map<String, int[]> buckets) {
+        this(keyFunction, sortKey, buckets, collate(buckets.keySet()));
+    }
+
+    private CategoryIndex(KeyFunction keyFunction, SortKey sortKey, Map<String, int[]> buckets,
+                          List<String> sortedKeys) {
+        mKeyFunction = keyFunction;
+        mSortKey = sortKey;
+        mBuckets = buckets;
+        mSortedKeys = sortedKeys;
+    }
+
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(mBuckets.keySet());
+    }
+
+    public boolean containsKey(String key) {
+        return mBuckets.containsKey(key);
+    }
+
+    /**
+     * @return the rows of the bucket, or null if there is no such bucket.
+     */
+    public int[] get(String key) {
+        return mBuckets.get(key);
+    }
+
+    /**
+     * @return the bucket keys in the collation order of the locale.
+     */
+    public List<String> sortedKeys() {
+        return mSortedKeys;
+    }
+
+    /**
+     * @return the rows of all buckets one after the other, in the order of
+     *         {@link #sortedKeys()}. A row listed in several buckets appears once per bucket.
+     */
+    public int[] sortedRows() {
+        int[] sortedRows = mSortedRows;
+        if (sortedRows == null) {
+            RowList rows = new RowList();
+            for (String key : sortedKeys()) {
+                for (int row : mBuckets.get(key)) {
+                    rows.add(row);
+                }
+            }
+            sortedRows = rows.toArray();
+            mSortedRows = sortedRows;
+        }
+        return sortedRows;
+    }
+
+    /**
+     * @return the position of every row in {@link #sortedRows()}, by row, or -1 for rows
+     *         that are not listed. A row listed in several buckets gets its first position.
+     *         Sorting rows by their positions puts them in the order of the index.
+     */
+    public int[] rowRanks() {
+        int[] rowRanks = mRowRanks;
+        if (rowRanks == null) {
+            int[] sortedRows = sortedRows();
+            int size = 0;
+            for (int row : sortedRows) {
+                size = Math.max(size, row + 1);
+            }
+            rowRanks = new int[size];
+            Arrays.fill(rowRanks, -1);
+            for (int i = sortedRows.length - 1; i >= 0; i--) {
+                rowRanks[sortedRows[i]] = i;
+            }
+            mRowRanks = rowRanks;
+        }
+        return rowRanks;
+    }
+
+    /**
+     * @return the bytes held by {@link #sortedRows()} and {@link #rowRanks()}, if derived.
+     */
+    public long derivedBytes() {
+        int[] sortedRows = mSortedRows;
+        int[] rowRanks = mRowRanks;
+        return 4L * ((sortedRows != null ? sortedRows.length : 0)
+                + (rowRanks != null ? rowRanks.length : 0));
+    }
+
+    /**
+     * Drop {@link #sortedRows()} and {@link #rowRanks()}, they are derived again on next use.
+     */
+    public void trimDerived() {
+        mSortedRows = null;
+        mRowRanks = null;
+    }
+
+    /**
+     * @return the keys of the buckets the row belongs in.
+     */
+    public String[] keysOf(TrackTable table, int row) {
+        return mKeyFunction.keysOf(table, row);
+    }
+
+    /**
+     * @return an index of the same kind over the given rows of the table. Rows are appended
+     *         to their buckets in a single pass, and every bucket is sorted once at the end.
+     */
+    public CategoryIndex build(TrackTable table, int[] rows) {
+        Map<String, RowList> building = new HashMap<>();
+        for (int row : rows) {
+            for (String key : mKeyFunction.keysOf(table, row)) {
+                RowList list = building.get(key);
+                if (list == null) {
+                    list = new RowList();
+                    building.put(key, list);
+                }
+                list.add(row);
+            }
+        }
+
+        Map<String, int[]> buckets = new HashMap<>(building.size() * 2);
+        for (Map.Entry<String, RowList> entry : building.entrySet()) {
+            buckets.put(entry.getKey(), sort(table, entry.getValue().toArray()));
+        }
+        return new CategoryIndex(mKeyFunction, mSortKey, buckets);
+    }
+
+    /**
+     * @return an index of the same kind with buckets that are already grouped and ordered,
+     *         for example restored from the catalog cache. The map must not be modified.
+     */
+    public CategoryIndex withBuckets(Map<String, int[]> buckets) {
+        return new CategoryIndex(mKeyFunction, mSortKey, buckets);
+    }
+
+    /**
+     * @return an editor starting from the buckets of this index, which is left unchanged.
+     */
+    public Editor edit() {
+        return new Editor(new HashMap<>(mBuckets));
+    }
+
+    /**
+     * Adds and removes single rows on a private copy of the buckets of an index.
+     */
+    class Editor {
+        private final Map<String, int[]> mEdited;
+        // Keys of the buckets created and dropped, to update the key order on build()
+        private final Set<String> mCreated = new HashSet<>();
+        private final Set<String> mDropped = new HashSet<>();
+
+        private Editor(Map<String, int[]> buckets) {
+            mEdited = buckets;
+        }
+
+        /**
+         * Insert a single row in the buckets matching its keys.
+         *
+         * @return true if a bucket was created.
+         */
+        boolean add(TrackTable table, int row) {
+            boolean created = false;
+            for (String key : mKeyFunction.keysOf(table, row)) {
+                int[] bucket = mEdited.get(key);
+                if (bucket == null) {
+                    bucket = NO_ROWS;
+                    created = true;
+                    if (!mDropped.remove(key)) {
+                        mCreated.add(key);
+                    }
+                }
+                int index = insertionPoint(table, bucket, row);
+                int[] rows = new int[bucket.length + 1];
+                System.arraycopy(bucket, 0, rows, 0, index);
+                rows[index] = row;
+                System.arraycopy(bucket, index, rows, index + 1, bucket.length - index);
+                mEdited.put(key, rows);
+            }
+            return created;
+        }
+
+        /**
+         * Remove a single row from the buckets matching its keys. Empty buckets are dropped.
+         *
+         * @return true if a bucket was dropped.
+         */
+        boolean remove(TrackTable table, int row) {
+            boolean dropped = false;
+            for (String key : mKeyFunction.keysOf(table, row)) {
+                int[] bucket = mEdited.get(key);
+                int index = indexOf(bucket, row);
+                if (index < 0) {
+                    continue;
+                }
+                if (bucket.length == 1) {
+                    mEdited.remove(key);
+                    dropped = true;
+                    if (!mCreated.remove(key)) {
+                        mDropped.add(key);
+                    }
+                    continue;
+                }
+                int[] rows = new int[bucket.length - 1];
+                System.arraycopy(bucket, 0, rows, 0, index);
+                System.arraycopy(bucket, index + 1, rows, index, rows.length - index);
+                mEdited.put(key, rows);
+            }
+            return dropped;
+        }
+
+        /**
+         * @return the edited index. The editor must not be used afterwards.
+         */
+        CategoryIndex build() {
+            if (mCreated.isEmpty() && mDropped.isEmpty()) {
+                return new CategoryIndex(mKeyFunction, mSortKey, mEdited, mSortedKeys);
+            }
+            // Only the created keys need a place in the order, found by binary search
+            List<String> sortedKeys = new ArrayList<>(mSortedKeys.size() + mCreated.size());
+            for (String key : mSortedKeys) {
+                if (!mDropped.contains(key)) {
+                    sortedKeys.add(key);
+                }
+            }
+            Comparator<String> order = collationOrder();
+            for (String key : mCreated) {
+                int index = Collections.binarySearch(sortedKeys, key, order);
+                sortedKeys.add(index < 0 ? -index - 1 : index, key);
+            }
+            return new CategoryIndex(mKeyFunction, mSortKey, mEdited,
+                    Collections.unmodifiableList(sortedKeys));
+        }
+    }
+
+    /**
+     * Sort a bucket by packing the sort key and the path rank of every row in a long, so that
+     * sorting needs neither boxing nor a comparator.
+     */
+    private int[] sort(TrackTable table, int[] bucket) {
+        if (mSortKey == null || bucket.length < 2) {
+            return bucket;
+        }
+        long[] keys = new long[bucket.length];
+        for (int i = 0; i < bucket.length; i++) {
+            keys[i] = sortKey(table, bucket[i]);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < bucket.length; i++) {
+            bucket[i] = table.rowOfPathRank((int) keys[i]);
+        }
+        return bucket;
+    }
+
+    private long sortKey(TrackTable table, int row) {
+        return (long) mSortKey.keyOf(table, row) << 32 | table.getPathRank(row);
+    }
+
+    private int insertionPoint(TrackTable table, int[] bucket, int row) {
+        if (mSortKey == null) {
+            return bucket.length;
+        }
+        long key = sortKey(table, row);
+        int low = 0;
+        int high = bucket.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortKey(table, bucket[mid]) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Sort keys for display. Every key gets its collation key once, instead of comparing
+     * the strings themselves, which costs a locale aware decomposition per comparison.
+     */
+    private static List<String> collate(Set<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Collator collator = newCollator();
+        CollationKey[] collationKeys = new CollationKey[keys.size()];
+        int i = 0;
+        for (String key : keys) {
+            collationKeys[i++] = collator.getCollationKey(key);
+        }
+        Arrays.sort(collationKeys, COLLATION_ORDER);
+        String[] sorted = new String[collationKeys.length];
+        for (i = 0; i < sorted.length; i++) {
+            sorted[i] = collationKeys[i].getSourceString();
+        }
+        return Collections.unmodifiableList(Arrays.asList(sorted));
+    }
+
+    /**
+     * @return the order of {@link #collate}, for comparing a few strings directly.
+     */
+    private static Comparator<String> collationOrder() {
+        final Collator collator = newCollator();
+        return new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                int order = collator.compare(lhs, rhs);
+                return order != 0 ? order : lhs.compareTo(rhs);
+            }
+        };
+    }
+
+    private static Collator newCollator() {
+        // Collators are not thread safe; getInstance() returns a new one every time
+        Collator collator = Collator.getInstance();
+        // Ignore case, but not accents
+        collator.setStrength(Collator.SECONDARY);
+        return collator;
+    }
+
+    private static int indexOf(int[] bucket, int row) {
+        if (bucket == null) {
+            return -1;
+        }
+        for (int i = 0; i < bucket.length; i++) {
+            if (bucket[i] == row) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
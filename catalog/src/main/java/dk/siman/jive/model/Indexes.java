@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexes built over one track table, published together in a {@link Catalog}.
+ *
+ * The categories of the catalog are defined here, as empty indexes to build from, see
+ * {@link CategoryIndex#build}.
+ */
+final class Indexes {
+
+    // Genre of tracks without any genre tag
+    static final String UNKNOWN_GENRE = "Other";
+
+    static final CategoryIndex BY_GENRE = new CategoryIndex(
+            new CategoryIndex.KeyFunction() {
+                @Override
+                public String[] keysOf(TrackTable table, int row) {
+                    String[] genres = table.getGenres(row);
+                    return genres.length > 0 ? distinct(genres)
+                            : new String[] { UNKNOWN_GENRE };
+                }
+            }, null);
+    static final CategoryIndex BY_ARTIST = new CategoryIndex(
+            new CategoryIndex.KeyFunction() {
+                @Override
+                public String[] keysOf(TrackTable table, int row) {
+                    return keys(table.getArtist(row));
+                }
+            }, null);
+    static final CategoryIndex BY_ALBUM = new CategoryIndex(
+            new CategoryIndex.KeyFunction() {
+                @Override
+                public String[] keysOf(TrackTable table, int row) {
+                    return keys(table.getAlbum(row));
+                }
+            }, new CategoryIndex.SortKey() {
+                @Override
+                public int keyOf(TrackTable table, int row) {
+                    // MediaStore track numbers are disc * 1000 + track, so they order by disc
+                    // first. Tracks without a number sort first, by file name.
+                    return Math.max(table.getTrackNumber(row), 0);
+                }
+            });
+    static final CategoryIndex BY_ALPHABET = new CategoryIndex(
+            new CategoryIndex.KeyFunction() {
+                @Override
+                public String[] keysOf(TrackTable table, int row) {
+                    return keys(table.getTitle(row));
+                }
+            }, new CategoryIndex.SortKey() {
+                @Override
+                public int keyOf(TrackTable table, int row) {
+                    return 0;
+                }
+            });
+
+    static final SearchIndex.TextFunction TITLE_TEXT = new SearchIndex.TextFunction() {
+        @Override
+        public String textOf(TrackTable table, int row) {
+            return table.getTitle(row);
+        }
+    };
+    static final SearchIndex.TextFunction ARTIST_TEXT = new SearchIndex.TextFunction() {
+        @Override
+        public String textOf(TrackTable table, int row) {
+            return table.getArtist(row);
+        }
+    };
+    static final SearchIndex.TextFunction ALBUM_TEXT = new SearchIndex.TextFunction() {
+        @Override
+        public String textOf(TrackTable table, int row) {
+            return table.getAlbum(row);
+        }
+    };
+
+    CategoryIndex byGenre;
+    CategoryIndex byArtist;
+    CategoryIndex byAlbum;
+    CategoryIndex byAlphabet;
+    SearchIndex titleSearch;
+    SearchIndex artistSearch;
+    SearchIndex albumSearch;
+
+    // How long each index took to build, like "genre=12ms, artist=8ms"
+    String timings = "";
+
+    /**
+     * Builds one index, timing how long it takes.
+     */
+    private abstract static class IndexTask implements Callable<Long> {
+        final String mName;
+        long mElapsed;
+
+        IndexTask(String name) {
+            mName = name;
+        }
+
+        abstract void build();
+
+        @Override
+        public Long call() {
+            long start = System.nanoTime();
+            build();
+            mElapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return mElapsed;
+        }
+    }
+
+    /**
+     * Build the indexes over a track table, each as a separate task on the executor.
+     *
+     * @param categories build the category indexes.
+     * @param search build the search indexes.
+     */
+    static Indexes build(final TrackTable tracks, boolean categories, boolean search,
+                         ExecutorService executor) {
+        final int[] rows = tracks.liveRows();
+        final Indexes indexes = new Indexes();
+        List<IndexTask> tasks = new ArrayList<>();
+        if (categories) {
+            tasks.add(new IndexTask("genre") {
+                @Override
+                void build() {
+                    indexes.byGenre = BY_GENRE.build(tracks, rows);
+                }
+            });
+            tasks.add(new IndexTask("artist") {
+                @Override
+                void build() {
+                    indexes.byArtist = BY_ARTIST.build(tracks, rows);
+                }
+            });
+            tasks.add(new IndexTask("album") {
+                @Override
+                void build() {
+                    indexes.byAlbum = BY_ALBUM.build(tracks, rows);
+                }
+            });
+            tasks.add(new IndexTask("alphabet") {
+                @Override
+                void build() {
+                    indexes.byAlphabet = BY_ALPHABET.build(tracks, rows);
+                }
+            });
+        }
+        if (search) {
+            tasks.add(new IndexTask("title search") {
+                @Override
+                void build() {
+                    indexes.titleSearch = SearchIndex.build(tracks, TITLE_TEXT);
+                }
+            });
+            tasks.add(new IndexTask("artist search") {
+                @Override
+                void build() {
+                    indexes.artistSearch = SearchIndex.build(tracks, ARTIST_TEXT);
+                }
+            });
+            tasks.add(new IndexTask("album search") {
+                @Override
+                void build() {
+                    indexes.albumSearch = SearchIndex.build(tracks, ALBUM_TEXT);
+                }
+            });
+        }
+
+        try {
+            // Future.get() also makes the fields set by the tasks visible to this thread
+            for (Future<Long> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building indexes", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build indexes", e.getCause());
+        }
+
+        StringBuilder timings = new StringBuilder();
+        for (IndexTask task : tasks) {
+            timings.append(timings.length() == 0 ? "" : ", ")
+                    .append(task.mName).append('=').append(task.mElapsed).append("ms");
+        }
+        indexes.timings = timings.toString();
+        return indexes;
+    }
+
+    private static String[] keys(String key) {
+        return key == null ? new String[0] : new String[] { key };
+    }
+
+    // Two MediaStore genres may share a name, and a track of both must still be listed once
+    private static String[] distinct(String[] keys) {
+        if (keys.length < 2) {
+            return keys;
+        }
+        LinkedHashSet<String> distinct = new LinkedHashSet<>(Arrays.asList(keys));
+        return distinct.size() == keys.length ? keys
+                : distinct.toArray(new String[distinct.size()]);
+    }
+}
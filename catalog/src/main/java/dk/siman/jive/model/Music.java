@@ -69,8 +69,11 @@ class Music {
     private long   albumid     = -1;
 	private int    year        = -1;
 	private String genre       = "";
+	private String[] genres    = new String[0];
 	private int    track_no    = -1;
 	private long   duration_ms = -1;
+	private long   date_added    = 0;
+	private long   date_modified = 0;
 
 
     public String getSongId() {
@@ -129,6 +132,17 @@ class Music {
 		this.genre = genre;
 	}
 
+	/**
+	 * All genres the song is tagged with; {@link #getGenre()} is the first of them.
+	 */
+	public String[] getGenres() {
+		return genres;
+	}
+	public void setGenres(String[] genres) {
+		this.genres = genres;
+		this.genre  = genres.length > 0 ? genres[0] : null;
+	}
+
 	public int getTrackNumber() {
 		return track_no;
 	}
@@ -136,6 +150,26 @@ class Music {
 		this.track_no = track_no;
 	}
 
+	/**
+	 * Seconds since the epoch the song was added to MediaStore.
+	 */
+	public long getDateAdded() {
+		return date_added;
+	}
+	public void setDateAdded(long date_added) {
+		this.date_added = date_added;
+	}
+
+	/**
+	 * Seconds since the epoch the file was last modified, as seen by MediaStore.
+	 */
+	public long getDateModified() {
+		return date_modified;
+	}
+	public void setDateModified(long date_modified) {
+		this.date_modified = date_modified;
+	}
+
 	/**
 	 * Sets the duration of the song, in miliseconds.
 	 */
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of {@link TrackTable} rows, without boxing.
+ */
+final class RowList {
+
+    private int[] mRows = new int[4];
+    private int mSize;
+
+    void add(int row) {
+        if (mSize == mRows.length) {
+            mRows = Arrays.copyOf(mRows, mSize * 2);
+        }
+        mRows[mSize++] = row;
+    }
+
+    int get(int index) {
+        return mRows[index];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    int[] toArray() {
+        return Arrays.copyOf(mRows, mSize);
+    }
+}
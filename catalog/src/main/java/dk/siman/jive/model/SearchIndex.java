@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Word index over one text field of a {@link TrackTable}, for searching as you type.
+ *
+ * Field values are normalized (lower cased, accents removed) and split into words. The
+ * distinct words are kept sorted, each with the sorted rows containing it, so words starting
+ * with a query are found by binary search. Words containing a query of three or more
+ * characters are found through a trigram index over the words.
+ *
+ * Every word of a query has to match a word of the field. Rows are ranked by how well the
+ * words matched: whole words before prefixes before substrings.
+ */
+final class SearchIndex {
+
+    /**
+     * Extracts the indexed text of a row.
+     */
+    interface TextFunction {
+        String textOf(TrackTable table, int row);
+    }
+
+    private static final int SCORE_SUBSTRING = 1;
+    private static final int SCORE_PREFIX = 2;
+    private static final int SCORE_WORD = 3;
+
+    private static final int[] NO_ROWS = new int[0];
+
+    // Sorted distinct words, and the sorted rows containing each of them
+    private final String[] mWords;
+    private final int[][] mRowsByWord;
+    // Sorted packed trigrams, and the sorted words (by index) containing each of them
+    private final long[] mTrigrams;
+    private final int[][] mWordsByTrigram;
+
+    private SearchIndex(String[] words, int[][] rowsByWord, long[] trigrams,
+                        int[][] wordsByTrigram) {
+        mWords = words;
+        mRowsByWord = rowsByWord;
+        mTrigrams = trigrams;
+        mWordsByTrigram = wordsByTrigram;
+    }
+
+    /**
+     * Index the field of every row of the table that is not deleted.
+     */
+    static SearchIndex build(TrackTable table, TextFunction field) {
+        Map<String, RowList> postings = new HashMap<>();
+        for (int row = 0; row < table.size(); row++) {
+            if (table.isDeleted(row)) {
+                continue;
+            }
+            for (String word : words(field.textOf(table, row))) {
+                RowList rows = postings.get(word);
+                if (rows == null) {
+                    rows = new RowList();
+                    postings.put(word, rows);
+                }
+                // Rows are visited in order, so a repeated word can only follow itself
+                if (rows.size() == 0 || rows.get(rows.size() - 1) != row) {
+                    rows.add(row);
+                }
+            }
+        }
+
+        String[] words = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(words);
+        int[][] rowsByWord = new int[words.length][];
+        Map<Long, RowList> trigramPostings = new HashMap<>();
+        for (int i = 0; i < words.length; i++) {
+            rowsByWord[i] = postings.get(words[i]).toArray();
+            for (long trigram : trigrams(words[i])) {
+                RowList wordIds = trigramPostings.get(trigram);
+                if (wordIds == null) {
+                    wordIds = new RowList();
+                    trigramPostings.put(trigram, wordIds);
+                }
+                if (wordIds.size() == 0 || wordIds.get(wordIds.size() - 1) != i) {
+                    wordIds.add(i);
+                }
+            }
+        }
+
+        long[] trigrams = new long[trigramPostings.size()];
+        int count = 0;
+        for (Long trigram : trigramPostings.keySet()) {
+            trigrams[count++] = trigram;
+        }
+        Arrays.sort(trigrams);
+        int[][] wordsByTrigram = new int[trigrams.length][];
+        for (int i = 0; i < trigrams.length; i++) {
+            wordsByTrigram[i] = trigramPostings.get(trigrams[i]).toArray();
+        }
+        return new SearchIndex(words, rowsByWord, trigrams, wordsByTrigram);
+    }
+
+    /**
+     * @return up to {@code limit} rows matching the query, best matches first and rows of
+     *         the same rank in table order.
+     */
+    int[] search(String query, int limit) {
+        String[] queryWords = words(query);
+        if (queryWords.length == 0 || limit <= 0) {
+            return NO_ROWS;
+        }
+
+        // Rows matching all query words so far, with their summed scores
+        int[] rows = null;
+        int[] scores = null;
+        for (String queryWord : queryWords) {
+            long[] matches = match(queryWord);
+            if (rows == null) {
+                rows = new int[matches.length];
+                scores = new int[matches.length];
+                for (int i = 0; i < matches.length; i++) {
+                    rows[i] = (int) (matches[i] >>> 2);
+                    scores[i] = (int) (matches[i] & 3);
+                }
+            } else {
+                int count = 0;
+                for (int i = 0, j = 0; i < rows.length && j < matches.length; ) {
+                    int row = (int) (matches[j] >>> 2);
+                    if (rows[i] < row) {
+                        i++;
+                    } else if (rows[i] > row) {
+                        j++;
+                    } else {
+                        rows[count] = row;
+                        scores[count++] = scores[i] + (int) (matches[j] & 3);
+                        i++;
+                        j++;
+                    }
+                }
+                rows = Arrays.copyOf(rows, count);
+                scores = Arrays.copyOf(scores, count);
+            }
+            if (rows.length == 0) {
+                return NO_ROWS;
+            }
+        }
+        return topRows(rows, scores, limit);
+    }
+
+    /**
+     * @return the rows containing a word matching the query word, each encoded as
+     *         {@code row << 2 | score} with the best score of the row, sorted by row.
+     */
+    private long[] match(String queryWord) {
+        List<int[]> postings = new ArrayList<>();
+        List<Integer> postingScores = new ArrayList<>();
+
+        int first = Arrays.binarySearch(mWords, queryWord);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        int end = first;
+        while (end < mWords.length && mWords[end].startsWith(queryWord)) {
+            postings.add(mRowsByWord[end]);
+            postingScores.add(mWords[end].length() == queryWord.length()
+                    ? SCORE_WORD : SCORE_PREFIX);
+            end++;
+        }
+
+        if (queryWord.length() >= 3) {
+            for (int wordId : wordsWithTrigrams(queryWord)) {
+                if ((wordId < first || wordId >= end) && mWords[wordId].contains(queryWord)) {
+                    postings.add(mRowsByWord[wordId]);
+                    postingScores.add(SCORE_SUBSTRING);
+                }
+            }
+        }
+
+        int total = 0;
+        for (int[] posting : postings) {
+            total += posting.length;
+        }
+        long[] matches = new long[total];
+        int count = 0;
+        for (int i = 0; i < postings.size(); i++) {
+            int score = postingScores.get(i);
+            for (int row : postings.get(i)) {
+                matches[count++] = (long) row << 2 | score;
+            }
+        }
+        Arrays.sort(matches);
+
+        // Keep the best score of every row, which sorts last among its entries
+        count = 0;
+        for (int i = 0; i < matches.length; i++) {
+            if (i + 1 < matches.length && matches[i + 1] >>> 2 == matches[i] >>> 2) {
+                continue;
+            }
+            matches[count++] = matches[i];
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * @return the words containing all trigrams of the query word, a superset of the words
+     *         containing the query word.
+     */
+    private int[] wordsWithTrigrams(String queryWord) {
+        int[] result = null;
+        for (long trigram : trigrams(queryWord)) {
+            int index = Arrays.binarySearch(mTrigrams, trigram);
+            if (index < 0) {
+                return NO_ROWS;
+            }
+            int[] words = mWordsByTrigram[index];
+            if (result == null) {
+                result = words;
+                continue;
+            }
+            int[] intersection = new int[Math.min(result.length, words.length)];
+            int count = 0;
+            for (int i = 0, j = 0; i < result.length && j < words.length; ) {
+                if (result[i] < words[j]) {
+                    i++;
+                } else if (result[i] > words[j]) {
+                    j++;
+                } else {
+                    intersection[count++] = result[i];
+                    i++;
+                    j++;
+                }
+            }
+            result = Arrays.copyOf(intersection, count);
+        }
+        return result == null ? NO_ROWS : result;
+    }
+
+    /**
+     * Select the {@code limit} best rows with a bounded min-heap of {@code score << 32 | ~row}
+     * keys, so that higher scores and then lower rows win.
+     */
+    private static int[] topRows(int[] rows, int[] scores, int limit) {
+        int size = Math.min(limit, rows.length);
+        long[] heap = new long[size];
+        int count = 0;
+        for (int i = 0; i < rows.length; i++) {
+            long key = (long) scores[i] << 32 | (~rows[i] & 0xffffffffL);
+            if (count < size) {
+                heap[count] = key;
+                siftUp(heap, count++);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, size);
+            }
+        }
+        Arrays.sort(heap);
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = ~(int) heap[size - 1 - i];
+        }
+        return result;
+    }
+
+    private static void siftUp(long[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= heap[index]) {
+                return;
+            }
+            long tmp = heap[parent];
+            heap[parent] = heap[index];
+            heap[index] = tmp;
+            index = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && heap[left] < heap[smallest]) {
+                smallest = left;
+            }
+            if (right < size && heap[right] < heap[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            long tmp = heap[smallest];
+            heap[smallest] = heap[index];
+            heap[index] = tmp;
+            index = smallest;
+        }
+    }
+
+    /**
+     * Split a text into normalized words: lower case, without accents and punctuation.
+     */
+    static String[] words(String text) {
+        if (text == null || text.isEmpty()) {
+            return new String[0];
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (word.length() > 0) {
+                words.add(word.toString().toLowerCase(Locale.US));
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString().toLowerCase(Locale.US));
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static long[] trigrams(String word) {
+        if (word.length() < 3) {
+            return new long[0];
+        }
+        long[] trigrams = new long[word.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = (long) word.charAt(i) << 32
+                    | (long) word.charAt(i + 1) << 16
+                    | word.charAt(i + 2);
+        }
+        return trigrams;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+/**
+ * Tracks read one after the other, like the rows of a MediaStore query. The catalog is
+ * loaded from a source by {@link CatalogLoader}, so it does not depend on where the tracks
+ * come from.
+ */
+interface TrackSource {
+
+    /**
+     * @return the number of tracks the source holds, read or not.
+     */
+    int getCount();
+
+    /**
+     * @return the next track, or null once every track was read.
+     */
+    Music next();
+
+    /**
+     * Release the source. No track can be read afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, column oriented store of the music catalog.
+ *
+ * Every track is a row, addressed by an int from 0 to {@link #size()} - 1. Numeric fields are
+ * kept in primitive arrays, and artist, album artist, album and genre names are stored once
+ * in a shared string table and referenced by index from every track using them.
+ *
+ * A table can be derived from another one keeping the rows of the other table in place, see
+ * {@link Builder#Builder(TrackTable, int)}. Tracks removed that way stay in the table as
+ * deleted rows, so that indexes over the old table remain valid for the rows they keep.
+ */
+final class TrackTable {
+
+    static final int NO_ROW = -1;
+
+    private static final int NO_STRING = -1;
+
+    static final TrackTable EMPTY = new Builder(0).build();
+
+    private final int mSize;
+    private final long[] mIds;
+    private final long[] mAlbumIds;
+    private final long[] mDurations;
+    private final long[] mDatesAdded;
+    private final long[] mDatesModified;
+    private final int[] mYears;
+    private final int[] mTrackNumbers;
+    private final String[] mTitles;
+    private final String[] mFilePaths;
+    private final int[] mArtists;
+    private final int[] mAlbumArtists;
+    private final int[] mAlbums;
+    // Genres of row i are mGenres[mGenreOffsets[i]] to mGenres[mGenreOffsets[i + 1] - 1]
+    private final int[] mGenreOffsets;
+    private final int[] mGenres;
+    private final String[] mStrings;
+    private final boolean[] mDeleted;
+    private final int mDeletedCount;
+    // All rows but the deleted ones, ordered by track id
+    private final int[] mRowsById;
+    // Position of every row when ordered by file path, and the reverse mapping
+    private final int[] mPathRanks;
+    private final int[] mRowsByPath;
+
+    private TrackTable(Builder builder) {
+        mSize = builder.mSize;
+        mIds = Arrays.copyOf(builder.mIds, mSize);
+        mAlbumIds = Arrays.copyOf(builder.mAlbumIds, mSize);
+        mDurations = Arrays.copyOf(builder.mDurations, mSize);
+        mDatesAdded = Arrays.copyOf(builder.mDatesAdded, mSize);
+        mDatesModified = Arrays.copyOf(builder.mDatesModified, mSize);
+        mYears = Arrays.copyOf(builder.mYears, mSize);
+        mTrackNumbers = Arrays.copyOf(builder.mTrackNumbers, mSize);
+        mTitles = Arrays.copyOf(builder.mTitles, mSize);
+        mFilePaths = Arrays.copyOf(builder.mFilePaths, mSize);
+        mArtists = Arrays.copyOf(builder.mArtists, mSize);
+        mAlbumArtists = Arrays.copyOf(builder.mAlbumArtists, mSize);
+        mAlbums = Arrays.copyOf(builder.mAlbums, mSize);
+        mGenreOffsets = Arrays.copyOf(builder.mGenreOffsets, mSize + 1);
+        mGenres = Arrays.copyOf(builder.mGenres, builder.mGenreCount);
+        mStrings = builder.mStrings.toArray(new String[builder.mStrings.size()]);
+        mDeleted = Arrays.copyOf(builder.mDeleted, mSize);
+        mDeletedCount = builder.mDeletedCount;
+        mRowsById = sortRowsById(mIds, mDeleted, mSize - mDeletedCount);
+        mRowsByPath = sortRowsByPath(mFilePaths, mSize);
+        mPathRanks = new int[mSize];
+        for (int rank = 0; rank < mSize; rank++) {
+            mPathRanks[mRowsByPath[rank]] = rank;
+        }
+    }
+
+    /**
+     * @return the number of rows, including deleted ones.
+     */
+    int size() {
+        return mSize;
+    }
+
+    int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    /**
+     * @return the number of rows that are not deleted.
+     */
+    int liveSize() {
+        return mSize - mDeletedCount;
+    }
+
+    boolean isDeleted(int row) {
+        return mDeleted[row];
+    }
+
+    /**
+     * @return all rows that are not deleted, in order.
+     */
+    int[] liveRows() {
+        int[] rows = new int[mSize - mDeletedCount];
+        int count = 0;
+        for (int row = 0; row < mSize; row++) {
+            if (!mDeleted[row]) {
+                rows[count++] = row;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return the row of the track with the given MediaStore id, or {@link #NO_ROW}.
+     */
+    int rowOf(long id) {
+        int low = 0;
+        int high = mRowsById.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = mIds[mRowsById[mid]];
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mRowsById[mid];
+            }
+        }
+        return NO_ROW;
+    }
+
+    /**
+     * @return the row of the track with the given media id, or {@link #NO_ROW}.
+     */
+    int rowOf(String mediaId) {
+        if (mediaId == null) {
+            return NO_ROW;
+        }
+        try {
+            return rowOf(Long.parseLong(mediaId));
+        } catch (NumberFormatException e) {
+            return NO_ROW;
+        }
+    }
+
+    long getId(int row) {
+        return mIds[row];
+    }
+
+    String getMediaId(int row) {
+        return Long.toString(mIds[row]);
+    }
+
+    String getFilePath(int row) {
+        return mFilePaths[row];
+    }
+
+    String getTitle(int row) {
+        return mTitles[row];
+    }
+
+    String getArtist(int row) {
+        return string(mArtists[row]);
+    }
+
+    String getAlbumArtist(int row) {
+        return string(mAlbumArtists[row]);
+    }
+
+    String getAlbum(int row) {
+        return string(mAlbums[row]);
+    }
+
+    /**
+     * @return all genres of the track, possibly none.
+     */
+    String[] getGenres(int row) {
+        int start = mGenreOffsets[row];
+        String[] genres = new String[mGenreOffsets[row + 1] - start];
+        for (int i = 0; i < genres.length; i++) {
+            genres[i] = mStrings[mGenres[start + i]];
+        }
+        return genres;
+    }
+
+    long getAlbumId(int row) {
+        return mAlbumIds[row];
+    }
+
+    int getYear(int row) {
+        return mYears[row];
+    }
+
+    int getTrackNumber(int row) {
+        return mTrackNumbers[row];
+    }
+
+    long getDuration(int row) {
+        return mDurations[row];
+    }
+
+    long getDateAdded(int row) {
+        return mDatesAdded[row];
+    }
+
+    long getDateModified(int row) {
+        return mDatesModified[row];
+    }
+
+    /**
+     * @return the position of the track when all tracks are ordered by file path. Unique for
+     *         every row, so it can break ties in any order of the tracks.
+     */
+    int getPathRank(int row) {
+        return mPathRanks[row];
+    }
+
+    int rowOfPathRank(int rank) {
+        return mRowsByPath[rank];
+    }
+
+    private String string(int ref) {
+        return ref == NO_STRING ? null : mStrings[ref];
+    }
+
+    private static int[] sortRowsById(long[] ids, boolean[] deleted, int liveCount) {
+        // Sort (id, row) pairs packed in a long when ids fit in 32 bits, as MediaStore ids do
+        long[] keys = new long[liveCount];
+        boolean packed = true;
+        int count = 0;
+        for (int row = 0; row < ids.length && packed; row++) {
+            if (!deleted[row]) {
+                packed = ids[row] >= 0 && ids[row] <= Integer.MAX_VALUE;
+                keys[count++] = ids[row] << 32 | row;
+            }
+        }
+        int[] rows = new int[liveCount];
+        if (packed) {
+            Arrays.sort(keys);
+            for (int i = 0; i < liveCount; i++) {
+                rows[i] = (int) keys[i];
+            }
+            return rows;
+        }
+        Integer[] boxed = new Integer[liveCount];
+        count = 0;
+        for (int row = 0; row < ids.length; row++) {
+            if (!deleted[row]) {
+                boxed[count++] = row;
+            }
+        }
+        final long[] sortIds = ids;
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long l = sortIds[lhs];
+                long r = sortIds[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < liveCount; i++) {
+            rows[i] = boxed[i];
+        }
+        return rows;
+    }
+
+    private static int[] sortRowsByPath(final String[] paths, int size) {
+        Integer[] boxed = new Integer[size];
+        for (int row = 0; row < size; row++) {
+            boxed[row] = row;
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                String l = paths[lhs] == null ? "" : paths[lhs];
+                String r = paths[rhs] == null ? "" : paths[rhs];
+                int result = l.compareTo(r);
+                return result != 0 ? result : lhs.compareTo(rhs);
+            }
+        });
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = boxed[i];
+        }
+        return rows;
+    }
+
+    /**
+     * Appends tracks row by row, interning the shared strings.
+     */
+    static final class Builder {
+
+        private int mSize;
+        private long[] mIds;
+        private long[] mAlbumIds;
+        private long[] mDurations;
+        private long[] mDatesAdded;
+        private long[] mDatesModified;
+        private int[] mYears;
+        private int[] mTrackNumbers;
+        private String[] mTitles;
+        private String[] mFilePaths;
+        private int[] mArtists;
+        private int[] mAlbumArtists;
+        private int[] mAlbums;
+        private int[] mGenreOffsets;
+        private int[] mGenres;
+        private int mGenreCount;
+        private boolean[] mDeleted;
+        private int mDeletedCount;
+        private final List<String> mStrings = new ArrayList<>();
+        private final Map<String, Integer> mStringRefs = new HashMap<>();
+
+        Builder(int capacity) {
+            capacity = Math.max(capacity, 16);
+            mIds = new long[capacity];
+            mAlbumIds = new long[capacity];
+            mDurations = new long[capacity];
+            mDatesAdded = new long[capacity];
+            mDatesModified = new long[capacity];
+            mYears = new int[capacity];
+            mTrackNumbers = new int[capacity];
+            mTitles = new String[capacity];
+            mFilePaths = new String[capacity];
+            mArtists = new int[capacity];
+            mAlbumArtists = new int[capacity];
+            mAlbums = new int[capacity];
+            mGenreOffsets = new int[capacity + 1];
+            mGenres = new int[capacity];
+            mDeleted = new boolean[capacity];
+        }
+
+        /**
+         * Start with a copy of all rows of the base table, at the same positions.
+         *
+         * @param extra number of rows expected to be added.
+         */
+        Builder(TrackTable base, int extra) {
+            this(base.size() + extra);
+            for (int row = 0; row < base.size(); row++) {
+                add(base, row);
+            }
+        }
+
+        /**
+         * Append a track.
+         *
+         * @return the row of the track in the built table.
+         */
+        int add(Music music) {
+            if (mSize == mIds.length) {
+                grow(mSize * 2);
+            }
+            int row = mSize++;
+            mIds[row] = music.getId();
+            mAlbumIds[row] = music.getAlbumId();
+            mDurations[row] = music.getDuration();
+            mDatesAdded[row] = music.getDateAdded();
+            mDatesModified[row] = music.getDateModified();
+            mYears[row] = music.getYear();
+            mTrackNumbers[row] = music.getTrackNumber();
+            mTitles[row] = music.getTitle();
+            mFilePaths[row] = music.getFilePath();
+            mArtists[row] = intern(music.getArtist());
+            mAlbumArtists[row] = intern(music.getAlbumArtist());
+            mAlbums[row] = intern(music.getAlbum());
+
+            addGenres(music.getGenres());
+            mGenreOffsets[row + 1] = mGenreCount;
+            return row;
+        }
+
+        /**
+         * Append a copy of a row of another table, deleted or not.
+         *
+         * @return the row of the track in the built table.
+         */
+        int add(TrackTable table, int row) {
+            if (mSize == mIds.length) {
+                grow(mSize * 2);
+            }
+            int newRow = mSize++;
+            mIds[newRow] = table.mIds[row];
+            mAlbumIds[newRow] = table.mAlbumIds[row];
+            mDurations[newRow] = table.mDurations[row];
+            mDatesAdded[newRow] = table.mDatesAdded[row];
+            mDatesModified[newRow] = table.mDatesModified[row];
+            mYears[newRow] = table.mYears[row];
+            mTrackNumbers[newRow] = table.mTrackNumbers[row];
+            mTitles[newRow] = table.mTitles[row];
+            mFilePaths[newRow] = table.mFilePaths[row];
+            mArtists[newRow] = intern(table.getArtist(row));
+            mAlbumArtists[newRow] = intern(table.getAlbumArtist(row));
+            mAlbums[newRow] = intern(table.getAlbum(row));
+            addGenres(table.getGenres(row));
+            mGenreOffsets[newRow + 1] = mGenreCount;
+            if (table.mDeleted[row]) {
+                delete(newRow);
+            }
+            return newRow;
+        }
+
+        /**
+         * Mark a row as deleted. It keeps its data and position, but cannot be looked up by
+         * id anymore.
+         */
+        void delete(int row) {
+            if (!mDeleted[row]) {
+                mDeleted[row] = true;
+                mDeletedCount++;
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        TrackTable build() {
+            return new TrackTable(this);
+        }
+
+        private void addGenres(String[] genres) {
+            if (mGenreCount + genres.length > mGenres.length) {
+                mGenres = Arrays.copyOf(mGenres, Math.max(mGenres.length * 2,
+                        mGenreCount + genres.length));
+            }
+            for (String genre : genres) {
+                if (genre != null) {
+                    mGenres[mGenreCount++] = intern(genre);
+                }
+            }
+        }
+
+        private int intern(String value) {
+            if (value == null) {
+                return NO_STRING;
+            }
+            Integer ref = mStringRefs.get(value);
+            if (ref == null) {
+                ref = mStrings.size();
+                mStrings.add(value);
+                mStringRefs.put(value, ref);
+            }
+            return ref;
+        }
+
+        private void grow(int capacity) {
+            mIds = Arrays.copyOf(mIds, capacity);
+            mAlbumIds = Arrays.copyOf(mAlbumIds, capacity);
+            mDurations = Arrays.copyOf(mDurations, capacity);
+            mDatesAdded = Arrays.copyOf(mDatesAdded, capacity);
+            mDatesModified = Arrays.copyOf(mDatesModified, capacity);
+            mYears = Arrays.copyOf(mYears, capacity);
+            mTrackNumbers = Arrays.copyOf(mTrackNumbers, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mFilePaths = Arrays.copyOf(mFilePaths, capacity);
+            mArtists = Arrays.copyOf(mArtists, capacity);
+            mAlbumArtists = Arrays.copyOf(mAlbumArtists, capacity);
+            mAlbums = Arrays.copyOf(mAlbums, capacity);
+            mGenreOffsets = Arrays.copyOf(mGenreOffsets, capacity + 1);
+            mDeleted = Arrays.copyOf(mDeleted, capacity);
+        }
+    }
+}
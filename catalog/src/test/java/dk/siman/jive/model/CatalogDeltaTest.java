@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static dk.siman.jive.model.TestTracks.music;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A catalog edited by a {@link CatalogDelta} must have the same indexes as a catalog built
+ * from scratch over the edited table.
+ */
+public class CatalogDeltaTest {
+
+    private static final int TRACK_COUNT = 40;
+
+    private ExecutorService mExecutor;
+    private Catalog mCatalog;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(2);
+        List<Music> musics = new ArrayList<>();
+        for (int i = 0; i < TRACK_COUNT; i++) {
+            musics.add(music(i + 1, "Song " + i, "Artist " + i % 4, "Album " + i % 8,
+                    i / 8 + 1, "Genre " + i % 3));
+        }
+        // One track with two genres, and one without any
+        musics.add(music(TRACK_COUNT + 1, "Duet", "Artist 0", "Album 0", 9, "Genre 0",
+                "Genre 1"));
+        musics.add(music(TRACK_COUNT + 2, "Untagged", "Artist 1", "Album 1", 9));
+        mCatalog = catalog(TestTracks.table(musics));
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void editedIndexesEqualBuiltIndexes() {
+        // Track 8 is modified: it moves to a new album and a new genre
+        List<Music> musics = Arrays.asList(
+                music(8, "Song 7 (remix)", "Artist 3", "Album 9", 1, "Jazz"),
+                music(100, "New song", "Artist 1", "Album 1", 7, "Genre 1"),
+                music(101, "Zebra", "Artist 9", "Album 1", 8));
+        CatalogDelta delta = CatalogDelta.apply(mCatalog, new int[] { 2, 7, TRACK_COUNT },
+                musics, mExecutor);
+
+        assertFalse(delta.compacted);
+        assertArrayEquals(new int[] { 2, 7, TRACK_COUNT }, delta.deadRows);
+        assertEquals(musics.size(), delta.newRows.length);
+        assertEquals(TRACK_COUNT + 2 - 3 + musics.size(), delta.tracks.liveSize());
+        // Rows of the other tracks do not move
+        for (int row = 0; row < mCatalog.tracks.size(); row++) {
+            assertEquals(mCatalog.tracks.getId(row), delta.tracks.getId(row));
+        }
+        assertTrue(delta.genresChanged);
+        assertTrue(delta.artistsChanged);
+        assertTrue(delta.albumsChanged);
+        assertIndexesEqual(Indexes.build(delta.tracks, true, true, mExecutor), delta.indexes);
+        assertEquals(1, delta.indexes.titleSearch.search("remix", 10).length);
+        assertEquals(0, delta.indexes.titleSearch.search("duet", 10).length);
+    }
+
+    @Test
+    public void keysOnlyChangeWithTheirBuckets() {
+        // Added to existing buckets only
+        CatalogDelta delta = CatalogDelta.apply(mCatalog, new int[0], Collections.singletonList(
+                music(100, "New song", "Artist 1", "Album 1", 7, "Genre 1")), mExecutor);
+        assertFalse(delta.genresChanged);
+        assertFalse(delta.artistsChanged);
+        assertFalse(delta.albumsChanged);
+        assertIndexesEqual(Indexes.build(delta.tracks, true, true, mExecutor), delta.indexes);
+
+        // Removing the only track without a genre drops the unknown genre
+        int untagged = mCatalog.tracks.rowOf(TRACK_COUNT + 2);
+        delta = CatalogDelta.apply(mCatalog, new int[] { untagged },
+                Collections.<Music>emptyList(), mExecutor);
+        assertTrue(delta.genresChanged);
+        assertFalse(delta.artistsChanged);
+        assertFalse(delta.albumsChanged);
+        assertFalse(delta.indexes.byGenre.containsKey(Indexes.UNKNOWN_GENRE));
+        assertIndexesEqual(Indexes.build(delta.tracks, true, true, mExecutor), delta.indexes);
+    }
+
+    @Test
+    public void sameGenreTwiceListsTrackOnce() {
+        // Two MediaStore genres of the same name
+        CatalogDelta delta = CatalogDelta.apply(mCatalog, new int[0], Collections.singletonList(
+                music(100, "New song", "Artist 1", "Album 1", 7, "Jazz", "Jazz")), mExecutor);
+        int row = delta.tracks.rowOf(100);
+        assertArrayEquals(new int[] { row }, delta.indexes.byGenre.get("Jazz"));
+        assertIndexesEqual(Indexes.build(delta.tracks, true, true, mExecutor), delta.indexes);
+    }
+
+    @Test
+    public void compactsWhenManyRowsAreDead() {
+        int[] deadRows = new int[TRACK_COUNT / 2];
+        for (int i = 0; i < deadRows.length; i++) {
+            deadRows[i] = 2 * i;
+        }
+        CatalogDelta delta = CatalogDelta.apply(mCatalog, deadRows, Collections.singletonList(
+                music(100, "New song", "Artist 1", "Album 1", 7, "Genre 1")), mExecutor);
+
+        assertTrue(delta.compacted);
+        assertNull(delta.deadRows);
+        assertNull(delta.newRows);
+        assertEquals(0, delta.tracks.getDeletedCount());
+        assertEquals(TRACK_COUNT + 2 - deadRows.length + 1, delta.tracks.size());
+        assertIndexesEqual(Indexes.build(delta.tracks, true, true, mExecutor), delta.indexes);
+    }
+
+    @Test
+    public void successiveDeltas() {
+        Catalog catalog = mCatalog;
+        for (int i = 0; i < 5; i++) {
+            int row = catalog.tracks.rowOf(i + 10);
+            CatalogDelta delta = CatalogDelta.apply(catalog, new int[] { row },
+                    Collections.singletonList(music(200 + i, "Again " + i, "Artist " + i,
+                            "Album " + i, i, "Genre " + i)), mExecutor);
+            assertIndexesEqual(Indexes.build(delta.tracks, true, true, mExecutor),
+                    delta.indexes);
+            catalog = catalog.next(delta.tracks, delta.indexes.byGenre, delta.indexes.byArtist,
+                    delta.indexes.byAlbum, delta.indexes.byAlphabet, delta.indexes.titleSearch,
+                    delta.indexes.artistSearch, delta.indexes.albumSearch);
+        }
+    }
+
+    private Catalog catalog(TrackTable tracks) {
+        Indexes indexes = Indexes.build(tracks, true, true, mExecutor);
+        return new Catalog(1, tracks, indexes.byGenre, indexes.byArtist, indexes.byAlbum,
+                indexes.byAlphabet, indexes.titleSearch, indexes.artistSearch,
+                indexes.albumSearch, null);
+    }
+
+    private static void assertIndexesEqual(Indexes expected, Indexes actual) {
+        assertIndexEquals(expected.byGenre, actual.byGenre);
+        assertIndexEquals(expected.byArtist, actual.byArtist);
+        assertIndexEquals(expected.byAlbum, actual.byAlbum);
+        assertIndexEquals(expected.byAlphabet, actual.byAlphabet);
+    }
+
+    private static void assertIndexEquals(CategoryIndex expected, CategoryIndex actual) {
+        assertEquals(expected.sortedKeys(), actual.sortedKeys());
+        for (String key : expected.sortedKeys()) {
+            assertArrayEquals(key, expected.get(key), actual.get(key));
+        }
+        assertArrayEquals(expected.sortedRows(), actual.sortedRows());
+    }
+}
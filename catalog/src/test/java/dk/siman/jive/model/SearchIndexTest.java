@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static dk.siman.jive.model.TestTracks.titled;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SearchIndexTest {
+
+    private TrackTable mTable;
+    private SearchIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mTable = TestTracks.table(Arrays.asList(
+                titled(1, "Caf\u00e9 del Mar"),
+                titled(2, "Midnight City"),
+                titled(3, "Night Moves"),
+                titled(4, "Nightingale"),
+                titled(5, "D\u00e9j\u00e0 Vu"),
+                titled(6, "Blue Night Blues")));
+        mIndex = SearchIndex.build(mTable, Indexes.TITLE_TEXT);
+    }
+
+    @Test
+    public void wordsAreFolded() {
+        assertArrayEquals(new String[] { "cafe", "del", "mar" },
+                SearchIndex.words("Caf\u00e9 del MAR!"));
+        assertArrayEquals(new String[] { "angstrom", "s", "deja", "vu" },
+                SearchIndex.words("\u00c5ngstr\u00f6m's d\u00e9j\u00e0-vu"));
+        assertEquals(0, SearchIndex.words(null).length);
+        assertEquals(0, SearchIndex.words(" - ").length);
+    }
+
+    @Test
+    public void queryIsFolded() {
+        assertArrayEquals(new int[] { 0 }, mIndex.search("CAF\u00c9", 10));
+        assertArrayEquals(new int[] { 4 }, mIndex.search("deja", 10));
+        assertArrayEquals(new int[] { 4 }, mIndex.search("d\u00e9j\u00e0 vu", 10));
+    }
+
+    @Test
+    public void wholeWordsRankBeforePrefixesBeforeSubstrings() {
+        // "night" is a word of rows 2 and 5, a prefix in row 3 and inside a word of row 1
+        assertArrayEquals(new int[] { 2, 5, 3, 1 }, mIndex.search("night", 10));
+    }
+
+    @Test
+    public void prefix() {
+        assertArrayEquals(new int[] { 3 }, mIndex.search("nighting", 10));
+        assertArrayEquals(new int[] { 5 }, mIndex.search("blu", 10));
+    }
+
+    @Test
+    public void shortQueryOnlyMatchesPrefixes() {
+        // Substrings need a trigram, so "midnight" is not found through "ni"
+        assertArrayEquals(new int[] { 2, 3, 5 }, mIndex.search("ni", 10));
+    }
+
+    @Test
+    public void substringThroughTrigrams() {
+        assertArrayEquals(new int[] { 1 }, mIndex.search("dnig", 10));
+        assertArrayEquals(new int[] { 3 }, mIndex.search("ingal", 10));
+        assertEquals(0, mIndex.search("ghtn", 10).length);
+    }
+
+    @Test
+    public void everyQueryWordMustMatch() {
+        assertArrayEquals(new int[] { 5 }, mIndex.search("blue night", 10));
+        assertArrayEquals(new int[] { 1 }, mIndex.search("night city", 10));
+        assertEquals(0, mIndex.search("night mar", 10).length);
+    }
+
+    @Test
+    public void limit() {
+        assertArrayEquals(new int[] { 2, 5 }, mIndex.search("night", 2));
+        assertEquals(0, mIndex.search("night", 0).length);
+        assertEquals(0, mIndex.search("", 10).length);
+    }
+
+    @Test
+    public void deletedRowsAreNotIndexed() {
+        TrackTable.Builder builder = new TrackTable.Builder(mTable, 0);
+        builder.delete(2);
+        SearchIndex index = SearchIndex.build(builder.build(), Indexes.TITLE_TEXT);
+        assertArrayEquals(new int[] { 5, 3, 1 }, index.search("night", 10));
+    }
+}
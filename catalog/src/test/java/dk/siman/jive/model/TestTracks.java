@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015. Anders Nielsen
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package dk.siman.jive.model;
+
+import java.util.List;
+
+/**
+ * Hand made tracks for the catalog tests.
+ */
+final class TestTracks {
+
+    private TestTracks() {
+    }
+
+    static Music music(long id, String title, String artist, String album, int trackNumber,
+                       String... genres) {
+        Music music = new Music(id, "/storage/emulated/0/Music/" + artist + "/" + album + "/"
+                + trackNumber + " " + title + ".mp3");
+        music.setSongId(String.valueOf(id));
+        music.setTitle(title);
+        music.setArtist(artist);
+        music.setAlbumArtist(artist);
+        music.setAlbum(album);
+        music.setAlbumId((long) album.hashCode());
+        music.setTrackNumber(trackNumber);
+        music.setDateAdded(1420070400L + id);
+        music.setDateModified(1420070400L + id);
+        music.setGenres(genres);
+        return music;
+    }
+
+    static Music titled(long id, String title) {
+        return music(id, title, "Artist", "Album", (int) id, "Genre");
+    }
+
+    static TrackTable table(List<Music> musics) {
+        TrackTable.Builder builder = new TrackTable.Builder(musics.size());
+        for (Music music : musics) {
+            builder.add(music);
+        }
+        return builder.build();
+    }
+}